@@ -0,0 +1,226 @@
+package com.craftinginterpreters.lox;
+
+import lox.LoxCallable;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Runs many scripts in one JVM, so that they share the cost of starting
+ * the JVM and warming up the compiler.
+ * <p>
+ * A manifest lists one job per line: a script and, optionally, a file to use as its
+ * standard input. Paths are relative to the manifest and <code>#</code> starts a comment.
+ * <p>
+ * Scripts with the same source are compiled and loaded once. Each job runs with its own
+ * instance of the main function and its own standard streams, on a virtual thread if the
+ * JVM supports them; at most a given number of jobs run at the same time. The output and
+ * timings of the jobs are printed in the order of the manifest.
+ * <p>
+ * A script that calls <code>exit</code> stops the whole batch.
+ */
+public class BatchRunner {
+
+    private final CompilerOptions options;
+    private final @Nullable CompileCache cache;
+    private final int concurrency;
+    private final Map<String, CompletableFuture<Program>> programs = new ConcurrentHashMap<>();
+
+    public BatchRunner(CompilerOptions options, @Nullable CompileCache cache, int concurrency) {
+        this.options = options;
+        this.cache = cache;
+        this.concurrency = concurrency;
+    }
+
+    public record Job(int number, Path script, @Nullable Path input) { }
+
+    private record Result(Job job, int status, String output, String errors, boolean reused, long compileNanos, long runNanos) { }
+
+    private record Program(LoxCompiler.Result result, @Nullable Constructor<?> constructor) { }
+
+    public static List<Job> parseManifest(Path manifest) throws IOException {
+        var directory = manifest.toAbsolutePath().getParent();
+        var lines = Files.readAllLines(manifest);
+        var jobs = new ArrayList<Job>();
+        for (int i = 0; i < lines.size(); i++) {
+            var line = lines.get(i);
+            if (line.contains("#")) line = line.substring(0, line.indexOf('#'));
+            if (line.isBlank()) continue;
+
+            var parts = line.strip().split("\\s+");
+            if (parts.length > 2) throw new IllegalArgumentException("Invalid job on line " + (i + 1) + " of " + manifest + ".");
+            jobs.add(new Job(jobs.size() + 1, directory.resolve(parts[0]), parts.length == 2 ? directory.resolve(parts[1]) : null));
+        }
+        return jobs;
+    }
+
+    /**
+     * Runs the jobs and prints their output and timings.
+     *
+     * @return the highest exit status of the jobs.
+     */
+    public int run(List<Job> jobs) throws InterruptedException {
+        long start = System.nanoTime();
+        var limit = new Semaphore(concurrency);
+        var executor = executor();
+        var futures = new ArrayList<Future<Result>>();
+        try {
+            for (var job : jobs) {
+                futures.add(executor.submit(() -> {
+                    limit.acquire();
+                    try {
+                        return run(job);
+                    } finally {
+                        limit.release();
+                    }
+                }));
+            }
+
+            int status = 0;
+            int failed = 0;
+            for (var future : futures) {
+                var result = future.get();
+                print(result);
+                status = Math.max(status, result.status());
+                if (result.status() != 0) failed++;
+            }
+            System.out.println(jobs.size() + " jobs, " + failed + " failed, in " + millis(System.nanoTime() - start));
+            return status;
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private Result run(Job job) {
+        String source;
+        try {
+            source = Files.readString(job.script());
+        } catch (IOException e) {
+            return new Result(job, 66, "", "Could not read " + job.script() + ".\n", false, 0, 0);
+        }
+
+        // Identical scripts are compiled once, by the first job that needs them.
+        long compileStart = System.nanoTime();
+        var compiling = new CompletableFuture<Program>();
+        var existing = programs.putIfAbsent(source, compiling);
+        if (existing == null) {
+            try {
+                compiling.complete(compile(source));
+            } catch (Throwable e) {
+                // The jobs waiting for the program fail too, rather than waiting forever.
+                compiling.completeExceptionally(e);
+            }
+        }
+        Program program;
+        try {
+            program = (existing != null ? existing : compiling).join();
+        } catch (CompletionException e) {
+            var errors = "Could not compile " + job.script() + ": " + e.getCause() + "\n";
+            return new Result(job, 70, "", errors, existing != null, System.nanoTime() - compileStart, 0);
+        }
+        long compileNanos = System.nanoTime() - compileStart;
+
+        if (program.constructor() == null) {
+            var errors = new StringBuilder();
+            program.result().diagnostics().forEach(it -> errors.append(it).append('\n'));
+            return new Result(job, program.result().status(), "", errors.toString(), existing != null, compileNanos, 0);
+        }
+
+        var output = new ByteArrayOutputStream();
+        var errors = new ByteArrayOutputStream();
+        var out = ThreadLocalPrintStream.out();
+        var err = ThreadLocalPrintStream.err();
+        var in = ThreadLocalInputStream.in();
+        long runStart = System.nanoTime();
+        int status = 0;
+        try (var input = input(job)) {
+            out.capture(output);
+            err.capture(errors);
+            in.use(input);
+            var main = (LoxCallable) program.constructor().newInstance((Object) null);
+            main.invoke(new Object[0]);
+        } catch (StackOverflowError e) {
+            // The same as the main method of a compiled program.
+            System.err.println("Stack overflow.");
+            status = 70;
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+            status = 70;
+        } catch (IOException | ReflectiveOperationException e) {
+            System.err.println(e instanceof InvocationTargetException i ? i.getCause() : e);
+            status = 70;
+        } finally {
+            out.capture(null);
+            err.capture(null);
+            in.use(null);
+        }
+        long runNanos = System.nanoTime() - runStart;
+
+        return new Result(job, status, output.toString(Charset.defaultCharset()), errors.toString(Charset.defaultCharset()), existing != null, compileNanos, runNanos);
+    }
+
+    private Program compile(String source) {
+        var result = cache != null ? Main.compile(source, options, cache) : new LoxCompiler(options).compile(source);
+        if (!result.isSuccess()) return new Program(result, null);
+        try {
+            return new Program(result, Main.loadMainClass(result.classPool()).getConstructor(LoxCallable.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Jobs without an input file read an empty input, rather than sharing this process's.
+     */
+    private static InputStream input(Job job) throws IOException {
+        return job.input() != null ? Files.newInputStream(job.input()) : new ByteArrayInputStream(new byte[0]);
+    }
+
+    private static void print(Result result) {
+        var job = result.job();
+        System.out.println(
+            "[" + job.number() + "] " + job.script().getFileName() + ": exit " + result.status() +
+            ", " + (result.reused() ? "compiled already" : "compiled in " + millis(result.compileNanos())) +
+            ", ran in " + millis(result.runNanos())
+        );
+        System.out.print(result.output());
+        System.err.print(result.errors());
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f ms", nanos / 1_000_000.0);
+    }
+
+    /**
+     * Returns an executor that runs each job on a new virtual thread, or a pool of
+     * platform threads if the JVM doesn't support virtual threads.
+     */
+    private ExecutorService executor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return Executors.newFixedThreadPool(concurrency);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.Ir.Type;
+
+import java.util.ArrayList;
+
+/**
+ * Removes conversions of numbers and booleans that were boxed by another instruction,
+ * for example the result of an arithmetic operation used as an operand of another.
+ */
+public class BoxEliminator implements IrPass {
+
+    @Override
+    public void run(Ir.Function function) {
+        for (var block : function.blocks) {
+            for (var instruction : new ArrayList<>(block.instructions)) {
+                var isUnboxedNumber = instruction instanceof Ir.Unbox && isBoxed(instruction.operand(0), Type.DOUBLE);
+                var isTruthyBoolean = instruction instanceof Ir.Truthy && isBoxed(instruction.operand(0), Type.BOOLEAN);
+                if (isUnboxedNumber || isTruthyBoolean) {
+                    instruction.replaceAllUsesWith(instruction.operand(0).operand(0));
+                    instruction.remove();
+                }
+            }
+        }
+    }
+
+    private static boolean isBoxed(Ir.Instruction value, Type type) {
+        return value instanceof Ir.Box && value.operand(0).type == type;
+    }
+}
@@ -0,0 +1,120 @@
+package com.craftinginterpreters.lox;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Creates a Class Data Sharing archive for a compiled jar, so that the JVM maps the
+ * classes of the program and the runtime, already parsed and verified, rather than
+ * loading them every time that the program starts.
+ * <p>
+ * The archive is dumped at the end of a training run of the jar, which runs the script
+ * with an empty standard input and discards its output. A script that is still running
+ * after {@link #TRAINING_TIME} is stopped, which dumps the classes that it has loaded so
+ * far; it's killed if it doesn't exit either. A launcher script next to the
+ * jar runs it with the archive: <code>hello</code> runs <code>hello.jar</code> with
+ * <code>hello.jsa</code>. An archive can only be used by the JVM that created it, so
+ * the launcher runs that JVM.
+ */
+public class CdsArchive {
+
+    // The startup time is the fastest of this many runs.
+    private static final int TIMED_RUNS = 3;
+    static final Duration TRAINING_TIME = Duration.ofSeconds(10);
+    // How long a stopped run has to exit before it's killed.
+    private static final Duration EXIT_TIME = Duration.ofSeconds(10);
+
+    /**
+     * The archive and launcher created for a jar and, if the program was
+     * timed, how long it took to run without and with the archive.
+     */
+    public record Report(Path archive, Path launcher, @Nullable Timing timing) {
+        @Override
+        public String toString() {
+            var created = "Created " + archive + " and " + launcher;
+            if (timing == null) return created + ".";
+            return created + ": the program runs in " +
+                millis(timing.withNanos()) + " with the archive, " + millis(timing.withoutNanos()) + " without.";
+        }
+    }
+
+    public record Timing(long withoutNanos, long withNanos) { }
+
+    /**
+     * Creates the archive and launcher for the jar. If <code>time</code> is set, the
+     * program is also run {@value #TIMED_RUNS} times without and with the archive.
+     */
+    public static Report create(Path jar, boolean time) throws IOException, InterruptedException {
+        var name = jar.getFileName().toString();
+        var baseName = name.endsWith(".jar") ? name.substring(0, name.length() - ".jar".length()) : name;
+        var archive = jar.resolveSibling(baseName + ".jsa");
+        var launcher = jar.resolveSibling(baseName);
+
+        Files.deleteIfExists(archive);
+        run(jar, "-XX:ArchiveClassesAtExit=" + archive);
+        if (!Files.exists(archive)) throw new IOException("The training run did not create " + archive + ".");
+
+        var timing = time ? new Timing(time(jar), time(jar, "-XX:SharedArchiveFile=" + archive)) : null;
+
+        Files.writeString(launcher, """
+            #!/bin/sh
+            dir="$(dirname "$0")"
+            exec "%s" -XX:SharedArchiveFile="$dir/%s" -jar "$dir/%s" "$@"
+            """.formatted(java(), archive.getFileName(), jar.getFileName()));
+        if (!launcher.toFile().setExecutable(true)) throw new IOException("Could not make " + launcher + " executable.");
+
+        return new Report(archive, launcher, timing);
+    }
+
+    private static long time(Path jar, String... options) throws IOException, InterruptedException {
+        var fastest = Long.MAX_VALUE;
+        for (int i = 0; i < TIMED_RUNS; i++) {
+            long start = System.nanoTime();
+            run(jar, options);
+            fastest = Math.min(fastest, System.nanoTime() - start);
+        }
+        return fastest;
+    }
+
+    /**
+     * Runs the jar in a new JVM for at most {@link #TRAINING_TIME}, ignoring its
+     * exit status: a script that fails at runtime still loads its classes.
+     */
+    private static void run(Path jar, String... options) throws IOException, InterruptedException {
+        var command = new ArrayList<String>();
+        command.add(java());
+        command.addAll(List.of(options));
+        command.add("-jar");
+        command.add(jar.toString());
+        var process = new ProcessBuilder(command)
+            .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+            .redirectError(ProcessBuilder.Redirect.DISCARD)
+            .start();
+        process.getOutputStream().close();
+        if (process.waitFor(TRAINING_TIME.toMillis(), MILLISECONDS)) return;
+
+        // A JVM that is stopped, rather than killed, still dumps its archive.
+        process.destroy();
+        if (!process.waitFor(EXIT_TIME.toMillis(), MILLISECONDS)) {
+            process.destroyForcibly();
+            process.waitFor();
+        }
+    }
+
+    private static String java() {
+        return Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    }
+
+    private static String millis(long nanos) {
+        return String.format("%.1f ms", nanos / 1_000_000.0);
+    }
+}
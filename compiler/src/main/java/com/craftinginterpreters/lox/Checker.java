@@ -4,13 +4,15 @@ import java.util.List;
 import java.util.Objects;
 
 
-import static com.craftinginterpreters.lox.Lox.error;
-
-
 public class Checker implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+    private final Diagnostics diagnostics;
     private ClassType currentClassType = ClassType.NONE;
     private FunctionType currentFunctionType = FunctionType.NONE;
 
+    public Checker(Diagnostics diagnostics) {
+        this.diagnostics = diagnostics;
+    }
+
     public void execute(List<Stmt> statements) {
         statements.forEach(it -> it.accept(this));
     }
@@ -76,9 +78,9 @@ public class Checker implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
     @Override
     public Void visitSuperExpr(Expr.Super expr) {
         if (currentClassType == ClassType.NONE) {
-            error(expr.keyword, "Can't use 'super' outside of a class.");
+            diagnostics.error(expr.keyword, "Can't use 'super' outside of a class.");
         } else if (currentClassType != ClassType.SUBCLASS) {
-            error(expr.keyword, "Can't use 'super' in a class with no superclass.");
+            diagnostics.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
         }
         return null;
     }
@@ -86,7 +88,7 @@ public class Checker implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
     @Override
     public Void visitThisExpr(Expr.This expr) {
         if (currentClassType == ClassType.NONE) {
-            error(expr.keyword, "Can't use 'this' outside of a class.");
+            diagnostics.error(expr.keyword, "Can't use 'this' outside of a class.");
         }
         return null;
     }
@@ -115,7 +117,7 @@ public class Checker implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
         if (stmt.superclass != null) {
             currentClassType = ClassType.SUBCLASS;
             if (Objects.equals(stmt.name.lexeme, stmt.superclass.name.lexeme)) {
-                error(stmt.superclass.name, "A class can't inherit from itself.");
+                diagnostics.error(stmt.superclass.name, "A class can't inherit from itself.");
             }
             stmt.superclass.accept(this);
         }
@@ -154,9 +156,9 @@ public class Checker implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
     public Void visitReturnStmt(Stmt.Return returnStmt) {
         if (returnStmt.value != null) {
             if (currentFunctionType == FunctionType.NONE) {
-                error(returnStmt.keyword, "Can't return from top-level code.");
+                diagnostics.error(returnStmt.keyword, "Can't return from top-level code.");
             } else if (currentFunctionType == FunctionType.INIT) {
-                error(returnStmt.keyword, "Can't return a value from an initializer.");
+                diagnostics.error(returnStmt.keyword, "Can't return a value from an initializer.");
             } else returnStmt.value.accept(this);
         }
         return null;
@@ -0,0 +1,1067 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.CompilerResolver.VarDef;
+import lox.LoxCallable;
+import lox.LoxCaptured;
+import lox.LoxClass;
+import lox.LoxException;
+import lox.LoxFunction;
+import lox.LoxInstance;
+import lox.LoxMethod;
+import lox.LoxNative;
+import org.jetbrains.annotations.Nullable;
+import proguard.classfile.ClassPool;
+import proguard.classfile.util.ClassPoolClassLoader;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Stream;
+
+import static com.craftinginterpreters.lox.LoxConstants.LOX_MAIN_CLASS;
+import static java.lang.invoke.MethodType.methodType;
+import static proguard.classfile.util.ClassUtil.externalClassName;
+
+/**
+ * Compiles a resolved and optimized program to a tree of closures, which runs it without
+ * generating, preverifying and loading any classes.
+ * <p>
+ * Each expression and statement is compiled once to a closure that is specialized for its
+ * operands: for example, for where a variable is stored, or for a comparison with a constant
+ * number, so that running it does little more than the generated code would.
+ * <p>
+ * The variables of a function are kept in an array frame, in the slots assigned by the
+ * {@link VariableAllocator}; slot 0 holds the running function. Captured variables are
+ * {@link LoxCaptured} cells, as in the generated code: each function instance holds the
+ * cells of the variables it captures and declares, in the order of the fields of its class.
+ * <p>
+ * Pure functions are not memoized.
+ * <p>
+ * Given a class compiler, functions that are called, or loop, often enough are compiled
+ * to classes in the background, one at a time. The entry of such a function is a
+ * {@link MutableCallSite}, whose target is switched from the closures to the compiled
+ * class once it's loaded; invocations that are already running finish as closures.
+ * Only functions that don't declare functions or classes are compiled, since the
+ * closures and classes of nested functions can't be mixed.
+ */
+public class ClosureCompiler {
+
+    // Returned by statements that complete normally, to tell them apart from a return.
+    private static final Object NEXT = new Object();
+    private static final Object[] NO_ARGUMENTS = new Object[0];
+    // The number of calls and loop iterations after which a function is compiled.
+    private static final int HOT = 1_000;
+    // Each call of a closure takes several Java frames, so programs run on a thread with a stack
+    // large enough to recurse at least as deeply as the generated code does on the main thread.
+    private static final long STACK_SIZE = 64L * 1024 * 1024;
+    private static final MethodType ENTRY = methodType(Object.class, LoxCallable.class, LoxCaptured[].class, Object[].class);
+
+    private final CompilerResolver resolver;
+    private final VariableAllocator allocator;
+    private final @Nullable Function<Stmt.Function, ClassPool> classCompiler;
+    private final @Nullable ExecutorService background;
+    private final Map<Token, Map<VarDef, Integer>> cells = new HashMap<>();
+
+    public ClosureCompiler(CompilerResolver resolver, VariableAllocator allocator) {
+        this(resolver, allocator, null);
+    }
+
+    /**
+     * Creates a compiler whose hot functions are compiled to classes
+     * by the given class compiler, if it's not <code>null</code>.
+     */
+    public ClosureCompiler(CompilerResolver resolver, VariableAllocator allocator, @Nullable Function<Stmt.Function, ClassPool> classCompiler) {
+        this.resolver = resolver;
+        this.allocator = allocator;
+        this.classCompiler = classCompiler;
+        this.background = classCompiler == null ? null : Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "jlox-compiler");
+            // Compiling a function never keeps the program from exiting.
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public Program compile(Stmt.Function main) {
+        return new Program(new FunctionCompiler(null, main).compile());
+    }
+
+    /**
+     * A program compiled to closures, which can be run any number of times.
+     */
+    public static class Program {
+        private final FunctionCode main;
+
+        private Program(FunctionCode main) {
+            this.main = main;
+        }
+
+        /**
+         * Returns a new instance of the main function, which holds the state of a run.
+         */
+        public LoxCallable newMain() {
+            return new ClosureFunction(main, null);
+        }
+
+        /**
+         * Runs the program like the main method of a compiled program, which
+         * prints a runtime error and exits with status 70.
+         */
+        public void run() {
+            var thread = new Thread(null, this::runMain, "main", STACK_SIZE);
+            thread.start();
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.exit(70);
+            }
+        }
+
+        private void runMain() {
+            try {
+                newMain().invoke(NO_ARGUMENTS);
+            } catch (StackOverflowError e) {
+                System.err.println("Stack overflow.");
+                System.exit(70);
+            } catch (Throwable e) {
+                System.err.println(e.getMessage());
+                System.exit(70);
+            }
+        }
+    }
+
+    @FunctionalInterface
+    private interface Expression {
+        Object evaluate(Object[] frame);
+    }
+
+    @FunctionalInterface
+    private interface Condition {
+        boolean test(Object[] frame);
+    }
+
+    /**
+     * Returns {@link #NEXT}, or the value to return from the function.
+     */
+    @FunctionalInterface
+    private interface Statement {
+        Object execute(Object[] frame);
+    }
+
+    @FunctionalInterface
+    private interface Assignment {
+        void assign(Object[] frame, Object value);
+    }
+
+    /**
+     * A function, method or the main function.
+     */
+    private static final class FunctionCode {
+        private final String name;
+        private final int arity;
+        private final int frameSize;
+        private final int cellCount;
+        private final int[] lateInitCells;
+        private final boolean isInitializer;
+        // Parameters are declared, and captured variables loaded, on entry.
+        private Assignment[] parameters;
+        private int[] capturedSlots;
+        private int[] capturedCells;
+        // Captured variables are copied from the enclosing functions when the function is created.
+        private Capture[] captures;
+        private Statement body;
+        private @Nullable Tier tier;
+
+        private FunctionCode(String name, int arity, int frameSize, int cellCount, int[] lateInitCells, boolean isInitializer) {
+            this.name = name;
+            this.arity = arity;
+            this.frameSize = frameSize;
+            this.cellCount = cellCount;
+            this.lateInitCells = lateInitCells;
+            this.isInitializer = isInitializer;
+        }
+
+        private LoxCaptured[] newCells() {
+            var cells = new LoxCaptured[cellCount];
+            for (int cell : lateInitCells) cells[cell] = new LoxCaptured(null);
+            return cells;
+        }
+
+        private void capture(LoxCallable function, LoxCaptured[] cells) {
+            for (var capture : captures) capture.capture(function, cells);
+        }
+
+        private Object invoke(LoxCallable function, LoxCaptured[] cells, Object[] args) {
+            return tier != null ? tier.invoke(function, cells, args) : interpret(function, cells, args);
+        }
+
+        private Object interpret(LoxCallable function, LoxCaptured[] cells, Object[] args) {
+            var frame = new Object[frameSize];
+            frame[0] = function;
+            for (int i = 0; i < parameters.length; i++) parameters[i].assign(frame, args[i]);
+            for (int i = 0; i < capturedSlots.length; i++) frame[capturedSlots[i]] = cells[capturedCells[i]];
+
+            var result = body.execute(frame);
+            if (result != NEXT) return result;
+            return isInitializer ? ((LoxMethod) function).getReceiver() : null;
+        }
+    }
+
+    /**
+     * The entry of a function that can be compiled to a class, which counts
+     * the calls and loop iterations of the function until it's compiled.
+     */
+    private final class Tier {
+        private final Stmt.Function function;
+        private final FunctionCode code;
+        private final String className;
+        // The fields of the class, and the cells they are set from.
+        private final Map<String, Integer> fields = new LinkedHashMap<>();
+        private final MutableCallSite entry = new MutableCallSite(ENTRY);
+        private final MethodHandle invoker = entry.dynamicInvoker();
+        private int hotness;
+
+        private Tier(Stmt.Function function, FunctionCode code) {
+            this.function = function;
+            this.code = code;
+            this.className = externalClassName(resolver.javaClassName(function));
+            cells(function).forEach((varDef, cell) -> fields.put(varDef.getJavaFieldName(), cell));
+            try {
+                entry.setTarget(MethodHandles.lookup().findVirtual(Tier.class, "interpret", ENTRY).bindTo(this));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private Object invoke(LoxCallable function, LoxCaptured[] cells, Object[] args) {
+            try {
+                return (Object) invoker.invokeExact(function, cells, args);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+
+        private Object interpret(LoxCallable function, LoxCaptured[] cells, Object[] args) {
+            count();
+            return code.interpret(function, cells, args);
+        }
+
+        private void count() {
+            // Racy, but a lost count only delays the compilation.
+            if (++hotness == HOT) background.execute(this::compile);
+        }
+
+        /**
+         * Compiles and loads the class of the function, and switches the entry to it. If
+         * the function can't be compiled, it keeps running as closures.
+         */
+        private void compile() {
+            try {
+                var type = new ClassPoolClassLoader(classCompiler.apply(function)).loadClass(className);
+                var lookup = MethodHandles.publicLookup();
+                var constructor = lookup.findConstructor(type, methodType(void.class, LoxCallable.class));
+                var setters = new MethodHandle[fields.size()];
+                var cells = new int[fields.size()];
+                int i = 0;
+                for (var field : fields.entrySet()) {
+                    setters[i] = lookup.findSetter(type, field.getKey(), LoxCaptured.class);
+                    cells[i++] = field.getValue();
+                }
+                var compiled = new Compiled(constructor, setters, cells);
+                entry.setTarget(MethodHandles.lookup().findVirtual(Compiled.class, "invoke", ENTRY).bindTo(compiled));
+                MutableCallSite.syncAll(new MutableCallSite[] { entry });
+            } catch (Throwable e) {
+                // The closures are still correct, only slower.
+            }
+        }
+    }
+
+    /**
+     * The class of a compiled function. Each instance of the function creates an instance of the
+     * class on its first call after the compilation, with the same enclosing function and cells.
+     */
+    private record Compiled(MethodHandle constructor, MethodHandle[] setters, int[] fieldCells) {
+        private Object invoke(LoxCallable function, LoxCaptured[] cells, Object[] args) throws Throwable {
+            var closure = (ClosureFunction) function;
+            var instance = closure.compiled;
+            if (instance == null) {
+                instance = (LoxCallable) constructor.invoke(closure.getEnclosing());
+                for (int i = 0; i < setters.length; i++) setters[i].invoke(instance, cells[fieldCells[i]]);
+                closure.compiled = instance;
+            }
+            return instance.invoke(args);
+        }
+    }
+
+    /**
+     * Copies the cell of a captured variable from the function that declares it; captured
+     * globals are copied from the instance of the main function.
+     */
+    private record Capture(int cell, boolean isGlobal, int distance, int sourceCell) {
+        private void capture(LoxCallable function, LoxCaptured[] cells) {
+            var source = isGlobal ? function.getMain() : function.getEnclosing(distance);
+            cells[cell] = ((Closure) source).cells()[sourceCell];
+        }
+    }
+
+    private record ClassCode(String name, List<FunctionCode> methods) { }
+
+    private interface Closure {
+        LoxCaptured[] cells();
+    }
+
+    private static final class ClosureFunction extends LoxFunction implements Closure {
+        private final FunctionCode code;
+        private final LoxCaptured[] cells;
+        // The instance of the compiled class of the function, once it has one.
+        private @Nullable LoxCallable compiled;
+
+        private ClosureFunction(FunctionCode code, LoxCallable enclosing) {
+            super(enclosing);
+            this.code = code;
+            this.cells = code.newCells();
+        }
+
+        @Override
+        public LoxCaptured[] cells() {
+            return cells;
+        }
+
+        @Override
+        public String getName() {
+            return code.name;
+        }
+
+        @Override
+        public int arity() {
+            return code.arity;
+        }
+
+        @Override
+        public Object invoke(Object[] args) {
+            var compiled = this.compiled;
+            if (compiled != null) return compiled.invoke(args);
+            return code.invoke(this, cells, args);
+        }
+    }
+
+    private static final class ClosureMethod extends LoxMethod implements Closure {
+        private final FunctionCode code;
+        private LoxCaptured[] cells;
+
+        private ClosureMethod(FunctionCode code, LoxClass loxClass) {
+            super(loxClass);
+            this.code = code;
+            this.cells = code.newCells();
+        }
+
+        /**
+         * A bound method has its own cells, like the fields of a bound generated method.
+         */
+        @Override
+        protected Object clone() throws CloneNotSupportedException {
+            var clone = (ClosureMethod) super.clone();
+            clone.cells = cells.clone();
+            return clone;
+        }
+
+        @Override
+        public LoxCaptured[] cells() {
+            return cells;
+        }
+
+        @Override
+        public String getName() {
+            return code.name;
+        }
+
+        @Override
+        public int arity() {
+            return code.arity;
+        }
+
+        @Override
+        public Object invoke(Object[] args) {
+            return code.invoke(this, cells, args);
+        }
+    }
+
+    private static final class ClosureClass extends LoxClass {
+        private final String name;
+        private final Map<String, LoxMethod> methods = new HashMap<>();
+
+        private ClosureClass(ClassCode code, LoxCallable enclosing, LoxClass superClass) {
+            super(enclosing, superClass);
+            this.name = code.name();
+            for (var methodCode : code.methods()) {
+                var method = new ClosureMethod(methodCode, this);
+                methodCode.capture(method, method.cells);
+                methods.put(methodCode.name, method);
+            }
+        }
+
+        @Override
+        public LoxMethod findMethod(String name) {
+            var method = methods.get(name);
+            if (method != null) return method;
+            return getSuperClass() != null ? getSuperClass().findMethod(name) : null;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+    }
+
+    private static final class NativeCallable extends LoxFunction {
+        private final String name;
+        private final int arity;
+        private final MethodHandle handle;
+
+        private NativeCallable(String name, int arity, MethodHandle handle, LoxCallable enclosing) {
+            super(enclosing);
+            this.name = name;
+            this.arity = arity;
+            this.handle = handle;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public int arity() {
+            return arity;
+        }
+
+        @Override
+        public Object invoke(Object[] args) {
+            try {
+                return (Object) handle.invokeExact(args);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            // For compatibility with Lox all native functions print `<native fn>`.
+            return "<native fn>";
+        }
+    }
+
+    /**
+     * Returns the cell index of each variable that the given function captures or declares
+     * and is captured, in the same order as the fields of its class.
+     */
+    private Map<VarDef, Integer> cells(Stmt.Function function) {
+        return cells.computeIfAbsent(function.name, k -> {
+            var cells = new LinkedHashMap<VarDef, Integer>();
+            Stream.concat(
+                allocator.captured(function).stream(),
+                resolver.variables(function).stream().filter(VarDef::isCaptured).filter(VarDef::isRead)
+            ).forEach(varDef -> cells.putIfAbsent(varDef, cells.size()));
+            return cells;
+        });
+    }
+
+    private class FunctionCompiler implements Stmt.Visitor<Statement>, Expr.Visitor<Expression> {
+
+        private final Stmt.Class classStmt;
+        private final Stmt.Function function;
+        private @Nullable Tier tier;
+
+        private FunctionCompiler(Stmt.Class classStmt, Stmt.Function function) {
+            this.classStmt = classStmt;
+            this.function = function;
+        }
+
+        private FunctionCode compile() {
+            var cells = cells(function);
+            var lateInitCells = resolver.variables(function)
+                .stream()
+                .filter(VarDef::isLateInit)
+                .filter(cells::containsKey)
+                .mapToInt(cells::get)
+                .distinct()
+                .toArray();
+            var code = new FunctionCode(
+                function.name.lexeme,
+                function.params.size(),
+                allocator.maxLocals(function),
+                cells.size(),
+                lateInitCells,
+                classStmt != null && function.name.lexeme.equals("init")
+            );
+
+            code.parameters = function.params
+                .stream()
+                .map(resolver::varDef)
+                .map(this::declaration)
+                .toArray(Assignment[]::new);
+
+            var captured = allocator.captured(function);
+            var capturedLocals = captured.stream().filter(it -> !it.isGlobal()).toList();
+            code.capturedSlots = capturedLocals.stream().mapToInt(it -> allocator.slot(function, it)).toArray();
+            code.capturedCells = capturedLocals.stream().mapToInt(cells::get).toArray();
+            code.captures = captured
+                .stream()
+                .map(it -> new Capture(cells.get(it), it.isGlobal(), it.distanceTo(function), cells(it.function()).get(it)))
+                .toArray(Capture[]::new);
+
+            if (isCompilable()) code.tier = tier = new Tier(function, code);
+            code.body = block(function.body);
+            return code;
+        }
+
+        private boolean isCompilable() {
+            return classCompiler != null &&
+                classStmt == null &&
+                !(function instanceof Compiler.NativeFunction) &&
+                !resolver.javaClassName(function).equals(LOX_MAIN_CLASS) &&
+                function.body.stream().noneMatch(ClosureCompiler::declaresFunctions);
+        }
+
+        private int cell(VarDef varDef) {
+            var cell = cells(function).get(varDef);
+            if (cell == null) throw new IllegalArgumentException("No cell for " + varDef + " in " + function.name.lexeme);
+            return cell;
+        }
+
+        private Statement block(List<Stmt> stmts) {
+            var statements = stmts.stream().map(it -> it.accept(this)).toArray(Statement[]::new);
+            return switch (statements.length) {
+                case 0 -> frame -> NEXT;
+                case 1 -> statements[0];
+                default -> frame -> {
+                    for (var statement : statements) {
+                        var result = statement.execute(frame);
+                        if (result != NEXT) return result;
+                    }
+                    return NEXT;
+                };
+            };
+        }
+
+        /**
+         * Declares a variable, like {@link LoxComposer#declare(VarDef)}.
+         */
+        private Assignment declaration(VarDef varDef) {
+            if (!varDef.isRead()) return (frame, value) -> { };
+
+            if (varDef.isGlobal() && varDef.isCaptured()) {
+                int cell = cell(varDef);
+                if (varDef.isLateInit()) return (frame, value) -> cells(frame)[cell].setValue(value);
+                return (frame, value) -> cells(frame)[cell] = new LoxCaptured(value);
+            }
+
+            int slot = allocator.slot(varDef.function(), varDef);
+            if (!varDef.isGlobal() && varDef.isLateInit()) {
+                int cell = cell(varDef);
+                return (frame, value) -> {
+                    var captured = cells(frame)[cell];
+                    captured.setValue(value);
+                    frame[slot] = captured;
+                };
+            } else if (!varDef.isGlobal() && varDef.isCaptured()) {
+                int cell = cell(varDef);
+                return (frame, value) -> frame[slot] = cells(frame)[cell] = new LoxCaptured(value);
+            } else {
+                return (frame, value) -> frame[slot] = value;
+            }
+        }
+
+        /**
+         * Stores a variable, like {@link LoxComposer#store(Stmt.Function, Token)}.
+         */
+        private Assignment assignment(VarDef varDef) {
+            if (!varDef.isRead()) return (frame, value) -> { };
+
+            if (varDef.isGlobal() && varDef.isCaptured()) {
+                int cell = cell(varDef);
+                return (frame, value) -> cells(frame)[cell].setValue(value);
+            }
+
+            int slot = allocator.slot(function, varDef);
+            if (!varDef.isGlobal() && varDef.isCaptured()) return (frame, value) -> ((LoxCaptured) frame[slot]).setValue(value);
+            return (frame, value) -> frame[slot] = value;
+        }
+
+        /**
+         * Loads a variable, like {@link LoxComposer#load(Stmt.Function, Expr.Variable)}.
+         */
+        private Expression load(VarDef varDef) {
+            if (varDef.isGlobal() && varDef.isCaptured()) {
+                int cell = cell(varDef);
+                return frame -> cells(frame)[cell].getValue();
+            }
+
+            int slot = allocator.slot(function, varDef);
+            if (!varDef.isGlobal() && varDef.isCaptured()) return frame -> ((LoxCaptured) frame[slot]).getValue();
+            return frame -> frame[slot];
+        }
+
+        /**
+         * Compiles an expression whose value is only tested for truthiness,
+         * so that comparisons and logical operators don't need to box their results.
+         */
+        private Condition condition(Expr expr) {
+            if (expr instanceof Expr.Grouping grouping) return condition(grouping.expression);
+
+            if (expr instanceof Expr.Literal literal) {
+                var isTruthy = isTruthy(literal.value);
+                return frame -> isTruthy;
+            }
+
+            if (expr instanceof Expr.Unary unary && unary.operator.type == TokenType.BANG) {
+                var right = condition(unary.right);
+                return frame -> !right.test(frame);
+            }
+
+            if (expr instanceof Expr.Logical logical) {
+                var left = condition(logical.left);
+                var right = condition(logical.right);
+                return logical.operator.type == TokenType.OR ?
+                    frame -> left.test(frame) || right.test(frame) :
+                    frame -> left.test(frame) && right.test(frame);
+            }
+
+            if (expr instanceof Expr.Binary binary) {
+                switch (binary.operator.type) {
+                    case EQUAL_EQUAL, BANG_EQUAL, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                        return comparison(binary);
+                    }
+                }
+            }
+
+            var value = expr.accept(this);
+            return frame -> isTruthy(value.evaluate(frame));
+        }
+
+        private Condition comparison(Expr.Binary expr) {
+            var left = expr.left.accept(this);
+            int line = expr.operator.line;
+
+            // Comparisons with a constant number are common in loop conditions.
+            if (expr.right instanceof Expr.Literal literal && literal.value instanceof Double number) {
+                double right = number;
+                switch (expr.operator.type) {
+                    case GREATER -> { return frame -> number(left.evaluate(frame), line) > right; }
+                    case GREATER_EQUAL -> { return frame -> number(left.evaluate(frame), line) >= right; }
+                    case LESS -> { return frame -> number(left.evaluate(frame), line) < right; }
+                    case LESS_EQUAL -> { return frame -> number(left.evaluate(frame), line) <= right; }
+                }
+            }
+
+            var right = expr.right.accept(this);
+            return switch (expr.operator.type) {
+                case EQUAL_EQUAL -> frame -> Objects.equals(left.evaluate(frame), right.evaluate(frame));
+                case BANG_EQUAL -> frame -> !Objects.equals(left.evaluate(frame), right.evaluate(frame));
+                case GREATER -> frame -> number(left.evaluate(frame), line) > number(right.evaluate(frame), line);
+                case GREATER_EQUAL -> frame -> number(left.evaluate(frame), line) >= number(right.evaluate(frame), line);
+                case LESS -> frame -> number(left.evaluate(frame), line) < number(right.evaluate(frame), line);
+                case LESS_EQUAL -> frame -> number(left.evaluate(frame), line) <= number(right.evaluate(frame), line);
+                default -> throw new IllegalStateException("Unexpected value: " + expr.operator);
+            };
+        }
+
+        @Override
+        public Statement visitBlockStmt(Stmt.Block stmt) {
+            return block(stmt.statements);
+        }
+
+        @Override
+        public Statement visitClassStmt(Stmt.Class stmt) {
+            var methods = stmt.methods.stream().map(it -> new FunctionCompiler(stmt, it).compile()).toList();
+            var code = new ClassCode(stmt.name.lexeme, methods);
+            var declaration = declaration(resolver.varDef(stmt.name));
+
+            if (stmt.superclass == null) {
+                return frame -> {
+                    declaration.assign(frame, new ClosureClass(code, (LoxCallable) frame[0], null));
+                    return NEXT;
+                };
+            }
+
+            var superclass = stmt.superclass.accept(this);
+            int line = stmt.superclass.name.line;
+            return frame -> {
+                if (!(superclass.evaluate(frame) instanceof LoxClass loxClass)) throw new LoxException("Superclass must be a class.", line);
+                declaration.assign(frame, new ClosureClass(code, (LoxCallable) frame[0], loxClass));
+                return NEXT;
+            };
+        }
+
+        @Override
+        public Statement visitExpressionStmt(Stmt.Expression stmt) {
+            var expression = stmt.expression.accept(this);
+            return frame -> {
+                expression.evaluate(frame);
+                return NEXT;
+            };
+        }
+
+        @Override
+        public Statement visitFunctionStmt(Stmt.Function stmt) {
+            var declaration = declaration(resolver.varDef(stmt.name));
+
+            if (stmt instanceof Compiler.NativeFunction) {
+                var name = stmt.name.lexeme;
+                var arity = stmt.params.size();
+                MethodHandle handle;
+                try {
+                    handle = MethodHandles.publicLookup()
+                        .findStatic(LoxNative.class, name, MethodType.genericMethodType(arity))
+                        .asSpreader(Object[].class, arity);
+                } catch (ReflectiveOperationException e) {
+                    throw new IllegalStateException(e);
+                }
+                return frame -> {
+                    declaration.assign(frame, new NativeCallable(name, arity, handle, (LoxCallable) frame[0]));
+                    return NEXT;
+                };
+            }
+
+            var code = new FunctionCompiler(null, stmt).compile();
+            return frame -> {
+                var function = new ClosureFunction(code, (LoxCallable) frame[0]);
+                // Captured after the declaration, so that the function can capture itself.
+                declaration.assign(frame, function);
+                code.capture(function, function.cells);
+                return NEXT;
+            };
+        }
+
+        @Override
+        public Statement visitIfStmt(Stmt.If stmt) {
+            var condition = condition(stmt.condition);
+            var thenBranch = stmt.thenBranch.accept(this);
+            if (stmt.elseBranch == null) return frame -> condition.test(frame) ? thenBranch.execute(frame) : NEXT;
+
+            var elseBranch = stmt.elseBranch.accept(this);
+            return frame -> condition.test(frame) ? thenBranch.execute(frame) : elseBranch.execute(frame);
+        }
+
+        @Override
+        public Statement visitPrintStmt(Stmt.Print stmt) {
+            var expression = stmt.expression.accept(this);
+            return frame -> {
+                System.out.println(stringify(expression.evaluate(frame)));
+                return NEXT;
+            };
+        }
+
+        @Override
+        public Statement visitReturnStmt(Stmt.Return stmt) {
+            if (stmt.value != null) {
+                var value = stmt.value.accept(this);
+                return value::evaluate;
+            } else if (classStmt != null && function.name.lexeme.equals("init")) {
+                return frame -> ((LoxMethod) frame[0]).getReceiver();
+            } else {
+                return frame -> null;
+            }
+        }
+
+        @Override
+        public Statement visitVarStmt(Stmt.Var stmt) {
+            var declaration = declaration(resolver.varDef(stmt.name));
+            if (stmt.initializer == null) {
+                return frame -> {
+                    declaration.assign(frame, null);
+                    return NEXT;
+                };
+            }
+
+            var initializer = stmt.initializer.accept(this);
+            return frame -> {
+                declaration.assign(frame, initializer.evaluate(frame));
+                return NEXT;
+            };
+        }
+
+        @Override
+        public Statement visitWhileStmt(Stmt.While stmt) {
+            var condition = condition(stmt.condition);
+            var body = stmt.body.accept(this);
+            if (tier != null) {
+                var tier = this.tier;
+                return frame -> {
+                    while (condition.test(frame)) {
+                        tier.count();
+                        var result = body.execute(frame);
+                        if (result != NEXT) return result;
+                    }
+                    return NEXT;
+                };
+            }
+            return frame -> {
+                while (condition.test(frame)) {
+                    var result = body.execute(frame);
+                    if (result != NEXT) return result;
+                }
+                return NEXT;
+            };
+        }
+
+        @Override
+        public Expression visitAssignExpr(Expr.Assign expr) {
+            var varDef = resolver.varDef(expr);
+            if (varDef.isEmpty()) return undefined(expr.name);
+
+            var value = expr.value.accept(this);
+            var assignment = assignment(varDef.get());
+            return frame -> {
+                var result = value.evaluate(frame);
+                assignment.assign(frame, result);
+                return result;
+            };
+        }
+
+        @Override
+        public Expression visitBinaryExpr(Expr.Binary expr) {
+            switch (expr.operator.type) {
+                case EQUAL_EQUAL, BANG_EQUAL, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                    var comparison = comparison(expr);
+                    return frame -> comparison.test(frame);
+                }
+            }
+
+            var left = expr.left.accept(this);
+            int line = expr.operator.line;
+
+            // Arithmetic with a constant number, such as incrementing a counter.
+            if (expr.right instanceof Expr.Literal literal && literal.value instanceof Double number) {
+                double right = number;
+                switch (expr.operator.type) {
+                    case PLUS -> {
+                        return frame -> {
+                            if (left.evaluate(frame) instanceof Double value) return value + right;
+                            throw new LoxException("Operands must be two numbers or two strings.", line);
+                        };
+                    }
+                    case MINUS -> { return frame -> number(left.evaluate(frame), line) - right; }
+                    case STAR -> { return frame -> number(left.evaluate(frame), line) * right; }
+                    case SLASH -> { return frame -> number(left.evaluate(frame), line) / right; }
+                }
+            }
+
+            var right = expr.right.accept(this);
+            return switch (expr.operator.type) {
+                case PLUS -> frame -> add(left.evaluate(frame), right.evaluate(frame), line);
+                case MINUS -> frame -> number(left.evaluate(frame), line) - number(right.evaluate(frame), line);
+                case STAR -> frame -> number(left.evaluate(frame), line) * number(right.evaluate(frame), line);
+                case SLASH -> frame -> number(left.evaluate(frame), line) / number(right.evaluate(frame), line);
+                default -> throw new IllegalStateException("Unexpected value: " + expr.operator);
+            };
+        }
+
+        @Override
+        public Expression visitCallExpr(Expr.Call expr) {
+            var callee = expr.callee.accept(this);
+            var arguments = expr.arguments.stream().map(it -> it.accept(this)).toArray(Expression[]::new);
+            int line = expr.paren.line;
+
+            return switch (arguments.length) {
+                case 0 -> frame -> call(callee.evaluate(frame), NO_ARGUMENTS, line);
+                case 1 -> {
+                    var argument = arguments[0];
+                    yield frame -> call(callee.evaluate(frame), new Object[] { argument.evaluate(frame) }, line);
+                }
+                case 2 -> {
+                    var first = arguments[0];
+                    var second = arguments[1];
+                    yield frame -> call(callee.evaluate(frame), new Object[] { first.evaluate(frame), second.evaluate(frame) }, line);
+                }
+                default -> frame -> {
+                    var function = callee.evaluate(frame);
+                    var values = new Object[arguments.length];
+                    for (int i = 0; i < values.length; i++) values[i] = arguments[i].evaluate(frame);
+                    return call(function, values, line);
+                };
+            };
+        }
+
+        @Override
+        public Expression visitGetExpr(Expr.Get expr) {
+            var object = expr.object.accept(this);
+            var name = expr.name.lexeme;
+            int line = expr.name.line;
+            return frame -> {
+                if (!(object.evaluate(frame) instanceof LoxInstance instance)) throw new LoxException("Only instances have properties.", line);
+                try {
+                    return instance.get(name);
+                } catch (LoxException e) {
+                    throw at(e, line);
+                }
+            };
+        }
+
+        @Override
+        public Expression visitGroupingExpr(Expr.Grouping expr) {
+            return expr.expression.accept(this);
+        }
+
+        @Override
+        public Expression visitLiteralExpr(Expr.Literal expr) {
+            var value = expr.value;
+            return frame -> value;
+        }
+
+        @Override
+        public Expression visitLogicalExpr(Expr.Logical expr) {
+            var left = expr.left.accept(this);
+            var right = expr.right.accept(this);
+            return switch (expr.operator.type) {
+                case OR -> frame -> {
+                    var value = left.evaluate(frame);
+                    return isTruthy(value) ? value : right.evaluate(frame);
+                };
+                case AND -> frame -> {
+                    var value = left.evaluate(frame);
+                    return !isTruthy(value) ? value : right.evaluate(frame);
+                };
+                default -> throw new IllegalArgumentException("Unsupported logical expr type: " + expr.operator.type);
+            };
+        }
+
+        @Override
+        public Expression visitSetExpr(Expr.Set expr) {
+            var object = expr.object.accept(this);
+            var value = expr.value.accept(this);
+            var name = expr.name.lexeme;
+            int line = expr.name.line;
+            return frame -> {
+                if (!(object.evaluate(frame) instanceof LoxInstance instance)) throw new LoxException("Only instances have fields.", line);
+                var result = value.evaluate(frame);
+                instance.set(name, result);
+                return result;
+            };
+        }
+
+        @Override
+        public Expression visitSuperExpr(Expr.Super expr) {
+            int distance = resolver.varDef(expr).orElseThrow().distanceTo(function);
+            var name = expr.method.lexeme;
+            int line = expr.method.line;
+            return frame -> {
+                var method = (LoxMethod) ((LoxCallable) frame[0]).getEnclosing(distance);
+                try {
+                    return method.getLoxClass().findSuperMethod(name).bind(method.getReceiver());
+                } catch (LoxException e) {
+                    throw at(e, line);
+                }
+            };
+        }
+
+        @Override
+        public Expression visitThisExpr(Expr.This expr) {
+            int distance = resolver.varDef(expr).orElseThrow().distanceTo(function);
+            if (distance == 0) return frame -> ((LoxMethod) frame[0]).getReceiver();
+            return frame -> ((LoxMethod) ((LoxCallable) frame[0]).getEnclosing(distance)).getReceiver();
+        }
+
+        @Override
+        public Expression visitUnaryExpr(Expr.Unary expr) {
+            int line = expr.operator.line;
+            return switch (expr.operator.type) {
+                case BANG -> {
+                    var condition = condition(expr.right);
+                    yield frame -> !condition.test(frame);
+                }
+                case MINUS -> {
+                    var right = expr.right.accept(this);
+                    yield frame -> {
+                        if (right.evaluate(frame) instanceof Double value) return -value;
+                        throw new LoxException("Operand must be a number.", line);
+                    };
+                }
+                default -> throw new IllegalArgumentException("Unsupported op: " + expr.operator.type);
+            };
+        }
+
+        @Override
+        public Expression visitVariableExpr(Expr.Variable expr) {
+            return resolver.varDef(expr).map(this::load).orElseGet(() -> undefined(expr.name));
+        }
+
+        private Expression undefined(Token name) {
+            var message = "Undefined variable '" + name.lexeme + "'.";
+            int line = name.line;
+            return frame -> {
+                throw new LoxException(message, line);
+            };
+        }
+    }
+
+    private static boolean declaresFunctions(Stmt stmt) {
+        if (stmt instanceof Stmt.Function || stmt instanceof Stmt.Class) return true;
+        if (stmt instanceof Stmt.Block block) return block.statements.stream().anyMatch(ClosureCompiler::declaresFunctions);
+        if (stmt instanceof Stmt.If ifStmt) return declaresFunctions(ifStmt.thenBranch) || ifStmt.elseBranch != null && declaresFunctions(ifStmt.elseBranch);
+        if (stmt instanceof Stmt.While whileStmt) return declaresFunctions(whileStmt.body);
+        return false;
+    }
+
+    private static LoxCaptured[] cells(Object[] frame) {
+        return ((Closure) frame[0]).cells();
+    }
+
+    private static Object call(Object callee, Object[] args, int line) {
+        if (!(callee instanceof LoxCallable callable)) throw new LoxException("Can only call functions and classes.", line);
+
+        int arity = callable.arity();
+        if (arity != args.length) throw new LoxException("Expected " + arity + " arguments but got " + args.length + ".", line);
+
+        return callable.invoke(args);
+    }
+
+    private static double number(Object value, int line) {
+        if (value instanceof Double number) return number;
+        throw new LoxException("Operands must be numbers.", line);
+    }
+
+    private static Object add(Object left, Object right, int line) {
+        if (left instanceof Double a && right instanceof Double b) return a + b;
+        if (left instanceof String a && right instanceof String b) return a + b;
+        throw new LoxException("Operands must be two numbers or two strings.", line);
+    }
+
+    private static boolean isTruthy(Object value) {
+        if (value == null) return false;
+        if (value instanceof Boolean b) return b;
+        return true;
+    }
+
+    private static String stringify(Object value) {
+        if (value == null) return "nil";
+        if (value instanceof Double) {
+            var text = value.toString();
+            return text.endsWith(".0") ? text.substring(0, text.length() - 2) : text;
+        }
+        return value.toString();
+    }
+
+    /**
+     * Errors thrown by the runtime classes take their line from the stack
+     * trace, which has no Lox frames here, so use the line of the expression.
+     */
+    private static LoxException at(LoxException e, int line) {
+        var message = e.getMessage();
+        return new LoxException(message.substring(0, message.lastIndexOf("\n[line ")), line);
+    }
+}
@@ -0,0 +1,589 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.CompilerResolver.VarDef;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Eliminates common subexpressions in straight-line code.
+ * <p>
+ * The first evaluation of a side effect free expression that is repeated later
+ * is stored in a compiler-generated temporary and the repetitions load the temporary
+ * instead. For example:
+ * <code>
+ * a.x * a.x + a.y * a.y
+ * </code>
+ * becomes
+ * <code>
+ * ($tmp0 = a.x) * $tmp0 + ($tmp1 = a.y) * $tmp1
+ * </code>
+ * <p>
+ * Calls to functions that the {@link SideEffectAnalyzer} summarises as pure are
+ * treated like operators.
+ * <p>
+ * An expression remains available until a variable it reads is assigned or until
+ * a property it reads is set. Other calls can set any property or assign any captured
+ * variable, so they make unavailable all expressions that read properties or captured variables.
+ * <p>
+ * Property reads are only reused when their value is consumed by an operator:
+ * a property may contain a method and each read creates a new bound method.
+ */
+public class CommonSubexpressionEliminator {
+
+    private final CompilerResolver resolver;
+    private final SideEffectAnalyzer sideEffectAnalyzer;
+
+    public CommonSubexpressionEliminator(CompilerResolver resolver, SideEffectAnalyzer sideEffectAnalyzer) {
+        this.resolver = resolver;
+        this.sideEffectAnalyzer = sideEffectAnalyzer;
+    }
+
+    public Stmt.Function execute(Stmt.Function function) {
+        return new FunctionEliminator(function).execute();
+    }
+
+    private static class Candidate {
+        private final Expr first;
+        private final Stmt anchor;
+        private final Set<Token> reads;
+        private final Set<String> properties;
+        private final boolean readsCaptured;
+        private boolean isRepeated = false;
+        private VarDef temporary;
+
+        private Candidate(Expr first, Stmt anchor, Set<Token> reads, Set<String> properties, boolean readsCaptured) {
+            this.first = first;
+            this.anchor = anchor;
+            this.reads = reads;
+            this.properties = properties;
+            this.readsCaptured = readsCaptured;
+        }
+    }
+
+    private class FunctionEliminator implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+        private final Stmt.Function function;
+        private final List<Candidate> candidates = new ArrayList<>();
+        private final Map<Expr, Candidate> firstOccurrences = new IdentityHashMap<>();
+        private final Map<Expr, Candidate> repeats = new IdentityHashMap<>();
+        private Map<Object, Candidate> available = new HashMap<>();
+        private Stmt anchor;
+        private boolean isOperand;
+
+        private FunctionEliminator(Stmt.Function function) {
+            this.function = function;
+        }
+
+        public Stmt.Function execute() {
+            if (function instanceof Compiler.NativeFunction) return function;
+
+            analyze(function.body);
+
+            candidates
+                .stream()
+                .filter(it -> it.isRepeated)
+                .forEach(it -> it.temporary = resolver.declareTemporary(function, line(it.first)));
+
+            return new Stmt.Function(function.name, function.params, new Rewriter().rewrite(function.body));
+        }
+
+        private void analyze(List<Stmt> stmts) {
+            var enclosingAnchor = anchor;
+            for (var stmt : stmts) {
+                anchor = stmt;
+                stmt.accept(this);
+            }
+            anchor = enclosingAnchor;
+        }
+
+        private void analyze(Expr expr, boolean isOperand) {
+            var keyBuilder = isCandidate(expr, isOperand) ? new KeyBuilder() : null;
+            var key = keyBuilder != null ? expr.accept(keyBuilder) : null;
+
+            if (key != null) {
+                var candidate = available.get(key);
+                if (candidate != null) {
+                    // The repeated expression is not evaluated, so neither are its sub-expressions.
+                    candidate.isRepeated = true;
+                    repeats.put(expr, candidate);
+                    return;
+                }
+            }
+
+            this.isOperand = isOperand;
+            expr.accept(this);
+
+            if (key != null) {
+                var candidate = new Candidate(expr, anchor, keyBuilder.reads, keyBuilder.properties, keyBuilder.readsCaptured);
+                candidates.add(candidate);
+                firstOccurrences.put(expr, candidate);
+                available.put(key, candidate);
+            }
+        }
+
+        private boolean isCandidate(Expr expr, boolean isOperand) {
+            if (expr instanceof Expr.Get) {
+                if (!isOperand) return false;
+            } else if (expr instanceof Expr.Call call) {
+                if (!sideEffectAnalyzer.summary(call).isPure()) return false;
+                // A pure function can return its argument, which can be a new bound method.
+                if (call.arguments.stream().anyMatch(this::mayBeBoundMethod)) return false;
+            } else if (!(expr instanceof Expr.Binary) && !(expr instanceof Expr.Unary)) {
+                return false;
+            }
+
+            return expr.accept(new SideEffectCounter(sideEffectAnalyzer)) == 0;
+        }
+
+        /**
+         * Returns true if the expression can evaluate to a bound method that it creates,
+         * whose identity differs each time that it's evaluated.
+         */
+        private boolean mayBeBoundMethod(Expr expr) {
+            if (expr instanceof Expr.Get || expr instanceof Expr.Super) return true;
+            if (expr instanceof Expr.Grouping grouping) return mayBeBoundMethod(grouping.expression);
+            if (expr instanceof Expr.Logical logical) return mayBeBoundMethod(logical.left) || mayBeBoundMethod(logical.right);
+            if (expr instanceof Expr.Assign assign) return mayBeBoundMethod(assign.value);
+            if (expr instanceof Expr.Call call) return call.arguments.stream().anyMatch(this::mayBeBoundMethod);
+            return false;
+        }
+
+        private void kill(Token varToken) {
+            available.values().removeIf(it -> it.reads.contains(varToken));
+        }
+
+        private void killProperty(String name) {
+            available.values().removeIf(it -> it.properties.contains(name));
+        }
+
+        private void killCall() {
+            available.values().removeIf(it -> !it.properties.isEmpty() || it.readsCaptured);
+        }
+
+        private void kill(VarDef varDef) {
+            if (varDef != null) kill(varDef.token());
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            analyze(expr.value, false);
+            resolver.varDef(expr).ifPresent(this::kill);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            // The equality operators can observe the identity of bound methods.
+            var isOperand = switch (expr.operator.type) {
+                case EQUAL_EQUAL, BANG_EQUAL -> false;
+                default -> true;
+            };
+            analyze(expr.left, isOperand);
+            analyze(expr.right, isOperand);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            analyze(expr.callee, false);
+            expr.arguments.forEach(it -> analyze(it, false));
+            if (sideEffectAnalyzer.summary(expr).isWriting()) killCall();
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            analyze(expr.object, true);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            analyze(expr.expression, isOperand);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            analyze(expr.left, false);
+            // The right operand is evaluated conditionally, so expressions
+            // first evaluated there are not available afterwards.
+            var beforeRight = new HashMap<>(available);
+            analyze(expr.right, false);
+            available.entrySet().removeIf(it -> beforeRight.get(it.getKey()) != it.getValue());
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            analyze(expr.object, true);
+            analyze(expr.value, false);
+            killProperty(expr.name.lexeme);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            analyze(expr.right, true);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            analyze(stmt.statements);
+            // Temporaries declared in the block are out of scope after it.
+            available.clear();
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            kill(resolver.varDef(stmt.name));
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            analyze(stmt.expression, false);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            // The function body is eliminated separately, when it is rewritten.
+            kill(resolver.varDef(stmt.name));
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            analyze(stmt.condition, false);
+            var afterCondition = available;
+            available = new HashMap<>(afterCondition);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) {
+                available = new HashMap<>(afterCondition);
+                stmt.elseBranch.accept(this);
+            }
+            available.clear();
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            analyze(stmt.expression, false);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            if (stmt.value != null) analyze(stmt.value, false);
+            available.clear();
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if (stmt.initializer != null) analyze(stmt.initializer, false);
+            kill(resolver.varDef(stmt.name));
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            // The condition and body are evaluated repeatedly, so nothing
+            // evaluated before the loop can be relied on inside it.
+            available.clear();
+            analyze(stmt.condition, false);
+            stmt.body.accept(this);
+            available.clear();
+            return null;
+        }
+
+        private int line(Expr expr) {
+            if (expr instanceof Expr.Get get) return get.name.line;
+            else if (expr instanceof Expr.Call call) return call.paren.line;
+            else if (expr instanceof Expr.Binary binary) return binary.operator.line;
+            else if (expr instanceof Expr.Unary unary) return unary.operator.line;
+            else return 0;
+        }
+
+        /**
+         * Builds a structural key for an expression, collecting the variables
+         * and properties that it reads. Returns null if the expression
+         * cannot be compared structurally.
+         * <p>
+         * Keys are nested lists that hold the declaring tokens of variables, which
+         * are compared by identity, so different variables never have equal keys.
+         */
+        private class KeyBuilder implements Expr.Visitor<Object> {
+            private final Set<Token> reads = new HashSet<>();
+            private final Set<String> properties = new HashSet<>();
+            private boolean readsCaptured = false;
+
+            private List<Object> key(Object prefix, Expr...exprs) {
+                var keys = new ArrayList<>();
+                keys.add(prefix);
+                for (var expr : exprs) {
+                    var key = expr.accept(this);
+                    if (key == null) return null;
+                    keys.add(key);
+                }
+                return keys;
+            }
+
+            @Override
+            public Object visitAssignExpr(Expr.Assign expr) {
+                return null;
+            }
+
+            @Override
+            public Object visitBinaryExpr(Expr.Binary expr) {
+                return key(expr.operator.type, expr.left, expr.right);
+            }
+
+            @Override
+            public Object visitCallExpr(Expr.Call expr) {
+                if (!sideEffectAnalyzer.summary(expr).isPure()) return null;
+                var exprs = new ArrayList<Expr>();
+                exprs.add(expr.callee);
+                exprs.addAll(expr.arguments);
+                return key("call", exprs.toArray(new Expr[0]));
+            }
+
+            @Override
+            public Object visitGetExpr(Expr.Get expr) {
+                properties.add(expr.name.lexeme);
+                return key(List.of("get", expr.name.lexeme), expr.object);
+            }
+
+            @Override
+            public Object visitGroupingExpr(Expr.Grouping expr) {
+                return expr.expression.accept(this);
+            }
+
+            @Override
+            public Object visitLiteralExpr(Expr.Literal expr) {
+                // Values of different types are never equal.
+                return Arrays.asList("literal", expr.value);
+            }
+
+            @Override
+            public Object visitLogicalExpr(Expr.Logical expr) {
+                return key(expr.operator.type, expr.left, expr.right);
+            }
+
+            @Override
+            public Object visitSetExpr(Expr.Set expr) {
+                return null;
+            }
+
+            @Override
+            public Object visitSuperExpr(Expr.Super expr) {
+                return null;
+            }
+
+            @Override
+            public Object visitThisExpr(Expr.This expr) {
+                return "this";
+            }
+
+            @Override
+            public Object visitUnaryExpr(Expr.Unary expr) {
+                return key(expr.operator.type, expr.right);
+            }
+
+            @Override
+            public Object visitVariableExpr(Expr.Variable expr) {
+                var varDef = resolver.varDef(expr);
+                if (varDef.isEmpty()) return null;
+                var token = varDef.get().token();
+                reads.add(token);
+                if (varDef.get().isCaptured()) readsCaptured = true;
+                return token;
+            }
+        }
+
+        private class Rewriter implements Stmt.Visitor<Stmt>, Expr.Visitor<Expr> {
+
+            private List<Stmt> rewrite(List<Stmt> stmts) {
+                var result = new ArrayList<Stmt>();
+                for (var stmt : stmts) {
+                    candidates
+                        .stream()
+                        .filter(it -> it.temporary != null && it.anchor == stmt)
+                        .forEach(it -> result.add(new Stmt.Var(it.temporary.token(), null)));
+                    result.add(stmt.accept(this));
+                }
+                return result;
+            }
+
+            private Expr rewrite(Expr expr) {
+                var repeated = repeats.get(expr);
+                if (repeated != null) {
+                    resolver.incrementReads(repeated.temporary);
+                    return new Expr.Variable(repeated.temporary.token());
+                }
+
+                var result = expr.accept(this);
+
+                var first = firstOccurrences.get(expr);
+                if (first != null && first.temporary != null) {
+                    return new Expr.Assign(first.temporary.token(), result);
+                }
+
+                return result;
+            }
+
+            @Override
+            public Expr visitAssignExpr(Expr.Assign expr) {
+                return new Expr.Assign(expr.name, rewrite(expr.value));
+            }
+
+            @Override
+            public Expr visitBinaryExpr(Expr.Binary expr) {
+                return new Expr.Binary(rewrite(expr.left), expr.operator, rewrite(expr.right));
+            }
+
+            @Override
+            public Expr visitCallExpr(Expr.Call expr) {
+                return new Expr.Call(
+                    rewrite(expr.callee),
+                    expr.paren,
+                    expr.arguments
+                        .stream()
+                        .map(this::rewrite)
+                        .collect(Collectors.toList())
+                );
+            }
+
+            @Override
+            public Expr visitGetExpr(Expr.Get expr) {
+                return new Expr.Get(rewrite(expr.object), expr.name);
+            }
+
+            @Override
+            public Expr visitGroupingExpr(Expr.Grouping expr) {
+                return new Expr.Grouping(rewrite(expr.expression));
+            }
+
+            @Override
+            public Expr visitLiteralExpr(Expr.Literal expr) {
+                return expr;
+            }
+
+            @Override
+            public Expr visitLogicalExpr(Expr.Logical expr) {
+                return new Expr.Logical(rewrite(expr.left), expr.operator, rewrite(expr.right));
+            }
+
+            @Override
+            public Expr visitSetExpr(Expr.Set expr) {
+                return new Expr.Set(rewrite(expr.object), expr.name, rewrite(expr.value));
+            }
+
+            @Override
+            public Expr visitSuperExpr(Expr.Super expr) {
+                return expr;
+            }
+
+            @Override
+            public Expr visitThisExpr(Expr.This expr) {
+                return expr;
+            }
+
+            @Override
+            public Expr visitUnaryExpr(Expr.Unary expr) {
+                return new Expr.Unary(expr.operator, rewrite(expr.right));
+            }
+
+            @Override
+            public Expr visitVariableExpr(Expr.Variable expr) {
+                return expr;
+            }
+
+            @Override
+            public Stmt visitBlockStmt(Stmt.Block stmt) {
+                return new Stmt.Block(rewrite(stmt.statements));
+            }
+
+            @Override
+            public Stmt visitClassStmt(Stmt.Class stmt) {
+                return new Stmt.Class(
+                    stmt.name,
+                    stmt.superclass,
+                    stmt.methods
+                        .stream()
+                        .map(CommonSubexpressionEliminator.this::execute)
+                        .collect(Collectors.toList())
+                );
+            }
+
+            @Override
+            public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+                return new Stmt.Expression(rewrite(stmt.expression));
+            }
+
+            @Override
+            public Stmt visitFunctionStmt(Stmt.Function stmt) {
+                return CommonSubexpressionEliminator.this.execute(stmt);
+            }
+
+            @Override
+            public Stmt visitIfStmt(Stmt.If stmt) {
+                return new Stmt.If(
+                    rewrite(stmt.condition),
+                    stmt.thenBranch.accept(this),
+                    stmt.elseBranch == null ? null : stmt.elseBranch.accept(this)
+                );
+            }
+
+            @Override
+            public Stmt visitPrintStmt(Stmt.Print stmt) {
+                return new Stmt.Print(rewrite(stmt.expression));
+            }
+
+            @Override
+            public Stmt visitReturnStmt(Stmt.Return stmt) {
+                return new Stmt.Return(stmt.keyword, stmt.value == null ? null : rewrite(stmt.value));
+            }
+
+            @Override
+            public Stmt visitVarStmt(Stmt.Var stmt) {
+                return new Stmt.Var(stmt.name, stmt.initializer == null ? null : rewrite(stmt.initializer));
+            }
+
+            @Override
+            public Stmt visitWhileStmt(Stmt.While stmt) {
+                return new Stmt.While(rewrite(stmt.condition), stmt.body.accept(this));
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.craftinginterpreters.lox;
+
+import lox.LoxCallable;
+import proguard.classfile.ClassPool;
+import proguard.io.util.IOUtil;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+import static com.craftinginterpreters.lox.LoxConstants.LOX_MAIN_CLASS;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+/**
+ * An on-disk cache of compiled programs, so that a script that hasn't
+ * changed isn't compiled again.
+ * <p>
+ * Programs are stored as jars named by a hash of the source, the compiler version
+ * and the compiler options. A jar is written to a temporary file and then moved into
+ * place, so that concurrent runs never see a partially written jar. When the cache
+ * grows beyond its maximum size, the least recently used jars are deleted.
+ */
+public class CompileCache {
+
+    public static final long DEFAULT_MAX_SIZE = 256L * 1024 * 1024;
+    private static final String EXTENSION = ".jar";
+
+    private final Path directory;
+    private final long maxSize;
+
+    public CompileCache(Path directory, long maxSize) {
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns <code>$XDG_CACHE_HOME/jlox</code>, or <code>~/.cache/jlox</code>.
+     */
+    public static Path defaultDirectory() {
+        var cacheHome = System.getenv("XDG_CACHE_HOME");
+        var base = cacheHome != null && !cacheHome.isEmpty() ?
+            Paths.get(cacheHome) :
+            Paths.get(System.getProperty("user.home"), ".cache");
+        return base.resolve("jlox");
+    }
+
+    // Hashing the compiler takes a while, so it's only done by runs that use the cache.
+    private static class CompilerVersion {
+        private static final String VERSION = compilerVersion();
+    }
+
+    public String key(String source, CompilerOptions options) {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            for (var part : List.of(CompilerVersion.VERSION, options.toString(), source)) {
+                digest.update(part.getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns the program cached under the given key, if there is one.
+     */
+    public Optional<ClassPool> get(String key) {
+        var jar = jar(key);
+        if (!Files.isRegularFile(jar)) return Optional.empty();
+
+        try {
+            var classPool = IOUtil.read(jar.toString(), false);
+            // The modification time is the last use, for eviction.
+            Files.setLastModifiedTime(jar, FileTime.from(Instant.now()));
+            return Optional.of(classPool);
+        } catch (IOException e) {
+            // The jar may have been evicted by another run in the meantime.
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Stores the program under the given key, and evicts the
+     * least recently used programs if the cache is too large.
+     */
+    public void put(String key, ClassPool classPool) throws IOException {
+        Files.createDirectories(directory);
+        var temporary = Files.createTempFile(directory, key + "-", ".tmp" + EXTENSION);
+        try {
+            IOUtil.writeJar(classPool, temporary.toString(), LOX_MAIN_CLASS);
+            Files.move(temporary, jar(key), ATOMIC_MOVE, REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+
+        evict();
+    }
+
+    private void evict() throws IOException {
+        List<Path> jars;
+        try (var files = Files.list(directory)) {
+            jars = files
+                .filter(this::isCachedJar)
+                .sorted(Comparator.comparing(CompileCache::lastModified).reversed())
+                .toList();
+        }
+
+        long size = 0;
+        for (var jar : jars) {
+            try {
+                size += Files.size(jar);
+                if (size > maxSize) Files.deleteIfExists(jar);
+            } catch (NoSuchFileException ignored) {
+                // Evicted by another run.
+            }
+        }
+    }
+
+    private boolean isCachedJar(Path path) {
+        var name = path.getFileName().toString();
+        // Cached jars are named by their key, temporary jars have a suffix.
+        return name.endsWith(EXTENSION) && name.length() == 64 + EXTENSION.length();
+    }
+
+    private Path jar(String key) {
+        return directory.resolve(key + EXTENSION);
+    }
+
+    private static FileTime lastModified(Path path) {
+        try {
+            return Files.getLastModifiedTime(path);
+        } catch (NoSuchFileException e) {
+            return FileTime.fromMillis(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Identifies the build of the compiler, so that programs compiled by a different build
+     * are not used: a hash of the jars, or class directories, of the compiler, the runtime
+     * and ProGuardCORE. A build that can't be identified never uses a cached program.
+     */
+    private static String compilerVersion() {
+        try {
+            var digest = MessageDigest.getInstance("SHA-256");
+            // A fat jar contains all of them.
+            var locations = new LinkedHashSet<Path>();
+            for (var type : List.of(Compiler.class, LoxCallable.class, ClassPool.class)) {
+                var codeSource = type.getProtectionDomain().getCodeSource();
+                if (codeSource == null) return UUID.randomUUID().toString();
+                locations.add(Paths.get(codeSource.getLocation().toURI()));
+            }
+            for (var location : locations) hash(digest, location);
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (IOException | URISyntaxException | NoSuchAlgorithmException | IllegalArgumentException e) {
+            return UUID.randomUUID().toString();
+        }
+    }
+
+    private static void hash(MessageDigest digest, Path location) throws IOException {
+        if (!Files.isDirectory(location)) {
+            digest.update(Files.readAllBytes(location));
+            return;
+        }
+
+        List<Path> files;
+        try (var walk = Files.walk(location)) {
+            files = walk.filter(Files::isRegularFile).sorted().toList();
+        }
+        for (var file : files) {
+            digest.update(location.relativize(file).toString().getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(Files.readAllBytes(file));
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.CompileServer.Request;
+import com.craftinginterpreters.lox.CompileServer.Response;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.jar.JarInputStream;
+
+import static com.craftinginterpreters.lox.LoxConstants.LOX_MAIN_CLASS;
+import static proguard.classfile.util.ClassUtil.externalClassName;
+
+/**
+ * Compiles scripts with a {@link CompileServer} and runs the compiled
+ * program in this process.
+ */
+public class CompileClient {
+
+    private final Path socket;
+
+    public CompileClient(Path socket) {
+        this.socket = socket;
+    }
+
+    public static boolean isRunning(Path socket) {
+        try {
+            SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Sends the flags and source to the compile server, and returns
+     * its response, or nothing if no compile server is listening.
+     */
+    public Optional<Response> compile(List<String> flags, String source) throws IOException {
+        SocketChannel channel;
+        try {
+            channel = SocketChannel.open(UnixDomainSocketAddress.of(socket));
+        } catch (IOException e) {
+            return Optional.empty();
+        }
+
+        try (channel;
+             var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            new Request(flags, source).write(out);
+            return Optional.of(Response.read(in));
+        }
+    }
+
+    /**
+     * Runs the main class of a compiled jar.
+     */
+    public static void run(byte[] jar, String[] args) throws IOException {
+        try {
+            new JarClassLoader(jar)
+                .loadClass(externalClassName(LOX_MAIN_CLASS))
+                .getDeclaredMethod("main", String[].class)
+                .invoke(null, (Object) args);
+        } catch (IllegalAccessException | InvocationTargetException | NoSuchMethodException | ClassNotFoundException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Loads classes from a jar in memory. The runtime classes in the
+     * jar are loaded by the parent, which already has them.
+     */
+    private static class JarClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classes = new HashMap<>();
+
+        private JarClassLoader(byte[] jar) throws IOException {
+            super(CompileClient.class.getClassLoader());
+            try (var in = new JarInputStream(new ByteArrayInputStream(jar))) {
+                for (var entry = in.getNextJarEntry(); entry != null; entry = in.getNextJarEntry()) {
+                    var name = entry.getName();
+                    if (name.endsWith(".class")) {
+                        classes.put(externalClassName(name.substring(0, name.length() - ".class".length())), in.readAllBytes());
+                    }
+                }
+            }
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            var bytes = classes.get(name);
+            if (bytes == null) throw new ClassNotFoundException(name);
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
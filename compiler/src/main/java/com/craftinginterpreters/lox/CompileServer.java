@@ -0,0 +1,267 @@
+package com.craftinginterpreters.lox;
+
+import org.jetbrains.annotations.Nullable;
+import proguard.classfile.ClassPool;
+import proguard.io.util.IOUtil;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static com.craftinginterpreters.lox.LoxConstants.LOX_MAIN_CLASS;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+
+/**
+ * A daemon that keeps a warmed-up compiler running, so that scripts are compiled
+ * without paying for JVM start-up and JIT warm-up on every run.
+ * <p>
+ * The server listens on a Unix-domain socket. A {@link CompileClient} sends the compiler
+ * flags and the source of a script and receives the exit status, the compiler output
+ * and the compiled jar; the program itself runs in the client process, with the
+ * client's arguments and standard streams.
+ * <p>
+ * Requests are compiled concurrently, except for those that ask for debug output,
+ * which is captured by redirecting <code>System.out</code>.
+ */
+public class CompileServer {
+
+    private static final int WARM_UP_ITERATIONS = 10;
+    // Longer strings and jars, or more flags, are rejected as invalid.
+    private static final int MAX_LENGTH = 256 * 1024 * 1024;
+    private static final int MAX_FLAGS = 1024;
+    private static final String WARM_UP_SOURCE = """
+        class Counter {
+            init(start) { this.count = start; }
+            next() { this.count = this.count + 1; return this.count; }
+        }
+        fun makeAdder(n) {
+            fun add(x) { return x + n; }
+            return add;
+        }
+        fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }
+        var counter = Counter(0);
+        var add = makeAdder(2);
+        for (var i = 0; i < 10; i = i + 1) print add(counter.next()) + fib(i);
+        """;
+
+    private final Path socket;
+    private final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        var thread = new Thread(runnable, "jlox-compile-server");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public CompileServer(Path socket) {
+        this.socket = socket;
+    }
+
+    /**
+     * Returns <code>jlox-&lt;user&gt;.sock</code> in the temporary directory.
+     */
+    public static Path defaultSocket() {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "jlox-" + System.getProperty("user.name") + ".sock");
+    }
+
+    /**
+     * Listens for compile requests until the process is stopped.
+     */
+    public void serve() throws IOException {
+        if (CompileClient.isRunning(socket)) throw new IOException("a compile server is already listening on " + socket);
+        // A socket file left behind by a server that was killed.
+        Files.deleteIfExists(socket);
+
+        warmUp();
+
+        try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            bind(server);
+            socket.toFile().deleteOnExit();
+            System.out.println("Listening on " + socket);
+
+            while (true) {
+                var channel = server.accept();
+                executor.execute(() -> handle(channel));
+            }
+        }
+    }
+
+    /**
+     * Binds the server to the socket so that only this user can ever connect to it: the
+     * socket is created in a directory that only this user can access, and is moved into
+     * place once its own permissions are restricted.
+     */
+    private void bind(ServerSocketChannel server) throws IOException {
+        var parent = socket.toAbsolutePath().getParent();
+        Path directory;
+        try {
+            directory = Files.createTempDirectory(parent, ".jlox-", PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+        } catch (UnsupportedOperationException e) {
+            directory = Files.createTempDirectory(parent, ".jlox-");
+        }
+
+        var bound = directory.resolve("jlox.sock");
+        try {
+            server.bind(UnixDomainSocketAddress.of(bound));
+            try {
+                Files.setPosixFilePermissions(bound, PosixFilePermissions.fromString("rw-------"));
+            } catch (UnsupportedOperationException ignored) {
+            }
+            Files.move(bound, socket, ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(bound);
+            Files.delete(directory);
+        }
+    }
+
+    private void handle(SocketChannel channel) {
+        try (channel;
+             var in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+             var out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+            compile(Request.read(in)).write(out);
+        } catch (IOException ignored) {
+            // The client went away, or sent an invalid request.
+        }
+    }
+
+    /**
+     * Compiles the program in the request, in the same way as <code>jlox script.lox</code> would.
+     */
+    private Response compile(Request request) {
+        CompilerOptions options;
+        Optional<CompileCache> cache;
+        try {
+            var flags = new ArrayList<>(request.flags());
+            cache = Main.parseCache(flags);
+            options = Main.parseOptions(flags);
+        } catch (IllegalArgumentException e) {
+            return new Response(64, e.getMessage() + "\n" + Main.USAGE + "\n", "", new byte[0]);
+        }
+
+        if (options.dumps().isEmpty()) return compile(request.source(), options, cache, new ByteArrayOutputStream());
+
+        // The debug output is printed to System.out, so capture it
+        // and only compile one program with debug output at a time.
+        synchronized (this) {
+            var output = new ByteArrayOutputStream();
+            var stdout = System.out;
+            System.setOut(new PrintStream(output, true, UTF_8));
+            try {
+                return compile(request.source(), options, cache, output);
+            } finally {
+                System.setOut(stdout);
+            }
+        }
+    }
+
+    private Response compile(String source, CompilerOptions options, Optional<CompileCache> cache, ByteArrayOutputStream output) {
+        try {
+            var result = cache.isPresent() && options.dumps().isEmpty() ?
+                Main.compile(source, options, cache.get()) :
+                new LoxCompiler(options).compile(source);
+            var errors = new StringBuilder();
+            result.diagnostics().forEach(it -> errors.append(it).append('\n'));
+            var jar = result.status() == 0 ? jar(result.classPool()) : new byte[0];
+            return new Response(result.status(), output.toString(UTF_8), errors.toString(), jar);
+        } catch (IOException | RuntimeException e) {
+            var stackTrace = new StringWriter();
+            e.printStackTrace(new PrintWriter(stackTrace));
+            return new Response(70, output.toString(UTF_8), stackTrace.toString(), new byte[0]);
+        }
+    }
+
+    /**
+     * Compiles a small program a number of times, so that the
+     * compiler is already JIT compiled when the first request arrives.
+     */
+    private void warmUp() {
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            var response = compile(new Request(List.of(), WARM_UP_SOURCE));
+            assert response.status() == 0 : response.errors();
+        }
+    }
+
+    private static byte[] jar(@Nullable ClassPool classPool) throws IOException {
+        var file = Files.createTempFile("jlox-", ".jar");
+        try {
+            IOUtil.writeJar(classPool, file.toString(), LOX_MAIN_CLASS);
+            return Files.readAllBytes(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    record Request(List<String> flags, String source) {
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(flags.size());
+            for (var flag : flags) writeString(out, flag);
+            writeString(out, source);
+            out.flush();
+        }
+
+        static Request read(DataInputStream in) throws IOException {
+            int size = readLength(in, MAX_FLAGS);
+            var flags = new ArrayList<String>(size);
+            for (int i = 0; i < size; i++) flags.add(readString(in));
+            return new Request(flags, readString(in));
+        }
+    }
+
+    record Response(int status, String output, String errors, byte[] jar) {
+        void write(DataOutputStream out) throws IOException {
+            out.writeInt(status);
+            writeString(out, output);
+            writeString(out, errors);
+            writeBytes(out, jar);
+            out.flush();
+        }
+
+        static Response read(DataInputStream in) throws IOException {
+            return new Response(in.readInt(), readString(in), readString(in), readBytes(in));
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        writeBytes(out, string.getBytes(UTF_8));
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        return new String(readBytes(in), UTF_8);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        var bytes = new byte[readLength(in, MAX_LENGTH)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    private static int readLength(DataInputStream in, int max) throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > max) throw new IOException("Invalid length " + length + ".");
+        return length;
+    }
+}
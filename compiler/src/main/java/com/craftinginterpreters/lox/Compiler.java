@@ -1,5 +1,7 @@
 package com.craftinginterpreters.lox;
 
+import com.craftinginterpreters.lox.CompilerOptions.Dump;
+import com.craftinginterpreters.lox.CompilerOptions.Pass;
 import com.craftinginterpreters.lox.CompilerResolver.VarDef;
 import lox.LoxNative;
 import org.jetbrains.annotations.Nullable;
@@ -13,11 +15,14 @@ import proguard.classfile.attribute.visitor.AttributeNameFilter;
 import proguard.classfile.attribute.visitor.MultiAttributeVisitor;
 import proguard.classfile.editor.BootstrapMethodsAttributeAdder;
 import proguard.classfile.editor.ClassBuilder;
+import proguard.classfile.editor.ClassMemberSorter;
 import proguard.classfile.editor.CompactCodeAttributeComposer;
 import proguard.classfile.editor.CompactCodeAttributeComposer.Label;
 import proguard.classfile.editor.ConstantPoolEditor;
+import proguard.classfile.editor.ConstantPoolSorter;
 import proguard.classfile.editor.LineNumberTableAttributeTrimmer;
 import proguard.classfile.io.ProgramClassReader;
+import proguard.classfile.util.ClassPoolClassLoader;
 import proguard.classfile.visitor.AllMethodVisitor;
 import proguard.classfile.visitor.ClassPrinter;
 import proguard.classfile.visitor.ClassVersionFilter;
@@ -26,13 +31,17 @@ import proguard.preverify.CodePreverifier;
 import java.io.DataInputStream;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.BiFunction;
 import java.util.function.Function;
 import java.util.stream.Stream;
 
-import static com.craftinginterpreters.lox.Lox.hadError;
-import static com.craftinginterpreters.lox.Lox.hadRuntimeError;
 import static com.craftinginterpreters.lox.LoxConstants.LOX_CALLABLE;
 import static com.craftinginterpreters.lox.LoxConstants.LOX_CAPTURED;
 import static com.craftinginterpreters.lox.LoxConstants.LOX_CLASS;
@@ -40,6 +49,7 @@ import static com.craftinginterpreters.lox.LoxConstants.LOX_FUNCTION;
 import static com.craftinginterpreters.lox.LoxConstants.LOX_INSTANCE;
 import static com.craftinginterpreters.lox.LoxConstants.LOX_INVOKER;
 import static com.craftinginterpreters.lox.LoxConstants.LOX_MAIN_CLASS;
+import static com.craftinginterpreters.lox.LoxConstants.LOX_MEMOIZED_FUNCTION;
 import static com.craftinginterpreters.lox.LoxConstants.LOX_METHOD;
 import static com.craftinginterpreters.lox.LoxConstants.LOX_NATIVE;
 import static com.craftinginterpreters.lox.TokenType.FUN;
@@ -47,57 +57,79 @@ import static com.craftinginterpreters.lox.TokenType.IDENTIFIER;
 import static java.util.Collections.emptyList;
 import static proguard.classfile.AccessConstants.FINAL;
 import static proguard.classfile.AccessConstants.PRIVATE;
+import static proguard.classfile.AccessConstants.PROTECTED;
 import static proguard.classfile.AccessConstants.PUBLIC;
 import static proguard.classfile.AccessConstants.STATIC;
 import static proguard.classfile.AccessConstants.VARARGS;
-import static proguard.classfile.VersionConstants.CLASS_VERSION_1_8;
 import static proguard.classfile.constant.MethodHandleConstant.REF_INVOKE_STATIC;
 import static proguard.classfile.util.ClassUtil.internalClassName;
 
 public class Compiler {
 
-    private static final boolean DEBUG = System.getProperty("jlox.compiler.debug") != null;
-    private final ClassPool programClassPool = new ClassPool();
-    private final CompilerResolver resolver = new CompilerResolver();
-    private final VariableAllocator allocator = new VariableAllocator(resolver);
-
-
-    public @Nullable ClassPool compile(List<Stmt> program) {
+    // Appended to the class name of a lazily compiled function for the class of its body;
+    // class names derived from Lox identifiers never contain a dash.
+    private static final String LAZY_BODY_SUFFIX = "-body";
+
+    private final CompilerOptions options;
+    private final Diagnostics diagnostics;
+    private final boolean debug;
+    private ClassPool programClassPool = new ClassPool();
+    private final CompilerResolver resolver;
+    private final VariableAllocator allocator;
+    private final PeepholeOptimizer peepholeOptimizer;
+    private SideEffectAnalyzer sideEffectAnalyzer;
+    private Map<String, String> exports = Map.of();
+    private boolean directCalls = true;
+    // The bodies of lazily compiled functions that haven't been called yet, by class name.
+    private final Map<String, Runnable> lazyBodies = new ConcurrentHashMap<>();
+    private boolean lazy;
+    // Globals declared by programs that ran before this one.
+    private Collection<String> globals = Set.of();
+
+    public Compiler() {
+        this(CompilerOptions.defaults());
+    }
 
-        addClass(
-            programClassPool,
-            lox.LoxCallable.class,
-            lox.LoxCaptured.class,
-            lox.LoxClass.class,
-            lox.LoxException.class,
-            lox.LoxFunction.class,
-            lox.LoxInstance.class,
-            lox.LoxInvoker.class,
-            lox.LoxMethod.class,
-            lox.LoxNative.class
-        );
+    public Compiler(CompilerOptions options) {
+        this(options, new Diagnostics());
+    }
 
-        var mainFunction = new Stmt.Function(
-            new Token(FUN, LOX_MAIN_CLASS, null, 0),
-            emptyList(),
-            prependNative(program)
-        );
+    /**
+     * Creates a compiler that reports errors to the given diagnostics.
+     */
+    public Compiler(CompilerOptions options, Diagnostics diagnostics) {
+        this.options = options;
+        this.diagnostics = diagnostics;
+        this.debug = options.isEnabled(Dump.CLASSES);
+        this.resolver = new CompilerResolver(options.isEnabled(Dump.RESOLVER), diagnostics);
+        this.allocator = new VariableAllocator(resolver, options.isEnabled(Dump.ALLOCATOR));
+        this.peepholeOptimizer = new PeepholeOptimizer(options.isEnabled(Dump.PEEPHOLE));
+    }
 
-        resolver.resolve(mainFunction);
+    /**
+     * Compiles a program that can use the given globals, which were declared by programs
+     * that ran before it, such as the earlier inputs of a REPL. The program must export
+     * its globals, and the fields of the given ones in the main function have to be set
+     * to their cells before it's invoked.
+     */
+    public @Nullable ClassPool compile(List<Stmt> program, Collection<String> globals) {
+        this.globals = globals;
+        return compile(program);
+    }
 
-        if (hadError || hadRuntimeError) return null;
+    public @Nullable ClassPool compile(List<Stmt> program) {
 
-        mainFunction = new Optimizer(resolver).execute(mainFunction, 3);
+        RuntimeClasses.CLASSES.forEach(programClassPool::addClass);
 
-        if (hadError || hadRuntimeError) return null;
+        var mainFunction = analyze(program);
 
-        allocator.resolve(mainFunction);
+        if (mainFunction == null) return null;
 
         var mainMethodClass = new FunctionCompiler().compile(mainFunction);
 
         new ClassBuilder(mainMethodClass)
             .addMethod(PUBLIC | STATIC, "main", "([Ljava/lang/String;)V", 65_535, composer -> {
-                LoxComposer loxComposer = new LoxComposer(composer, programClassPool, resolver, allocator);
+                LoxComposer loxComposer = new LoxComposer(composer, programClassPool, resolver, allocator, lazy);
                 var error = loxComposer.createLabel();
                 //noinspection unchecked
                 loxComposer
@@ -112,20 +144,20 @@ public class Compiler {
                         .return_(),
                      __ -> __
                     .catch_("java/lang/StackOverflowError", it -> {
-                        if (!DEBUG) it.pop();
-                        if (DEBUG) it.invokevirtual("java/lang/Throwable", "printStackTrace", "()V");
+                        if (!debug) it.pop();
+                        if (debug) it.invokevirtual("java/lang/Throwable", "printStackTrace", "()V");
                          it.getstatic("java/lang/System", "err", "Ljava/io/PrintStream;")
                         .ldc("Stack overflow.")
                         .invokevirtual("java/io/PrintStream", "println", "(Ljava/lang/Object;)V")
                         .goto_(error);
                          return it;
                     }).catchAll(it -> {
-                        if (DEBUG) it.dup();
+                        if (debug) it.dup();
                         it.getstatic("java/lang/System", "err", "Ljava/io/PrintStream;")
                           .swap()
                           .invokevirtual("java/lang/Throwable", "getMessage", "()Ljava/lang/String;")
                           .invokevirtual("java/io/PrintStream", "println", "(Ljava/lang/Object;)V");
-                        if (DEBUG) it.invokevirtual("java/lang/Throwable", "printStackTrace", "()V");
+                        if (debug) it.invokevirtual("java/lang/Throwable", "printStackTrace", "()V");
                         return it.goto_(error);
                     }))
                     .label(error)
@@ -136,49 +168,239 @@ public class Compiler {
 
         programClassPool.addClass(mainMethodClass);
 
-        ClassPool classPool = preverify(programClassPool);
-        if (DEBUG) classPool.classesAccept("!lox/**", new ClassPrinter());
-        return classPool;
+        // Helpers are outlined into the main class in the order functions happen to be
+        // compiled, so sort it to make the output independent of thread scheduling.
+        mainMethodClass.accept(new ClassMemberSorter());
+        mainMethodClass.accept(new ConstantPoolSorter());
+
+        // The other generated classes are finished as soon as they are complete.
+        finish(mainMethodClass);
+        if (options.isEnabled(Pass.PEEPHOLE)) peepholeOptimizer.report();
+        if (debug) programClassPool.classesAccept("!lox/**", new ClassPrinter());
+        return programClassPool;
     }
 
-    private ClassPool preverify(ClassPool programClassPool) {
-        programClassPool.classesAccept(clazz -> {
-            try {
-                clazz.accept(
-                    new ClassVersionFilter(CLASS_VERSION_1_8,
-                    new AllMethodVisitor(
-                    new AllAttributeVisitor(
-                    new AttributeNameFilter(Attribute.CODE,
-                    new MultiAttributeVisitor(
-                    new CodePreverifier(false),
-                    // TODO: see local_mutual_recursion.loxisEven;
-                    //  unreachable code is removed by CodePreverifier and the line numbers are not updated
-                    new AllAttributeVisitor(new LineNumberTableAttributeTrimmer())))))));
-            } catch (Exception e) {
-                clazz.accept(new ClassPrinter());
-                throw e;
+    /**
+     * Compiles the program to closures instead of classes, for programs that
+     * run for too short a time to pay for generating and loading classes.
+     */
+    public @Nullable ClosureCompiler.Program compileToClosures(List<Stmt> program) {
+        var mainFunction = analyze(program);
+
+        if (mainFunction == null) return null;
+
+        return new ClosureCompiler(resolver, allocator).compile(mainFunction);
+    }
+
+    /**
+     * Compiles the program to classes whose functions only call a class with their body,
+     * which is generated when the returned class loader first loads it, so that the time to
+     * compile a run depends on the functions that it calls rather than on all of them.
+     * <p>
+     * Each generated class has its own copy of the helpers, since the main class
+     * may already be loaded when they're needed.
+     *
+     * @return a class loader for the classes of the program.
+     */
+    public @Nullable ClassLoader compileLazily(List<Stmt> program) {
+        lazy = true;
+        var classPool = compile(program);
+        if (classPool == null) return null;
+        return new ClassPoolClassLoader(classPool) {
+            @Override
+            public Class<?> findClass(String name) throws ClassNotFoundException {
+                compileBody(internalClassName(name));
+                return super.findClass(name);
             }
-        });
+        };
+    }
+
+    /**
+     * Generates the body class with the given name, if it's a lazily compiled body that hasn't been generated yet.
+     */
+    private synchronized void compileBody(String className) {
+        var body = lazyBodies.remove(className);
+        if (body != null) body.run();
+    }
+
+    /**
+     * Compiles the program to closures, which compile the functions that get hot to classes
+     * with {@link #compileFunction(Stmt.Function)}, in the background.
+     */
+    public @Nullable ClosureCompiler.Program compileTiered(List<Stmt> program) {
+        var mainFunction = analyze(program);
 
+        if (mainFunction == null) return null;
+
+        return new ClosureCompiler(resolver, allocator, this::compileFunction).compile(mainFunction);
+    }
+
+    /**
+     * Compiles a single function of a program that was compiled to closures, to a class pool
+     * of its own with the class of the function and a main class for the helpers.
+     * <p>
+     * The classes of the functions that it calls are never loaded, so calls are never direct,
+     * and the function can't declare functions or classes of its own.
+     */
+    synchronized ClassPool compileFunction(Stmt.Function function) {
+        programClassPool = new ClassPool();
+        directCalls = false;
+        RuntimeClasses.CLASSES.forEach(programClassPool::addClass);
+
+        // Helpers are outlined into the main class, which has no code of its own here.
+        var mainClass = new ClassBuilder(options.targetClassVersion(), PUBLIC, LOX_MAIN_CLASS, "java/lang/Object").getProgramClass();
+        programClassPool.addClass(mainClass);
+
+        new FunctionCompiler().compile(function);
+        mainClass.accept(new ClassMemberSorter());
+        finish(mainClass);
         return programClassPool;
     }
 
+    /**
+     * Resolves and optimizes the program and allocates its variables,
+     * returning its main function, or <code>null</code> if it has errors.
+     */
+    private @Nullable Stmt.Function analyze(List<Stmt> program) {
+        var mainFunction = new Stmt.Function(
+            new Token(FUN, LOX_MAIN_CLASS, null, 0),
+            emptyList(),
+            prependNative(program)
+        );
+
+        resolver.resolve(mainFunction, globals);
+
+        if (diagnostics.hasErrors()) return null;
+
+        if (options.exportGlobals()) exports = resolver.export();
+
+        if (options.isEnabled(Pass.SCALAR_REPLACEMENT)) mainFunction = new ScalarReplacer(resolver).execute(mainFunction);
+
+        sideEffectAnalyzer = new SideEffectAnalyzer(resolver).analyze(mainFunction);
+
+        if (options.isEnabled(Pass.OPTIMIZER)) mainFunction = new Optimizer(resolver, sideEffectAnalyzer, diagnostics).execute(mainFunction, options.optimizerPasses());
+
+        if (diagnostics.hasErrors()) return null;
+
+        if (options.isEnabled(Pass.CSE)) mainFunction = new CommonSubexpressionEliminator(resolver, sideEffectAnalyzer).execute(mainFunction);
+
+        allocator.resolve(mainFunction);
+
+        return mainFunction;
+    }
+
+    /**
+     * Returns the Java field names of the exported globals in the main class, by name.
+     */
+    public Map<String, String> exports() {
+        return exports;
+    }
+
+    /**
+     * Optimizes and preverifies a generated class, once its code is complete.
+     */
+    private void finish(ProgramClass programClass) {
+        if (options.isEnabled(Pass.PEEPHOLE)) peepholeOptimizer.optimize(programClass);
+        preverify(programClass);
+    }
+
+    /**
+     * Adds the stack map frames to a generated class. The runtime classes
+     * are compiled by javac, so they already have them.
+     */
+    private void preverify(ProgramClass programClass) {
+        try {
+            programClass.accept(
+                new ClassVersionFilter(options.targetClassVersion(),
+                new AllMethodVisitor(
+                new AllAttributeVisitor(
+                new AttributeNameFilter(Attribute.CODE,
+                new MultiAttributeVisitor(
+                new CodePreverifier(false),
+                // TODO: see local_mutual_recursion.loxisEven;
+                //  unreachable code is removed by CodePreverifier and the line numbers are not updated
+                new AllAttributeVisitor(new LineNumberTableAttributeTrimmer())))))));
+        } catch (Exception e) {
+            programClass.accept(new ClassPrinter());
+            throw e;
+        }
+    }
+
+    private void addProgramClass(ProgramClass programClass) {
+        synchronized (programClassPool) {
+            programClassPool.addClass(programClass);
+        }
+    }
+
     private class FunctionCompiler implements Stmt.Visitor<LoxComposer>, Expr.Visitor<LoxComposer> {
 
         private LoxComposer composer;
         private Stmt.Function currentFunction;
         private Stmt.Class currentClass;
+        private final List<Runnable> nested = new ArrayList<>();
 
         public ProgramClass compile(Stmt.Function functionStmt) {
-            return compile(null, functionStmt);
+            var programClass = createFunctionClass(null, functionStmt);
+            compile(null, functionStmt, programClass);
+            return programClass;
+        }
+
+        /**
+         * Creates the class for a function or method nested in the current function.
+         * <p>
+         * Its code is generated once the code of the current function is complete, so
+         * that the classes of the current function and the nested function are never
+         * modified at the same time.
+         */
+        private ProgramClass compileNested(Stmt.Class classStmt, Stmt.Function functionStmt) {
+            var compiler = new FunctionCompiler();
+            var programClass = compiler.createFunctionClass(classStmt, functionStmt);
+            nested.add(() -> compiler.compile(classStmt, functionStmt, programClass));
+            return programClass;
         }
 
-        private ProgramClass compile(Stmt.Class classStmt, Stmt.Function functionStmt) {
+        private void compile(Stmt.Class classStmt, Stmt.Function functionStmt, ProgramClass programClass) {
+            var invokeMethod = (ProgramMethod) programClass.findMethod(isMemoized(classStmt, functionStmt) ? "invokeUnmemoized" : "invoke", null);
+            if (lazy && !(functionStmt instanceof NativeFunction) && !programClass.getName().equals(LOX_MAIN_CLASS)) {
+                compileLazily(classStmt, functionStmt, programClass, invokeMethod);
+            } else {
+                compile(classStmt, functionStmt, programClass, invokeMethod);
+            }
+        }
+
+        /**
+         * Compiles the invoke method of a function to a call to the static <code>invoke</code> method of
+         * its body class, with the function as its first parameter, so that the body's code is the same
+         * as the invoke method's would be. The body class is generated when it's first loaded.
+         */
+        private void compileLazily(Stmt.Class classStmt, Stmt.Function functionStmt, ProgramClass programClass, ProgramMethod invokeMethod) {
+            var bodyClassName = programClass.getName() + LAZY_BODY_SUFFIX;
+            var descriptor = "(L" + programClass.getName() + ";[Ljava/lang/Object;)Ljava/lang/Object;";
+            var composer = new CompactCodeAttributeComposer(programClass);
+            composer
+                .beginCodeFragment(10)
+                .aload_0()
+                .aload_1()
+                .invokestatic(bodyClassName, "invoke", descriptor)
+                .areturn()
+                .endCodeFragment()
+                .addCodeAttribute(programClass, invokeMethod);
+            finish(programClass);
+
+            lazyBodies.put(bodyClassName, () -> {
+                var bodyClass = new ClassBuilder(options.targetClassVersion(), PUBLIC, bodyClassName, "java/lang/Object")
+                    .addMethod(PUBLIC | STATIC, "invoke", descriptor)
+                    .getProgramClass();
+                if (allocator.hasCalls(functionStmt)) addBootstrapMethod(bodyClass);
+                new FunctionCompiler().compile(classStmt, functionStmt, bodyClass, (ProgramMethod) bodyClass.findMethod("invoke", descriptor));
+                addProgramClass(bodyClass);
+            });
+        }
+
+        private void compile(Stmt.Class classStmt, Stmt.Function functionStmt, ProgramClass programClass, ProgramMethod invokeMethod) {
             currentFunction = functionStmt;
             currentClass = classStmt;
-            var programClass = createFunctionClass(classStmt, functionStmt);
-            var invokeMethod = (ProgramMethod) programClass.findMethod("invoke", null);
-            composer = new LoxComposer(new CompactCodeAttributeComposer(programClass), programClassPool, resolver, allocator);
+            composer = new LoxComposer(new CompactCodeAttributeComposer(programClass), programClassPool, resolver, allocator, lazy);
             composer.beginCodeFragment(65_535);
 
             var params = functionStmt.params
@@ -195,7 +417,12 @@ public class Compiler {
                     .invokestatic(LOX_NATIVE, functionStmt.name.lexeme, "(" + "Ljava/lang/Object;".repeat(functionStmt.params.size()) + ")Ljava/lang/Object;")
                     .areturn();
             } else {
-                if (params.stream().anyMatch(VarDef::isRead)) {
+                var ir = options.isEnabled(Pass.IR) ?
+                    new IrBuilder(resolver, sideEffectAnalyzer, directCalls).build(classStmt, functionStmt) :
+                    Optional.<Ir.Function>empty();
+
+                // The IR declares its own parameters.
+                if (ir.isEmpty() && params.stream().anyMatch(VarDef::isRead)) {
                     composer.aload_1();
                     for (int i = 0; i < params.size(); i++) {
                         if (params.get(i).isRead()) {
@@ -209,32 +436,21 @@ public class Compiler {
                     composer.pop();
                 }
 
-                resolver
+                allocator
                     .captured(functionStmt)
                     .stream()
                     .filter(it -> !it.isGlobal())
-                    .filter(VarDef::isRead)
                     .forEach(captured -> composer
                         .aload_0()
-                        .getfield(composer.getTargetClass().getName(), captured.getJavaFieldName(), "L" + LOX_CAPTURED + ";")
+                        .getfield(resolver.javaClassName(functionStmt), captured.getJavaFieldName(), "L" + LOX_CAPTURED + ";")
                         .astore(allocator.slot(functionStmt, captured))
                     );
 
-                functionStmt.body.forEach(
-                    stmt -> stmt.accept(this)
-                );
-
-                if (functionStmt.body.stream().noneMatch(stmt -> stmt instanceof Stmt.Return)) {
-                    if (classStmt != null && functionStmt.name.lexeme.equals("init")) {
-                        composer
-                            .aload_0()
-                            .invokevirtual(LOX_METHOD, "getReceiver", "()L" + LOX_INSTANCE + ";")
-                            .areturn();
-                    } else {
-                        composer
-                            .aconst_null()
-                            .areturn();
-                    }
+                if (ir.isPresent()) {
+                    IrPassManager.defaultPasses(options.isEnabled(Dump.IR)).run(ir.get());
+                    new IrCompiler(composer, resolver, allocator, this, this).compile(ir.get());
+                } else {
+                    compileBody(classStmt, functionStmt);
                 }
             }
             composer.endCodeFragment();
@@ -245,17 +461,41 @@ public class Compiler {
                 throw e;
             }
 
-            return programClass;
+            // Helpers are still outlined into the main class until all functions are compiled.
+            if (!resolver.javaClassName(functionStmt).equals(LOX_MAIN_CLASS)) finish(programClass);
+
+            if (options.parallel()) ForkJoinTask.invokeAll(nested.stream().map(ForkJoinTask::adapt).toList());
+            else nested.forEach(Runnable::run);
+        }
+
+        private void compileBody(Stmt.Class classStmt, Stmt.Function functionStmt) {
+            functionStmt.body.forEach(
+                stmt -> stmt.accept(this)
+            );
+
+            if (functionStmt.body.stream().noneMatch(stmt -> stmt instanceof Stmt.Return)) {
+                if (classStmt != null && functionStmt.name.lexeme.equals("init")) {
+                    composer
+                        .aload_0()
+                        .invokevirtual(LOX_METHOD, "getReceiver", "()L" + LOX_INSTANCE + ";")
+                        .areturn();
+                } else {
+                    composer
+                        .aconst_null()
+                        .areturn();
+                }
+            }
         }
 
         private ProgramClass createFunctionClass(Stmt.Class classStmt, Stmt.Function function) {
-            boolean isMain = resolver.javaClassName(function).equals(LOX_MAIN_CLASS);
             boolean isMethod = classStmt != null;
+            boolean isMemoized = isMemoized(classStmt, function);
+            var superClass = isMethod ? LOX_METHOD : isMemoized ? LOX_MEMOIZED_FUNCTION : LOX_FUNCTION;
             var classBuilder = new ClassBuilder(
-                CLASS_VERSION_1_8,
+                options.targetClassVersion(),
                 PUBLIC,
                 resolver.javaClassName(function),
-                isMethod ? LOX_METHOD : LOX_FUNCTION
+                superClass
             )
             .addMethod(PUBLIC, "getName", "()Ljava/lang/String;", 10, composer -> composer
                 .ldc(function.name.lexeme)
@@ -263,25 +503,26 @@ public class Compiler {
             .addMethod(PUBLIC, "arity", "()I", 10, composer -> composer
                 .pushInt(function.params.size())
                 .ireturn())
-            .addMethod(PUBLIC | VARARGS, "invoke", "([Ljava/lang/Object;)Ljava/lang/Object;");
+            .addMethod(
+                isMemoized ? PROTECTED : PUBLIC | VARARGS,
+                isMemoized ? "invokeUnmemoized" : "invoke",
+                "([Ljava/lang/Object;)Ljava/lang/Object;"
+            );
 
             var variables = resolver.variables(function);
-            var variablesCapturedByFunction = resolver.captured(function).stream().filter(VarDef::isRead).toList();
+            var variablesCapturedByFunction = allocator.captured(function);
             var capturedVariablesDeclaredInFunction = variables.stream().filter(VarDef::isCaptured).filter(VarDef::isRead);
             var lateInitVars = variables.stream().filter(VarDef::isLateInit).toList();
 
-            if (isMain) {
-                // main can't capture variables, but variables declared in main can be captured.
-                capturedVariablesDeclaredInFunction.forEach(global -> classBuilder.
-                    addField(PUBLIC | STATIC, global.getJavaFieldName(), "L" + LOX_CAPTURED + ";")
+            // Captured globals are fields of the main function instance, which is created for
+            // each run of the program, so that runs don't share state. Main can't capture variables.
+            // A global redeclared as another kind of variable shares its field.
+            Stream.concat(variablesCapturedByFunction.stream(), capturedVariablesDeclaredInFunction)
+                .map(VarDef::getJavaFieldName)
+                .distinct()
+                .forEach(field -> classBuilder
+                    .addField(PUBLIC, field, "L" + LOX_CAPTURED + ";")
                 );
-            } else {
-                Stream.concat(variablesCapturedByFunction.stream(), capturedVariablesDeclaredInFunction)
-                    .distinct()
-                    .forEach(captured -> classBuilder
-                        .addField(PUBLIC, captured.getJavaFieldName(), "L" + LOX_CAPTURED + ";")
-                    );
-            }
 
             Function<LoxComposer, LoxComposer> captureComposer = composer -> {
                 if (!variablesCapturedByFunction.isEmpty()) {
@@ -290,7 +531,10 @@ public class Compiler {
                         if (varDef.isGlobal()) {
                             composer
                                 .dup()
-                                .getstatic(LOX_MAIN_CLASS, varDef.getJavaFieldName(), "L" + LOX_CAPTURED + ";")
+                                .aload_0()
+                                .invokeinterface(LOX_CALLABLE, "getMain", "()L" + LOX_CALLABLE + ";")
+                                .checkcast(LOX_MAIN_CLASS)
+                                .getfield(LOX_MAIN_CLASS, varDef.getJavaFieldName(), "L" + LOX_CAPTURED + ";")
                                 .putfield(resolver.javaClassName(function), varDef.getJavaFieldName(), "L" + LOX_CAPTURED + ";");
                         } else {
                             composer
@@ -315,34 +559,24 @@ public class Compiler {
                 return composer;
             };
 
-            if (isMain) {
-                if (!lateInitVars.isEmpty()) {
-                    classBuilder.addMethod(PRIVATE | STATIC, "<clinit>", "()V", 65535, composer -> {
-                        var loxComposer = new LoxComposer(composer, programClassPool, resolver, allocator);
-                        lateInitVars.forEach(varDef -> loxComposer
-                            .aconst_null()
-                            .box(varDef)
-                            .putstatic(LOX_MAIN_CLASS, varDef.getJavaFieldName(), "L" + LOX_CAPTURED + ";"));
-                        composer.return_();
-                    });
-                }
-            }
-
             classBuilder
                 .addMethod(PUBLIC, "<init>", "(L" + (isMethod ? LOX_CLASS : LOX_CALLABLE) + ";)V", 100, composer -> {
-                    var loxComposer = new LoxComposer(composer, programClassPool, resolver, allocator);
+                    var loxComposer = new LoxComposer(composer, programClassPool, resolver, allocator, lazy);
                     loxComposer
                         .aload_0()
-                        .aload_1()
-                        .invokespecial(isMethod ? LOX_METHOD : LOX_FUNCTION, "<init>", "(L" + (isMethod ? LOX_CLASS : LOX_CALLABLE) + ";)V");
-
-                    if (!isMain) {
-                        lateInitVars.forEach(varDef -> loxComposer
-                            .aload_0()
-                            .aconst_null()
-                            .box(varDef)
-                            .putfield(loxComposer.getTargetClass().getName(), varDef.getJavaFieldName(), "L" + LOX_CAPTURED + ";"));
-                    }
+                        .aload_1();
+
+                    if (isMemoized) loxComposer
+                        .pushInt(options.memoizeCapacity())
+                        .invokespecial(superClass, "<init>", "(L" + LOX_CALLABLE + ";I)V");
+                    else loxComposer
+                        .invokespecial(superClass, "<init>", "(L" + (isMethod ? LOX_CLASS : LOX_CALLABLE) + ";)V");
+
+                    lateInitVars.forEach(varDef -> loxComposer
+                        .aload_0()
+                        .aconst_null()
+                        .box(varDef)
+                        .putfield(loxComposer.getTargetClass().getName(), varDef.getJavaFieldName(), "L" + LOX_CAPTURED + ";"));
 
                     // Capturing a method's variables can be done here, since we don't need
                     // store the method before capturing as a method itself cannot be captured.
@@ -353,7 +587,7 @@ public class Compiler {
 
             if (!isMethod && !variablesCapturedByFunction.isEmpty()) {
                 classBuilder.addMethod(PUBLIC, "capture", "()V", 65_535, composer -> captureComposer
-                    .apply(new LoxComposer(composer, programClassPool, resolver, allocator))
+                    .apply(new LoxComposer(composer, programClassPool, resolver, allocator, lazy))
                     .return_());
             }
 
@@ -368,25 +602,25 @@ public class Compiler {
 
             var programClass = classBuilder.getProgramClass();
 
-            if (new FunctionCallCounter().count(function) > 0) {
+            if (allocator.hasCalls(function)) {
                 addBootstrapMethod(programClass);
             }
 
-            programClassPool.addClass(programClass);
+            addProgramClass(programClass);
 
             return programClass;
         }
 
         private ProgramClass createClass(Stmt.Class classStmt) {
             ClassBuilder classBuilder = new ClassBuilder(
-                CLASS_VERSION_1_8,
+                options.targetClassVersion(),
                 PUBLIC,
                 resolver.javaClassName(classStmt),
                 LOX_CLASS
             );
 
             classBuilder
-                .addMethod(PUBLIC, "<init>", "(L" + LOX_CALLABLE + ";" + (classStmt.superclass != null ? "L" + LOX_CLASS + ";" : "") + ")V", 65_535, composer -> new LoxComposer(composer, programClassPool, resolver, allocator)
+                .addMethod(PUBLIC, "<init>", "(L" + LOX_CALLABLE + ";" + (classStmt.superclass != null ? "L" + LOX_CLASS + ";" : "") + ")V", 65_535, composer -> new LoxComposer(composer, programClassPool, resolver, allocator, lazy)
                     .aload_0()
                     .aload_1()
                     .also(__ -> classStmt.superclass != null ? __.aload_2() : __.aconst_null())
@@ -394,7 +628,7 @@ public class Compiler {
                     .also(methodInitializer -> {
                         for (var method : classStmt.methods) {
                             classBuilder.addField(PRIVATE | FINAL, resolver.javaFieldName(method), "L" + LOX_METHOD + ";");
-                            var methodClazz = new FunctionCompiler().compile(classStmt, method);
+                            var methodClazz = compileNested(classStmt, method);
 
                             methodInitializer
                                 .line(method.name.line)
@@ -408,7 +642,7 @@ public class Compiler {
                         return methodInitializer;
                     })
                     .return_())
-                .addMethod(PUBLIC, "findMethod", "(Ljava/lang/String;)L" + LOX_METHOD + ";", 500, composer -> new LoxComposer(composer, programClassPool, resolver, allocator)
+                .addMethod(PUBLIC, "findMethod", "(Ljava/lang/String;)L" + LOX_METHOD + ";", 500, composer -> new LoxComposer(composer, programClassPool, resolver, allocator, lazy)
                     .aload_1()
                     .switch_(2, switchBuilder -> {
                         classStmt.methods.forEach(method -> switchBuilder.case_(
@@ -438,7 +672,8 @@ public class Compiler {
                     .areturn());
 
             var clazz = classBuilder.getProgramClass();
-            programClassPool.addClass(clazz);
+            finish(clazz);
+            addProgramClass(clazz);
             return clazz;
         }
 
@@ -483,19 +718,16 @@ public class Compiler {
         @Override
         public LoxComposer visitExpressionStmt(Stmt.Expression expressionStmt) {
             expressionStmt.expression.accept(this);
-            var expectedStackSize = expressionStmt.expression.accept(new StackSizeComputer());
+            var expectedStackSize = allocator.stackSize(expressionStmt);
             for (int i = 0; i < expectedStackSize; i++) composer.pop();
             return composer;
         }
 
         @Override
         public LoxComposer visitFunctionStmt(Stmt.Function functionStmt) {
-            var functionClazz = new FunctionCompiler().compile(functionStmt);
+            var functionClazz = compileNested(null, functionStmt);
 
-            boolean capturesAnyVariables = resolver
-                .captured(functionStmt)
-                .stream()
-                .anyMatch(VarDef::isRead);
+            boolean capturesAnyVariables = !allocator.captured(functionStmt).isEmpty();
 
             composer
                 .new_(functionClazz)
@@ -528,68 +760,9 @@ public class Compiler {
 
         @Override
         public LoxComposer visitPrintStmt(Stmt.Print stmt) {
-            return composer
-                .also(composer -> stmt.expression.accept(this))
-                .outline(programClassPool, LOX_MAIN_CLASS, "println", "(Ljava/lang/Object;)V", composer -> {
-                    var nonNull = composer.createLabel();
-                    var isObject = composer.createLabel();
-                    var end = composer.createLabel();
-                    // Stringify before printing.
-                    composer
-                        .dup()
-                        // O, O
-                        .ifnonnull(nonNull)
-                        // O
-                        .pop()
-                        //
-                        .ldc("nil")
-                        // "nil"
-                        .goto_(end)
-
-                        .label(nonNull)
-                        // O
-                        .dup()
-                        // O, O
-                        .instanceof_("java/lang/Double", null)
-                        // O, I
-                        .ifeq(isObject)
-                        // O
-                        .invokevirtual("java/lang/Object", "toString", "()Ljava/lang/String;")
-                        // O.toString
-                        .dup()
-                        // O.toString, O.toString
-                        .ldc(".0")
-                        // O.toString, O.toString, ".0"
-                        .invokevirtual("java/lang/String", "endsWith", "(Ljava/lang/String;)Z")
-                        // O.toString, Z
-                        .ifeq(end)
-                        // O.toString
-                        .dup()
-                        // O.toString, O.toString
-                        .iconst_0()
-                        // O.toString, O.toString, 0
-                        .swap()
-                        // O.toString, 0, O.toString
-                        .invokevirtual("java/lang/String", "length", "()I")
-                        // O.toString, 0, O.toString.length
-                        .iconst_2()
-                        // O.toString, 0, O.toString.length, 2
-                        .isub()
-                        // O.toString, 0, O.toString.length - 2
-                        .invokevirtual("java/lang/String", "substring", "(II)Ljava/lang/String;")
-                        // S
-                        .goto_(end)
-
-                        .label(isObject)
-                        // O
-                        .invokevirtual("java/lang/Object", "toString", "()Ljava/lang/String;")
-                        // S
-                        .label(end)
-                        .getstatic("java/lang/System", "out", "Ljava/io/PrintStream;")
-                        .swap()
-                        .invokevirtual("java/io/PrintStream", "println", "(Ljava/lang/Object;)V");
-                    }
-                );
+            return stmt.expression
+                .accept(this)
+                .loxprint();
         }
 
         @Override
@@ -694,82 +867,7 @@ public class Compiler {
                     .iconst_1()
                     .ixor()
                     .box("java/lang/Boolean");
-                case PLUS -> composer.outline(programClassPool, LOX_MAIN_CLASS, "add", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", outlineComposer -> {
-                    var composer = new LoxComposer(outlineComposer, programClassPool, resolver, allocator);
-                    var bothDouble = composer.createLabel();
-                    var checkAbIsString = composer.createLabel();
-                    var checkBaIsString = composer.createLabel();
-                    var bothString = composer.createLabel();
-                    var throwException = composer.createLabel();
-                    var throwExceptionPop = composer.createLabel();
-                    var end = composer.createLabel();
-                    //noinspection unchecked
-                    composer
-                            .dup()
-                            // A, B, B
-                            .instanceof_("java/lang/Double")
-                            // A, B, Z
-                            .ifeq(checkAbIsString)
-                            // A, B
-                            .swap()
-                            // B, A
-                            .dup()
-                            // B, A, A
-                            .instanceof_("java/lang/Double")
-                            // B, A, Z
-                            .ifeq(checkBaIsString)
-                            // B, A
-                            .swap()
-                            // A, B
-                            .label(bothDouble)
-                            .unbox("java/lang/Double")
-                            // A, Ba, Bb
-                            .dup2_x1()
-                            // Ba, Bb, A, Ba, Bb
-                            .pop2()
-                            // Ba, Bb, A
-                            .unbox("java/lang/Double")
-                            // Ba, Bb, Aa, Ab
-                            .dadd()
-                            // Ba, Bb + Aa, Ab
-                            .box("java/lang/Double")
-                            // A + B
-                            .goto_(end)
-
-                            .label(checkBaIsString)
-                            .swap()
-                            .label(checkAbIsString)
-                            // A, B
-                            .dup()
-                            // A, B, B
-                            .instanceof_("java/lang/String")
-                            // A, B, Z
-                            .ifeq(throwExceptionPop)
-                            // A, B
-                            .swap()
-                            // B, A
-                            .instanceof_("java/lang/String")
-                            // B, Z
-                            .ifeq(throwException)
-                            // B
-                            .pop()
-                            //
-                            .label(bothString)
-                            .concat(
-                                CompactCodeAttributeComposer::aload_0,
-                                CompactCodeAttributeComposer::aload_1
-                            )
-                            .goto_(end)
-
-                            .label(throwExceptionPop)
-                            .pop()
-                            .label(throwException)
-                            .pop()
-                            .loxthrow("Operands must be two numbers or two strings.")
-
-                            .label(end);
-                    }
-                );
+                case PLUS -> composer.loxadd();
 
                 case MINUS -> binaryNumberOp.apply("java/lang/Double", Composer::dsub);
                 case SLASH -> binaryNumberOp.apply("java/lang/Double", Composer::ddiv);
@@ -798,6 +896,9 @@ public class Compiler {
 
         @Override
         public LoxComposer visitCallExpr(Expr.Call expr) {
+            var function = sideEffectAnalyzer.function(expr);
+            if (function.isPresent() && directCalls) return directCall(expr, function.get());
+
             return expr.callee.accept(this)
                 .also(composer -> {
                     expr.arguments.forEach(it -> it.accept(this));
@@ -810,32 +911,47 @@ public class Compiler {
                         null);
         }
 
+        /**
+         * Calls a function that is known at compile time directly, without
+         * the dynamic type and arity checks of {@link lox.LoxInvoker}.
+         */
+        private LoxComposer directCall(Expr.Call expr, Stmt.Function function) {
+            var arity = function.params.size();
+            if (arity != expr.arguments.size()) {
+                // The call always fails, but only after evaluating the callee and arguments.
+                expr.callee.accept(this).pop();
+                expr.arguments.forEach(it -> it.accept(this).pop());
+                return composer
+                    .line(expr.paren.line)
+                    .loxthrow("Expected " + arity + " arguments but got " + expr.arguments.size() + ".");
+            }
+
+            expr.callee.accept(this);
+            if (!resolver.varDef(function.name).isLateInit()) composer.checkcast(resolver.javaClassName(function));
+            composer
+                .pushInt(arity)
+                .anewarray("java/lang/Object", null);
+            for (int i = 0; i < arity; i++) {
+                var argument = expr.arguments.get(i);
+                composer
+                    .dup()
+                    .pushInt(i)
+                    .also(it -> argument.accept(this))
+                    .aastore();
+            }
+
+            return composer
+                .line(expr.paren.line)
+                .loxinvoke(function);
+        }
+
         @Override
         public LoxComposer visitGetExpr(Expr.Get expr) {
             return composer
                 .ldc(expr.name.lexeme)
                 .also(composer -> expr.object.accept(this))
                 .line(expr.name.line)
-                .outline(programClassPool, LOX_MAIN_CLASS, "get", "(Ljava/lang/String;Ljava/lang/Object;)Ljava/lang/Object;", composer -> {
-                   var notInstance = composer.createLabel();
-                   var end = composer.createLabel();
-                   var loxComposer = new LoxComposer(composer, programClassPool, resolver, allocator);
-
-                   loxComposer
-                       .dup()
-                       .instanceof_(LOX_INSTANCE)
-                       .ifeq(notInstance)
-                       .checkcast(LOX_INSTANCE)
-                       .swap()
-                       .invokevirtual(LOX_INSTANCE, "get", "(Ljava/lang/String;)Ljava/lang/Object;")
-                       .goto_(end)
-
-                       .label(notInstance)
-                       .pop()
-                       .loxthrow("Only instances have properties.")
-
-                       .label(end);
-                });
+                .loxget();
         }
 
         @Override
@@ -845,19 +961,7 @@ public class Compiler {
 
         @Override
         public LoxComposer visitLiteralExpr(Expr.Literal expr) {
-            if (expr.value instanceof Boolean b) {
-                return b ?
-                        composer.getstatic("java/lang/Boolean", "TRUE", "Ljava/lang/Boolean;") :
-                        composer.getstatic("java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;");
-            } else if (expr.value instanceof String s) {
-                return composer.ldc(s);
-            } else if (expr.value instanceof Double d) {
-                return composer.pushDouble(d).box("java/lang/Double");
-            } else if (expr.value == null) {
-                return composer.aconst_null();
-            } else {
-                throw new IllegalArgumentException("Unknown literal type: " + expr.value);
-            }
+            return composer.loxliteral(expr.value);
         }
 
         @Override
@@ -1002,14 +1106,50 @@ public class Compiler {
         bootstrapMethodsAttributeAdder.visitBootstrapMethodInfo(programClass, bootstrapMethodInfo);
     }
 
-    private static void addClass(ClassPool classPool, Class<?>...classes) {
-        for (var clazz : classes) {
-            var is = Compiler.class.getClassLoader().getResourceAsStream(internalClassName(clazz.getName()) + ".class");
-            assert is != null;
-            var classReader = new ProgramClassReader(new DataInputStream(is));
-            var programClass = new ProgramClass();
-            programClass.accept(classReader);
-            classPool.addClass(programClass);
+    /**
+     * Pure recursive functions are memoized when enabled, since their
+     * results depend only on their arguments.
+     */
+    private boolean isMemoized(Stmt.Class classStmt, Stmt.Function function) {
+        return options.isEnabled(Pass.MEMOIZATION) &&
+            classStmt == null &&
+            !(function instanceof NativeFunction) &&
+            !function.params.isEmpty() &&
+            sideEffectAnalyzer.isRecursive(function) &&
+            sideEffectAnalyzer.summary(function).isPure();
+    }
+
+    /**
+     * The runtime classes are parsed once, when first needed, and shared by all
+     * compilations; they are never modified since only generated classes are
+     * optimized and preverified.
+     */
+    private static class RuntimeClasses {
+        private static final List<ProgramClass> CLASSES = read(
+            lox.LoxCallable.class,
+            lox.LoxCaptured.class,
+            lox.LoxClass.class,
+            lox.LoxException.class,
+            lox.LoxFunction.class,
+            lox.LoxInstance.class,
+            lox.LoxInvoker.class,
+            lox.LoxMemo.class,
+            lox.LoxMemoizedFunction.class,
+            lox.LoxMethod.class,
+            lox.LoxNative.class
+        );
+
+        private static List<ProgramClass> read(Class<?>...classes) {
+            var programClasses = new ArrayList<ProgramClass>();
+            for (var clazz : classes) {
+                var is = Compiler.class.getClassLoader().getResourceAsStream(internalClassName(clazz.getName()) + ".class");
+                assert is != null;
+                var classReader = new ProgramClassReader(new DataInputStream(is));
+                var programClass = new ProgramClass();
+                programClass.accept(classReader);
+                programClasses.add(programClass);
+            }
+            return List.copyOf(programClasses);
         }
     }
 
@@ -1023,6 +1163,8 @@ public class Compiler {
     private List<Stmt> prependNative(List<Stmt> stmts) {
         var nativeFunctions = new ArrayList<Stmt>();
         for (Method declaredMethod : LoxNative.class.getDeclaredMethods()) {
+            // Already declared, possibly redefined, by an earlier program.
+            if (globals.contains(declaredMethod.getName())) continue;
             var list = new ArrayList<Token>();
             for (int j = 0, parametersLength = declaredMethod.getParameters().length; j < parametersLength; j++) {
                 list.add(new Token(IDENTIFIER, String.valueOf(j), null, 0));
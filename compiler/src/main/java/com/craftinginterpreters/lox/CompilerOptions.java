@@ -0,0 +1,182 @@
+package com.craftinginterpreters.lox;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Optional;
+import java.util.Set;
+
+import static proguard.classfile.VersionConstants.CLASS_VERSION_1_8;
+
+/**
+ * Options that control how a Lox program is compiled.
+ * <p>
+ * An optimization level selects a default set of passes, each of which can then
+ * be enabled or disabled individually:
+ * <ul>
+ *     <li><code>-O0</code> runs no optional passes, for the fastest compile;</li>
+ *     <li><code>-O1</code> runs a single optimizer pass and the peephole optimizer;</li>
+ *     <li><code>-O2</code>, the default, also runs scalar replacement, common subexpression
+ *     elimination and compiles functions via the SSA IR;</li>
+ *     <li><code>-O3</code> runs more optimizer passes and memoizes pure recursive functions.</li>
+ * </ul>
+ */
+public record CompilerOptions(
+    int level,
+    Set<Pass> passes,
+    int optimizerPasses,
+    int memoizeCapacity,
+    int targetClassVersion,
+    boolean parallel,
+    boolean exportGlobals,
+    Set<Dump> dumps
+) {
+    public static final int DEFAULT_LEVEL = 2;
+    public static final int MAX_LEVEL = 3;
+    private static final int DEFAULT_MEMOIZE_CAPACITY = 1024;
+
+    public enum Pass {
+        SCALAR_REPLACEMENT("scalar-replacement"),
+        OPTIMIZER("optimizer"),
+        CSE("cse"),
+        IR("ir"),
+        MEMOIZATION("memoize"),
+        PEEPHOLE("peephole");
+
+        public final String flag;
+
+        Pass(String flag) {
+            this.flag = flag;
+        }
+
+        public static Optional<Pass> of(String flag) {
+            return Arrays.stream(values()).filter(it -> it.flag.equals(flag)).findFirst();
+        }
+    }
+
+    public enum Dump {
+        RESOLVER("resolver"),
+        ALLOCATOR("allocator"),
+        IR("ir"),
+        PEEPHOLE("peephole"),
+        CLASSES("classes");
+
+        public final String flag;
+
+        Dump(String flag) {
+            this.flag = flag;
+        }
+
+        public static Optional<Dump> of(String flag) {
+            return Arrays.stream(values()).filter(it -> it.flag.equals(flag)).findFirst();
+        }
+    }
+
+    public CompilerOptions {
+        passes = Collections.unmodifiableSet(passes.isEmpty() ? EnumSet.noneOf(Pass.class) : EnumSet.copyOf(passes));
+        dumps = Collections.unmodifiableSet(dumps.isEmpty() ? EnumSet.noneOf(Dump.class) : EnumSet.copyOf(dumps));
+    }
+
+    /**
+     * Returns the options for the given optimization level.
+     */
+    public static CompilerOptions level(int level) {
+        var passes = switch (level) {
+            case 0 -> EnumSet.noneOf(Pass.class);
+            case 1 -> EnumSet.of(Pass.OPTIMIZER, Pass.PEEPHOLE);
+            case 2 -> EnumSet.complementOf(EnumSet.of(Pass.MEMOIZATION));
+            case 3 -> EnumSet.allOf(Pass.class);
+            default -> throw new IllegalArgumentException("Unknown optimization level " + level + ".");
+        };
+        var optimizerPasses = switch (level) {
+            case 0, 1 -> 1;
+            case 2 -> 3;
+            default -> 5;
+        };
+        return new CompilerOptions(level, passes, optimizerPasses, DEFAULT_MEMOIZE_CAPACITY, CLASS_VERSION_1_8, true, false, EnumSet.noneOf(Dump.class));
+    }
+
+    /**
+     * Returns the options for the default optimization level, adjusted by the
+     * <code>jlox.*</code> system properties that were used before these options existed.
+     */
+    public static CompilerOptions defaults() {
+        var options = level(DEFAULT_LEVEL);
+
+        int memoizeCapacity = Integer.getInteger("jlox.compiler.memoize", 0);
+        if (memoizeCapacity > 0) options = options.with(Pass.MEMOIZATION, true).withMemoizeCapacity(memoizeCapacity);
+        if (!Boolean.parseBoolean(System.getProperty("jlox.compiler.ir", "true"))) options = options.with(Pass.IR, false);
+        if (!Boolean.parseBoolean(System.getProperty("jlox.compiler.peephole", "true"))) options = options.with(Pass.PEEPHOLE, false);
+        if (!Boolean.parseBoolean(System.getProperty("jlox.compiler.parallel", "true"))) options = options.withParallel(false);
+
+        if (System.getProperty("jlox.resolver.debug") != null) options = options.with(Dump.RESOLVER);
+        if (System.getProperty("lox.variableallocator.debug") != null) options = options.with(Dump.ALLOCATOR);
+        if (System.getProperty("jlox.ir.debug") != null) options = options.with(Dump.IR);
+        if (System.getProperty("jlox.peephole.debug") != null) options = options.with(Dump.PEEPHOLE);
+        if (System.getProperty("jlox.compiler.debug") != null) options = options.with(Dump.CLASSES);
+
+        return options;
+    }
+
+    public boolean isEnabled(Pass pass) {
+        return passes.contains(pass);
+    }
+
+    public boolean isEnabled(Dump dump) {
+        return dumps.contains(dump);
+    }
+
+    /**
+     * Returns the options for another optimization level, keeping the
+     * target, parallelism, exports and dumps of these options.
+     */
+    public CompilerOptions withLevel(int level) {
+        var options = level(level);
+        return new CompilerOptions(level, options.passes, options.optimizerPasses, memoizeCapacity, targetClassVersion, parallel, exportGlobals, dumps);
+    }
+
+    public CompilerOptions with(Pass pass, boolean enabled) {
+        var passes = EnumSet.noneOf(Pass.class);
+        passes.addAll(this.passes);
+        if (enabled) passes.add(pass);
+        else passes.remove(pass);
+        return new CompilerOptions(level, passes, optimizerPasses, memoizeCapacity, targetClassVersion, parallel, exportGlobals, dumps);
+    }
+
+    public CompilerOptions with(Dump dump) {
+        var dumps = EnumSet.of(dump);
+        dumps.addAll(this.dumps);
+        return new CompilerOptions(level, passes, optimizerPasses, memoizeCapacity, targetClassVersion, parallel, exportGlobals, dumps);
+    }
+
+    public CompilerOptions withOptimizerPasses(int optimizerPasses) {
+        if (optimizerPasses < 1) throw new IllegalArgumentException("The number of optimizer passes must be positive.");
+        return new CompilerOptions(level, passes, optimizerPasses, memoizeCapacity, targetClassVersion, parallel, exportGlobals, dumps);
+    }
+
+    public CompilerOptions withMemoizeCapacity(int memoizeCapacity) {
+        if (memoizeCapacity < 1) throw new IllegalArgumentException("The memoization capacity must be positive.");
+        return new CompilerOptions(level, passes, optimizerPasses, memoizeCapacity, targetClassVersion, parallel, exportGlobals, dumps);
+    }
+
+    /**
+     * The generated classes use invokedynamic and are preverified,
+     * so they must target at least Java 8.
+     */
+    public CompilerOptions withTargetClassVersion(int targetClassVersion) {
+        if (targetClassVersion < CLASS_VERSION_1_8) throw new IllegalArgumentException("The target must be at least Java 8.");
+        return new CompilerOptions(level, passes, optimizerPasses, memoizeCapacity, targetClassVersion, parallel, exportGlobals, dumps);
+    }
+
+    public CompilerOptions withParallel(boolean parallel) {
+        return new CompilerOptions(level, passes, optimizerPasses, memoizeCapacity, targetClassVersion, parallel, exportGlobals, dumps);
+    }
+
+    /**
+     * Keeps the variables declared in the global scope of the program in fields of the
+     * main function, so that a host can read them, and call its functions, after a run.
+     */
+    public CompilerOptions withExportGlobals(boolean exportGlobals) {
+        return new CompilerOptions(level, passes, optimizerPasses, memoizeCapacity, targetClassVersion, parallel, exportGlobals, dumps);
+    }
+}
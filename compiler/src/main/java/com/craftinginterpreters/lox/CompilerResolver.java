@@ -4,43 +4,77 @@ import com.craftinginterpreters.lox.Stmt.Function;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
-import java.lang.reflect.InvocationTargetException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
 import java.util.Stack;
-import java.util.WeakHashMap;
 import java.util.stream.Collectors;
 
-import static com.craftinginterpreters.lox.Lox.error;
 import static com.craftinginterpreters.lox.LoxConstants.LOX_MAIN_CLASS;
+import static com.craftinginterpreters.lox.TokenType.IDENTIFIER;
 import static com.craftinginterpreters.lox.TokenType.SUPER;
 import static com.craftinginterpreters.lox.TokenType.THIS;
 
 public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-    public static boolean DEBUG = System.getProperty("jlox.resolver.debug") != null;
-
-    private final Map<Token, VarDef> variables = new WeakHashMap<>();
-    private final Map<Token, VarDef> varUse = new WeakHashMap<>();
-    private final Map<Token, Integer> writes = new WeakHashMap<>();
-    private final Map<Token, Integer> reads = new WeakHashMap<>();
-    private final Stack<Map<VarDef, Boolean>> scopes = new Stack<>();
+    private final boolean debug;
+    private final Diagnostics diagnostics;
+
+    // Side tables are keyed by the identity of the declaring or accessing token.
+    private final Map<Token, VarDef> variables = new IdentityHashMap<>();
+    private final Map<Token, List<VarDef>> variablesByFunction = new IdentityHashMap<>();
+    private final Map<Token, VarDef> varUse = new IdentityHashMap<>();
+    private final Map<Token, Integer> writes = new IdentityHashMap<>();
+    private final Map<Token, Integer> reads = new IdentityHashMap<>();
+    // Each scope maps a name to its variable.
+    private final Stack<Map<String, Binding>> scopes = new Stack<>();
     private final Stack<Function> functionStack = new Stack<>();
     private final Stack<Stmt.Class> classStack = new Stack<>();
-    private final Map<Token, Set<VarDef>> captured = new WeakHashMap<>();
-    private final Map<Token, String> javaClassNames = new WeakHashMap<>();
-    private final Map<Token, String> javaFieldNames = new WeakHashMap<>();
-    private final Set<UnresolvedLocal> unresolved = new HashSet<>();
+    private final Map<Token, Set<VarDef>> captured = new IdentityHashMap<>();
+    private final Map<Token, String> javaClassNames = new IdentityHashMap<>();
+    private final Set<String> usedJavaClassNames = new HashSet<>();
+    private final Map<Token, String> javaFieldNames = new IdentityHashMap<>();
+    // Unresolved accesses indexed by name, to be resolved by a later global declaration.
+    private final Map<String, List<UnresolvedLocal>> unresolved = new HashMap<>();
+    // The declaring tokens of the variables in the global scope, by name.
+    private final Map<String, Token> globalScope = new LinkedHashMap<>();
+    // Globals declared by programs that ran before this one, and their declaring tokens.
+    private Collection<String> predeclared = Set.of();
+    private final Set<Token> predeclaredTokens = new HashSet<>();
+    private int temporaryCount = 0;
+
+    public CompilerResolver(Diagnostics diagnostics) {
+        this(false, diagnostics);
+    }
+
+    public CompilerResolver(boolean debug, Diagnostics diagnostics) {
+        this.debug = debug;
+        this.diagnostics = diagnostics;
+    }
 
     public void resolve(Function main) {
+        resolve(main, Set.of());
+    }
+
+    /**
+     * Resolves a program that can use the given globals, which were declared by programs
+     * that ran before it, such as the earlier inputs of a REPL. They are late init
+     * variables, so that their cells can be replaced by the shared ones before the main
+     * function runs, and so that redeclaring one assigns its shared cell.
+     */
+    public void resolve(Function main, Collection<String> globals) {
+        predeclared = globals;
         resolveFunction(main);
 
-        if (DEBUG) {
+        if (debug) {
             System.out.println("variables: " + variables.values());
             System.out.println("globals: " + variables.values().stream().filter(VarDef::isGlobal).collect(Collectors.toSet()));
             System.out.println("captured: " + variables.values().stream().filter(VarDef::isCaptured).collect(Collectors.toSet()));
@@ -81,9 +115,15 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
         javaClassName(function.name, namePrefix);
         beginScope(function);
         for (Token param : function.params) {
-            var varDef = declare(param, ParameterVarDef.class);
+            var varDef = declare(param, ParameterVarDef::new);
             define(varDef);
         }
+        if (functionStack.size() == 1) predeclared.forEach(name -> {
+            var varDef = declare(new Token(IDENTIFIER, name, null, 0));
+            varDef.isLateInit = true;
+            define(varDef);
+            predeclaredTokens.add(varDef.token());
+        });
         resolve(function.body);
         endScope(function);
     }
@@ -126,8 +166,9 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
      */
     private Optional<VarDef> resolveLocal(Expr varAccess, Token name) {
         for (int i = scopes.size() - 1; i >= 0; i--) {
-            var varDef = scopes.get(i).keySet().stream().filter(key -> key.token.lexeme.equals(name.lexeme)).findFirst();
-            if (varDef.isPresent()) {
+            var binding = scopes.get(i).get(name.lexeme);
+            if (binding != null) {
+                var varDef = Optional.of(binding.varDef);
                 int depth = functionStack.size() - functionStack.indexOf(varDef.get().function) - 1 /* to account for current function */;
                 if (depth != 0) {
                     if (varAccess instanceof Expr.This || varAccess instanceof Expr.Super) {
@@ -137,12 +178,14 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
                     }
                 }
                 varUse.put(name, varDef.get());
-                if (DEBUG) System.out.println(name.lexeme + "@line" + name.line + " -> " + varDef.get() + "@line" + varDef.get().token().line);
+                if (debug) System.out.println(name.lexeme + "@line" + name.line + " -> " + varDef.get() + "@line" + varDef.get().token().line);
                 return varDef;
             }
         }
-        if (DEBUG) System.out.println(varAccess + " undefined");
-        unresolved.add(new UnresolvedLocal(functionStack.peek(), functionStack.size(), varAccess, name));
+        if (debug) System.out.println(varAccess + " undefined");
+        unresolved
+            .computeIfAbsent(name.lexeme, k -> new ArrayList<>())
+            .add(new UnresolvedLocal(functionStack.peek(), functionStack.size(), varAccess, name));
         return Optional.empty();
     }
 
@@ -175,42 +218,39 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
     }
 
     private VarDef declare(Token name) {
-        return declare(name, VarDef.class);
+        return declare(name, VarDef::new);
     }
 
-    private <T extends VarDef> T declare(Token name, Class<T> type) {
+    private <T extends VarDef> T declare(Token name, VarDefConstructor<T> constructor) {
         if (scopes.isEmpty()) return null;
 
         var scope = scopes.peek();
         var isGlobalScope = scopes.size() == 1;
         var currentFunction = functionStack.peek();
-        var existingVarDef = scope.keySet().stream().filter(it -> it.token().lexeme.equals(name.lexeme)).findFirst();
+        var existing = scope.get(name.lexeme);
 
-        if (existingVarDef.isPresent()) {
-            if (!isGlobalScope) error(name, "Already a variable with this name in this scope.");
-            writes.merge(existingVarDef.get().token(), 1, Integer::sum);
+        if (existing != null) {
+            if (!isGlobalScope) diagnostics.error(name, "Already a variable with this name in this scope.");
+            writes.merge(existing.varDef.token(), 1, Integer::sum);
         }
 
-        T varDef;
-        try {
-            // GlobalVar is not the same as global scope -
-            // there can be multiple scopes in the top-level function.
-            // GlobalVar means that the var is declared in any scope that
-            // is in the top-level function.
-            var isGlobalVar = javaClassName(currentFunction).equals(LOX_MAIN_CLASS);
-
-            varDef = type.getConstructor(this.getClass(), Token.class, Stmt.Function.class, Boolean.class)
-                         .newInstance(this, existingVarDef.map(VarDef::token).orElse(name), currentFunction, isGlobalVar);
-        } catch (InstantiationException | IllegalAccessException | InvocationTargetException | NoSuchMethodException e) {
-            throw new IllegalStateException(e);
-        }
+        // GlobalVar is not the same as global scope -
+        // there can be multiple scopes in the top-level function.
+        // GlobalVar means that the var is declared in any scope that
+        // is in the top-level function.
+        var isGlobalVar = javaClassName(currentFunction).equals(LOX_MAIN_CLASS);
+
+        T varDef = constructor.create(existing != null ? existing.varDef.token() : name, currentFunction, isGlobalVar);
+        if (predeclaredTokens.contains(varDef.token())) varDef.isLateInit = true;
 
         variables.put(name, varDef);
-        scope.put(varDef, false);
+        variablesByFunction.computeIfAbsent(currentFunction.name, k -> new ArrayList<>()).add(varDef);
+        scope.put(name.lexeme, new Binding(varDef));
 
         if (isGlobalScope) {
-            var resolved = new HashSet<UnresolvedLocal>();
-            unresolved.stream().filter(it -> it.name.lexeme.equals(name.lexeme)).forEach(it -> {
+            globalScope.put(name.lexeme, varDef.token());
+            var resolved = unresolved.remove(name.lexeme);
+            if (resolved != null) resolved.forEach(it -> {
                 varUse.put(it.name, varDef);
 
                 // Update reads that occurred before declaration
@@ -218,10 +258,8 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
                 reads.remove(it.name);
 
                 capture(it.function, varDef, it.depth);
-                resolved.add(it);
                 varDef.isLateInit = true;
             });
-            unresolved.removeAll(resolved);
         }
 
         javaFieldName(varDef.token, varDef.token.lexeme);
@@ -231,7 +269,9 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
 
     private void define(VarDef varDef) {
         if (scopes.isEmpty()) return;
-        scopes.peek().put(varDef, true);
+        var binding = scopes.peek().get(varDef.token().lexeme);
+        if (binding != null && binding.varDef == varDef) binding.isDefined = true;
+        else scopes.peek().put(varDef.token().lexeme, new Binding(varDef, true));
     }
 
     @Override
@@ -308,24 +348,11 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
     @Override
     public Void visitVariableExpr(Expr.Variable expr) {
         var isGlobalScope = scopes.size() == 1;
-        var isAlreadyDeclared = scopes
-            .peek()
-            .keySet()
-            .stream()
-            .anyMatch(it -> it.token.lexeme.equals(expr.name.lexeme));
-
-        if (!isGlobalScope && isAlreadyDeclared) {
-            scopes
-                .peek()
-                .entrySet()
-                .stream()
-                .filter(it -> it.getKey().token.lexeme.equals(expr.name.lexeme))
-                .map(Map.Entry::getValue)
-                .findAny()
-                .ifPresent(variableIsDefined -> {
-                    // Declared and not yet defined - it must be its own initializer!
-                    if (!variableIsDefined) error(expr.name, "Can't read local variable in its own initializer.");
-                });
+        var binding = scopes.peek().get(expr.name.lexeme);
+
+        // Declared and not yet defined - it must be its own initializer!
+        if (!isGlobalScope && binding != null && !binding.isDefined) {
+            diagnostics.error(expr.name, "Can't read local variable in its own initializer.");
         }
 
         var varDef = resolveLocal(expr, expr.name);
@@ -348,7 +375,7 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
 
     @Override
     public Void visitClassStmt(Stmt.Class stmt) {
-        var varDef = declare(stmt.name, ClassVarDef.class);
+        var varDef = declare(stmt.name, ClassVarDef::new);
         define(varDef);
 
         javaClassName(stmt.name, "");
@@ -378,7 +405,7 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
 
     @Override
     public Void visitFunctionStmt(Function stmt) {
-        var varDef = declare(stmt.name, FunctionVarDef.class);
+        var varDef = declare(stmt.name, FunctionVarDef::new);
         define(varDef);
         resolveFunction(stmt);
         return null;
@@ -428,7 +455,8 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
         protected final Function function;
         protected final boolean isGlobal;
         protected boolean isLateInit = false;
-        private final Map<Token, Integer> captureDepth = new HashMap<>();
+        private boolean isCaptured = false;
+        private final Map<Token, Integer> captureDepth = new IdentityHashMap<>();
 
         public VarDef(Token token, Function function, Boolean isGlobal) {
             this.token = token;
@@ -463,7 +491,7 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
         }
 
         public boolean isCaptured() {
-            return captured.values().stream().flatMap(Collection::stream).anyMatch(it -> it == this);
+            return isCaptured;
         }
 
         public int distanceTo(Function function) {
@@ -496,12 +524,24 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
         public ClassVarDef(Token token, Stmt.Function function, Boolean isGlobal) {
             super(token, function, isGlobal);
         }
+
+        @Override
+        public boolean isFinal() {
+            // The declaration itself is not counted as a write.
+            return writes.getOrDefault(token, 0) == 0;
+        }
     }
 
     public final class FunctionVarDef extends VarDef {
         public FunctionVarDef(Token token, Function function, Boolean isGlobal) {
             super(token, function, isGlobal);
         }
+
+        @Override
+        public boolean isFinal() {
+            // The declaration itself is not counted as a write.
+            return writes.getOrDefault(token, 0) == 0;
+        }
     }
 
     public final class ParameterVarDef extends VarDef {
@@ -524,6 +564,25 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
 
     public record UnresolvedLocal(Function function, int depth, Expr varAccess, Token name) { }
 
+    @FunctionalInterface
+    private interface VarDefConstructor<T extends VarDef> {
+        T create(Token token, Function function, Boolean isGlobal);
+    }
+
+    private static class Binding {
+        private final VarDef varDef;
+        private boolean isDefined;
+
+        private Binding(VarDef varDef) {
+            this(varDef, false);
+        }
+
+        private Binding(VarDef varDef, boolean isDefined) {
+            this.varDef = varDef;
+            this.isDefined = isDefined;
+        }
+    }
+
     private void javaClassName(Token token, String prefix) {
         prefix = prefix + functionStack
             .stream()
@@ -531,7 +590,9 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
             .map(this::javaClassName)
             .collect(Collectors.joining("$"));
         var newName = prefix.isBlank() ? token.lexeme : prefix + "$" + token.lexeme;
-        javaClassNames.put(token, newName + (javaClassNames.values().stream().anyMatch(it -> it.equals(newName)) ? "$" : ""));
+        var uniqueName = usedJavaClassNames.contains(newName) ? newName + "$" : newName;
+        javaClassNames.put(token, uniqueName);
+        usedJavaClassNames.add(uniqueName);
     }
 
     public String javaClassName(Stmt.Class classStmt) {
@@ -560,8 +621,9 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
         var captured = captured(function);
         if (!captured.contains(varDef)) {
             captured.add(varDef);
+            varDef.isCaptured = true;
             varDef.captureDepth.put(function.name, depth);
-            if (DEBUG) System.out.println("capture " + varDef + " in " + function.name.lexeme + " at depth " + depth);
+            if (debug) System.out.println("capture " + varDef + " in " + function.name.lexeme + " at depth " + depth);
             if (varDef instanceof ClassVarDef &&
                 classStack.stream().anyMatch(it -> it.name.equals(varDef.token()))) {
                 // Capturing a self-referencing class
@@ -579,6 +641,31 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
         else reads.replace(varDef.token(), current - 1);
     }
 
+    public void incrementReads(VarDef varDef) {
+        reads.merge(varDef.token(), 1, Integer::sum);
+    }
+
+    public void incrementWrites(VarDef varDef) {
+        writes.merge(varDef.token(), 1, Integer::sum);
+    }
+
+    /**
+     * Declares a compiler-generated temporary variable in the given function.
+     * <p>
+     * Temporaries are named with a character that is not valid in Lox identifiers,
+     * so they can never clash with, or be captured by, user code.
+     */
+    public VarDef declareTemporary(Function function, int line) {
+        var token = new Token(IDENTIFIER, "$tmp" + temporaryCount++, null, line);
+        var varDef = new VarDef(token, function, javaClassName(function).equals(LOX_MAIN_CLASS));
+        variables.put(token, varDef);
+        variablesByFunction.computeIfAbsent(function.name, k -> new ArrayList<>()).add(varDef);
+        varUse.put(token, varDef);
+        writes.put(token, 1);
+        javaFieldName(token, token.lexeme);
+        return varDef;
+    }
+
     @NotNull
     public Set<VarDef> captured(Function function) {
         return captured.computeIfAbsent(function.name, k -> new HashSet<>());
@@ -586,10 +673,27 @@ public class CompilerResolver implements Expr.Visitor<Void>, Stmt.Visitor<Void>
 
     @NotNull
     public Set<VarDef> variables(Function function) {
-        return variables.values()
-                        .stream()
-                        .filter(it -> it.function.name.equals(function.name))
-                        .collect(Collectors.toSet());
+        return new LinkedHashSet<>(variablesByFunction.getOrDefault(function.name, List.of()));
+    }
+
+    /**
+     * Exports the variables declared in the global scope, so that they can be read after
+     * the program has run: they are marked as captured, so that they are stored in fields
+     * of the main function, as read, so that they are never removed, and as written again,
+     * so that constants are not folded away.
+     *
+     * @return the Java field name of each exported variable, by name.
+     */
+    public Map<String, String> export() {
+        var exported = new LinkedHashMap<String, String>();
+        globalScope.forEach((name, token) -> {
+            // A redeclared global has several definitions with the same token.
+            variables.values().stream().filter(it -> it.token() == token).forEach(it -> it.isCaptured = true);
+            reads.merge(token, 1, Integer::sum);
+            writes.merge(token, 1, Integer::sum);
+            exported.put(name, javaFieldNames.get(token));
+        });
+        return exported;
     }
 
     @NotNull
@@ -76,45 +76,49 @@ public class Composer<T extends CompactCodeAttributeComposer> extends CompactCod
     }
 
     public T outline(ClassPool programClassPool, String className, String name, String descriptor, Consumer<CompactCodeAttributeComposer> composerConsumer) {
-        var utilClass = programClassPool.getClass(className);
-        if (utilClass == null) {
-            utilClass = new ClassBuilder(
-                    CLASS_VERSION_1_8,
-                    PUBLIC,
-                    className,
-                    "java/lang/Object"
-            ).getProgramClass();
-            programClassPool.addClass(utilClass);
-        }
+        // Functions may be compiled in parallel, and all of them share the helper class.
+        synchronized (programClassPool) {
+            // The target class may not be in the class pool yet.
+            var utilClass = className.equals(getTargetClass().getName()) ? getTargetClass() : programClassPool.getClass(className);
+            if (utilClass == null) {
+                utilClass = new ClassBuilder(
+                        CLASS_VERSION_1_8,
+                        PUBLIC,
+                        className,
+                        "java/lang/Object"
+                ).getProgramClass();
+                programClassPool.addClass(utilClass);
+            }
 
-        invokestatic(
-            utilClass,
-            utilClass.findMethod(name, descriptor) != null ? utilClass.findMethod(name, descriptor) : new ClassBuilder((ProgramClass) utilClass)
-                .addAndReturnMethod(PUBLIC | STATIC, name, descriptor, 65_535, composer -> {
-                    var enumeration = new InternalTypeEnumeration(descriptor);
-                    var offset = 0;
-                    while (enumeration.hasMoreTypes()) {
-                        String type = enumeration.nextType();
-                        switch(type) {
-                            case "I", "B", "C", "S", "Z" -> composer.iload(offset);
-                            case "D" -> composer.dload(offset);
-                            case "F" -> composer.fload(offset);
-                            case "J" -> composer.lload(offset);
-                            default -> composer.aload(offset);
+            invokestatic(
+                utilClass,
+                utilClass.findMethod(name, descriptor) != null ? utilClass.findMethod(name, descriptor) : new ClassBuilder((ProgramClass) utilClass)
+                    .addAndReturnMethod(PUBLIC | STATIC, name, descriptor, 65_535, composer -> {
+                        var enumeration = new InternalTypeEnumeration(descriptor);
+                        var offset = 0;
+                        while (enumeration.hasMoreTypes()) {
+                            String type = enumeration.nextType();
+                            switch(type) {
+                                case "I", "B", "C", "S", "Z" -> composer.iload(offset);
+                                case "D" -> composer.dload(offset);
+                                case "F" -> composer.fload(offset);
+                                case "J" -> composer.lload(offset);
+                                default -> composer.aload(offset);
+                            }
+                            offset += ClassUtil.internalTypeSize(type);
+                        }
+                        composerConsumer.accept(composer);
+                        switch (ClassUtil.internalMethodReturnType(descriptor)) {
+                            case "I", "B", "C", "S", "Z" -> composer.ireturn();
+                            case "D" -> composer.dreturn();
+                            case "F" -> composer.freturn();
+                            case "J" -> composer.lreturn();
+                            case "V" -> composer.return_();
+                            default -> composer.areturn();
                         }
-                        offset += ClassUtil.internalTypeSize(type);
-                    }
-                    composerConsumer.accept(composer);
-                    switch (ClassUtil.internalMethodReturnType(descriptor)) {
-                        case "I", "B", "C", "S", "Z" -> composer.ireturn();
-                        case "D" -> composer.dreturn();
-                        case "F" -> composer.freturn();
-                        case "J" -> composer.lreturn();
-                        case "V" -> composer.return_();
-                        default -> composer.areturn();
-                    }
-                })
-        );
+                    })
+            );
+        }
 
         return (T) this;
     }
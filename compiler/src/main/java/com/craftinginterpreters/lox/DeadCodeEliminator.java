@@ -0,0 +1,35 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.Ir.Instruction;
+
+import java.util.ArrayDeque;
+
+/**
+ * Removes instructions whose value is unused and that have no side effects.
+ */
+public class DeadCodeEliminator implements IrPass {
+
+    @Override
+    public void run(Ir.Function function) {
+        var worklist = new ArrayDeque<Instruction>();
+        function.blocks.forEach(block -> {
+            worklist.addAll(block.phis);
+            worklist.addAll(block.instructions);
+        });
+
+        while (!worklist.isEmpty()) {
+            var instruction = worklist.pop();
+            if (!isDead(instruction)) continue;
+            var operands = instruction.operands();
+            worklist.addAll(operands);
+            instruction.remove();
+        }
+    }
+
+    private static boolean isDead(Instruction instruction) {
+        // Removed instructions have no block.
+        return instruction.block() != null &&
+            !instruction.hasSideEffects() &&
+            instruction.users().isEmpty();
+    }
+}
@@ -0,0 +1,77 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.TokenType.EOF;
+
+/**
+ * Collects the errors reported while compiling a program, instead of
+ * printing them and setting the global flags in {@link Lox}.
+ * <p>
+ * Each compilation has its own instance, so that programs can be compiled
+ * concurrently. Errors are formatted in the same way as by {@link Lox}.
+ */
+public class Diagnostics {
+
+    public enum Kind {
+        /**
+         * A static error, such as a syntax error; exits with status 65.
+         */
+        ERROR,
+        /**
+         * A runtime error detected at compile time; exits with status 70.
+         */
+        RUNTIME_ERROR
+    }
+
+    public record Diagnostic(Kind kind, int line, String where, String message) {
+        @Override
+        public String toString() {
+            return switch (kind) {
+                case ERROR -> "[line " + line + "] Error" + where + ": " + message;
+                case RUNTIME_ERROR -> message + "\n[line " + line + "]";
+            };
+        }
+    }
+
+    private final List<Diagnostic> diagnostics = new ArrayList<>();
+
+    public synchronized void error(int line, String message) {
+        diagnostics.add(new Diagnostic(Kind.ERROR, line, "", message));
+    }
+
+    public synchronized void error(Token token, String message) {
+        var where = token.type == EOF ? " at end" : " at '" + token.lexeme + "'";
+        diagnostics.add(new Diagnostic(Kind.ERROR, token.line, where, message));
+    }
+
+    public synchronized void runtimeError(RuntimeError error) {
+        runtimeError(error.token.line, error.getMessage());
+    }
+
+    /**
+     * Reports a runtime error, unless it was already reported: each pass of the
+     * optimizer finds the errors in the code that it leaves unchanged again.
+     */
+    public synchronized void runtimeError(int line, String message) {
+        var diagnostic = new Diagnostic(Kind.RUNTIME_ERROR, line, "", message);
+        if (!diagnostics.contains(diagnostic)) diagnostics.add(diagnostic);
+    }
+
+    public synchronized void add(Diagnostic diagnostic) {
+        diagnostics.add(diagnostic);
+    }
+
+    public synchronized boolean hasErrors() {
+        return !diagnostics.isEmpty();
+    }
+
+    public synchronized boolean hasRuntimeErrors() {
+        return diagnostics.stream().anyMatch(it -> it.kind() == Kind.RUNTIME_ERROR);
+    }
+
+    public synchronized List<Diagnostic> toList() {
+        return List.copyOf(diagnostics);
+    }
+}
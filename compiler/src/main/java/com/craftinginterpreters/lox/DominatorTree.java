@@ -0,0 +1,81 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.Ir.Block;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Computes the immediate dominators of the blocks in an {@link Ir.Function}, using
+ * "A Simple, Fast Dominance Algorithm" by Cooper, Harvey and Kennedy.
+ */
+public class DominatorTree {
+
+    private final List<Block> order;
+    private final Map<Block, Integer> postOrderNumber = new HashMap<>();
+    private final Map<Block, Block> idom = new HashMap<>();
+    private final Map<Block, List<Block>> children = new HashMap<>();
+
+    public DominatorTree(Ir.Function function) {
+        order = function.reversePostOrder();
+        for (int i = 0; i < order.size(); i++) postOrderNumber.put(order.get(i), order.size() - i);
+
+        var entry = function.entry();
+        idom.put(entry, entry);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (var block : order) {
+                if (block == entry) continue;
+                Block newIdom = null;
+                for (var predecessor : block.predecessors) {
+                    if (!idom.containsKey(predecessor)) continue;
+                    newIdom = newIdom == null ? predecessor : intersect(predecessor, newIdom);
+                }
+                if (newIdom != idom.get(block)) {
+                    idom.put(block, newIdom);
+                    changed = true;
+                }
+            }
+        }
+
+        for (var block : order) {
+            if (block != entry) children.computeIfAbsent(idom.get(block), k -> new ArrayList<>()).add(block);
+        }
+    }
+
+    private Block intersect(Block a, Block b) {
+        while (a != b) {
+            while (postOrderNumber.get(a) < postOrderNumber.get(b)) a = idom.get(a);
+            while (postOrderNumber.get(b) < postOrderNumber.get(a)) b = idom.get(b);
+        }
+        return a;
+    }
+
+    /**
+     * Returns the blocks in reverse post-order, so that every block
+     * is visited after its immediate dominator.
+     */
+    public List<Block> blocks() {
+        return order;
+    }
+
+    public Block idom(Block block) {
+        return idom.get(block);
+    }
+
+    public List<Block> children(Block block) {
+        return children.getOrDefault(block, List.of());
+    }
+
+    public boolean dominates(Block a, Block b) {
+        while (true) {
+            if (a == b) return true;
+            var parent = idom.get(b);
+            if (parent == b) return false;
+            b = parent;
+        }
+    }
+}
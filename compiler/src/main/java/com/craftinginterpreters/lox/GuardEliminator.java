@@ -0,0 +1,68 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.Ir.Block;
+import com.craftinginterpreters.lox.Ir.Instruction;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Removes type checks and conversions of a value that are dominated by
+ * the same check of the same value, since the value can't have changed.
+ * <p>
+ * For example, in <code>a * a</code> only the first operand is checked.
+ */
+public class GuardEliminator implements IrPass {
+
+    @Override
+    public void run(Ir.Function function) {
+        var dominatorTree = new DominatorTree(function);
+        var available = new HashMap<Key, Instruction>();
+        // Walk the dominator tree, forgetting the checks of a block when leaving it.
+        var stack = new ArrayDeque<Frame>();
+        stack.push(new Frame(visit(function.entry(), available), dominatorTree.children(function.entry())));
+        while (!stack.isEmpty()) {
+            var frame = stack.peek();
+            if (frame.next < frame.children.size()) {
+                var child = frame.children.get(frame.next++);
+                stack.push(new Frame(visit(child, available), dominatorTree.children(child)));
+            } else {
+                stack.pop().added.forEach(available::remove);
+            }
+        }
+    }
+
+    private static List<Key> visit(Block block, Map<Key, Instruction> available) {
+        var added = new ArrayList<Key>();
+        for (var instruction : new ArrayList<>(block.instructions)) {
+            if (!(instruction instanceof Ir.Unbox || instruction instanceof Ir.CheckInstance || instruction instanceof Ir.Truthy)) continue;
+
+            var key = new Key(instruction.getClass(), instruction.operand(0));
+            var dominating = available.get(key);
+            if (dominating != null) {
+                instruction.replaceAllUsesWith(dominating);
+                instruction.remove();
+            } else {
+                available.put(key, instruction);
+                added.add(key);
+            }
+        }
+        return added;
+    }
+
+    private record Key(Class<?> kind, Instruction value) { }
+
+    private static class Frame {
+        private final List<Key> added;
+        private final List<Block> children;
+        private int next = 0;
+
+        private Frame(List<Key> added, List<Block> children) {
+            this.added = added;
+            this.children = children;
+        }
+    }
+}
@@ -0,0 +1,941 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.CompilerResolver.VarDef;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A control flow graph in SSA form, lowered from a resolved function by {@link IrBuilder}.
+ * <p>
+ * An instruction that produces a value is the value itself: its operands are the instructions
+ * that define the values it uses, and its users are the instructions that use it. So both use-def
+ * and def-use chains are always available, and must be kept up-to-date by passes that edit the graph.
+ * <p>
+ * Lox values have the type {@link Type#OBJECT}; numbers and booleans that have been unboxed
+ * have the type {@link Type#DOUBLE} and {@link Type#BOOLEAN}.
+ */
+public final class Ir {
+
+    private Ir() { }
+
+    public enum Type {
+        OBJECT,
+        DOUBLE,
+        BOOLEAN,
+        VOID
+    }
+
+    public static final class Function {
+        public final Stmt.Class classStmt;
+        public final Stmt.Function function;
+        public final List<Block> blocks = new ArrayList<>();
+        private int blockCount = 0;
+
+        public Function(Stmt.Class classStmt, Stmt.Function function) {
+            this.classStmt = classStmt;
+            this.function = function;
+        }
+
+        public Block entry() {
+            return blocks.get(0);
+        }
+
+        public Block newBlock() {
+            var block = new Block(blockCount++);
+            blocks.add(block);
+            return block;
+        }
+
+        /**
+         * Returns the blocks in reverse post-order: a block is visited
+         * before its successors, except along back edges.
+         */
+        public List<Block> reversePostOrder() {
+            var result = new ArrayList<Block>();
+            var visited = new HashSet<Block>();
+            var stack = new ArrayDeque<Map.Entry<Block, Integer>>();
+            stack.push(Map.entry(entry(), 0));
+            visited.add(entry());
+            while (!stack.isEmpty()) {
+                var top = stack.pop();
+                var successors = top.getKey().successors();
+                if (top.getValue() < successors.size()) {
+                    stack.push(Map.entry(top.getKey(), top.getValue() + 1));
+                    var successor = successors.get(top.getValue());
+                    if (visited.add(successor)) stack.push(Map.entry(successor, 0));
+                } else {
+                    result.add(top.getKey());
+                }
+            }
+            Collections.reverse(result);
+            return result;
+        }
+
+        /**
+         * Removes blocks that cannot be reached from the entry block,
+         * along with their edges and the corresponding phi operands.
+         */
+        public void removeUnreachableBlocks() {
+            var reachable = new HashSet<>(reversePostOrder());
+            for (var block : blocks) {
+                if (reachable.contains(block)) {
+                    for (int i = block.predecessors.size() - 1; i >= 0; i--) {
+                        if (!reachable.contains(block.predecessors.get(i))) block.removePredecessor(i);
+                    }
+                } else {
+                    block.phis.forEach(Instruction::detach);
+                    block.instructions.forEach(Instruction::detach);
+                    if (block.terminator != null) block.terminator.detach();
+                }
+            }
+            blocks.retainAll(reachable);
+        }
+
+        @Override
+        public String toString() {
+            var names = new IdentityHashMap<Instruction, String>();
+            var printer = new Printer(names);
+            var result = new StringBuilder(function.name.lexeme).append(":\n");
+            for (var block : blocks) {
+                block.phis.forEach(it -> names.put(it, "%" + names.size()));
+                block.instructions
+                    .stream()
+                    .filter(it -> it.type != Type.VOID)
+                    .forEach(it -> names.put(it, "%" + names.size()));
+            }
+            for (var block : blocks) {
+                result.append(block).append(":");
+                if (!block.predecessors.isEmpty()) result.append(" // preds ").append(block.predecessors);
+                result.append('\n');
+                for (var instruction : block.allInstructions()) {
+                    result.append("    ");
+                    if (names.containsKey(instruction)) result.append(names.get(instruction)).append(" = ");
+                    result.append(instruction.accept(printer)).append('\n');
+                }
+            }
+            return result.toString();
+        }
+    }
+
+    public static final class Block {
+        public final int id;
+        public final List<Block> predecessors = new ArrayList<>();
+        public final List<Phi> phis = new ArrayList<>();
+        public final List<Instruction> instructions = new ArrayList<>();
+        private Terminator terminator;
+
+        private Block(int id) {
+            this.id = id;
+        }
+
+        public Terminator terminator() {
+            return terminator;
+        }
+
+        public List<Block> successors() {
+            return terminator == null ? List.of() : terminator.successors();
+        }
+
+        public <T extends Instruction> T append(T instruction) {
+            instruction.block = this;
+            instructions.add(instruction);
+            return instruction;
+        }
+
+        public <T extends Instruction> T insert(int index, T instruction) {
+            instruction.block = this;
+            instructions.add(index, instruction);
+            return instruction;
+        }
+
+        public Phi addPhi() {
+            var phi = new Phi();
+            phi.block = this;
+            phis.add(phi);
+            return phi;
+        }
+
+        public void terminate(Terminator terminator) {
+            terminator.block = this;
+            this.terminator = terminator;
+            terminator.successors().forEach(it -> it.predecessors.add(this));
+        }
+
+        /**
+         * Inserts a new block on the edge from this block to the given successor.
+         */
+        public Block splitEdge(Function function, Block successor) {
+            var block = function.newBlock();
+            terminator.replaceSuccessor(successor, block);
+            successor.predecessors.set(successor.predecessors.indexOf(this), block);
+            block.predecessors.add(this);
+            block.terminator = new Jump(successor);
+            block.terminator.block = block;
+            return block;
+        }
+
+        private void removePredecessor(int index) {
+            predecessors.remove(index);
+            phis.forEach(phi -> phi.removeOperand(index));
+        }
+
+        public List<Instruction> allInstructions() {
+            var result = new ArrayList<Instruction>(phis);
+            result.addAll(instructions);
+            if (terminator != null) result.add(terminator);
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return "b" + id;
+        }
+    }
+
+    public abstract static class Instruction {
+        public final Type type;
+        public final int line;
+        private final List<Instruction> operands = new ArrayList<>();
+        private final List<Instruction> users = new ArrayList<>();
+        Block block;
+
+        protected Instruction(Type type, int line, Instruction... operands) {
+            this.type = type;
+            this.line = line;
+            for (var operand : operands) addOperand(operand);
+        }
+
+        /**
+         * Returns the block containing this instruction, or null if it was removed.
+         */
+        public Block block() {
+            return block;
+        }
+
+        public List<Instruction> operands() {
+            return Collections.unmodifiableList(operands);
+        }
+
+        public Instruction operand(int index) {
+            return operands.get(index);
+        }
+
+        public List<Instruction> users() {
+            return Collections.unmodifiableList(users);
+        }
+
+        protected void addOperand(Instruction operand) {
+            operands.add(operand);
+            operand.users.add(this);
+        }
+
+        public void setOperand(int index, Instruction operand) {
+            operands.get(index).users.remove(this);
+            operands.set(index, operand);
+            operand.users.add(this);
+        }
+
+        void removeOperand(int index) {
+            operands.remove(index).users.remove(this);
+        }
+
+        public void replaceAllUsesWith(Instruction value) {
+            for (var user : new ArrayList<>(users)) {
+                for (int i = 0; i < user.operands.size(); i++) {
+                    if (user.operands.get(i) == this) user.setOperand(i, value);
+                }
+            }
+        }
+
+        /**
+         * Removes this instruction from its block; it must not have any users.
+         */
+        public void remove() {
+            if (!users.isEmpty()) throw new IllegalStateException("Cannot remove an instruction that is still used: " + this);
+            detach();
+            if (this instanceof Phi phi) block.phis.remove(phi);
+            else block.instructions.remove(this);
+            block = null;
+        }
+
+        void detach() {
+            operands.forEach(it -> it.users.remove(this));
+            operands.clear();
+        }
+
+        /**
+         * Returns true if the instruction can't be removed when its value is unused,
+         * because it has side effects or can throw an error.
+         */
+        public boolean hasSideEffects() {
+            return false;
+        }
+
+        public abstract <R> R accept(Visitor<R> visitor);
+    }
+
+    public interface Visitor<R> {
+        R visitConstant(Constant instruction);
+        R visitParameter(Parameter instruction);
+        R visitReceiver(Receiver instruction);
+        R visitPhi(Phi instruction);
+        R visitLoadVariable(LoadVariable instruction);
+        R visitStoreVariable(StoreVariable instruction);
+        R visitDeclareVariable(DeclareVariable instruction);
+        R visitUnbox(Unbox instruction);
+        R visitBox(Box instruction);
+        R visitArithmetic(Arithmetic instruction);
+        R visitNegate(Negate instruction);
+        R visitCompare(Compare instruction);
+        R visitEquals(Equals instruction);
+        R visitNot(Not instruction);
+        R visitTruthy(Truthy instruction);
+        R visitAdd(Add instruction);
+        R visitCheckInstance(CheckInstance instruction);
+        R visitGet(Get instruction);
+        R visitSet(Set instruction);
+        R visitCall(Call instruction);
+        R visitPrint(Print instruction);
+        R visitTree(Tree instruction);
+        R visitStatement(Statement instruction);
+        R visitJump(Jump instruction);
+        R visitBranch(Branch instruction);
+        R visitReturn(Return instruction);
+        R visitThrow(Throw instruction);
+    }
+
+    /**
+     * A literal Lox value.
+     */
+    public static final class Constant extends Instruction {
+        public final Object value;
+
+        public Constant(Object value) {
+            super(Type.OBJECT, 0);
+            this.value = value;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitConstant(this);
+        }
+    }
+
+    /**
+     * An argument passed to the function.
+     */
+    public static final class Parameter extends Instruction {
+        public final int index;
+
+        public Parameter(int index) {
+            super(Type.OBJECT, 0);
+            this.index = index;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitParameter(this);
+        }
+    }
+
+    /**
+     * The instance that an initializer implicitly returns.
+     */
+    public static final class Receiver extends Instruction {
+        public Receiver() {
+            super(Type.OBJECT, 0);
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitReceiver(this);
+        }
+    }
+
+    /**
+     * Selects the operand that corresponds to the predecessor from which control arrived.
+     */
+    public static final class Phi extends Instruction {
+        public Phi() {
+            super(Type.OBJECT, 0);
+        }
+
+        public void addIncoming(Instruction value) {
+            addOperand(value);
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitPhi(this);
+        }
+    }
+
+    /**
+     * Reads a variable that is not in SSA form, because it is captured or global.
+     */
+    public static final class LoadVariable extends Instruction {
+        public final Expr.Variable variable;
+
+        public LoadVariable(Expr.Variable variable) {
+            super(Type.OBJECT, variable.name.line);
+            this.variable = variable;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitLoadVariable(this);
+        }
+    }
+
+    public static final class StoreVariable extends Instruction {
+        public final Token name;
+
+        public StoreVariable(Token name, Instruction value) {
+            super(Type.VOID, name.line, value);
+            this.name = name;
+        }
+
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitStoreVariable(this);
+        }
+    }
+
+    public static final class DeclareVariable extends Instruction {
+        public final VarDef varDef;
+
+        public DeclareVariable(VarDef varDef, Instruction value, int line) {
+            super(Type.VOID, line, value);
+            this.varDef = varDef;
+        }
+
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitDeclareVariable(this);
+        }
+    }
+
+    /**
+     * Converts a Lox value to a double, or throws an error if it isn't a number.
+     */
+    public static final class Unbox extends Instruction {
+        public final String message;
+
+        public Unbox(Instruction value, String message, int line) {
+            super(Type.DOUBLE, line, value);
+            this.message = message;
+        }
+
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitUnbox(this);
+        }
+    }
+
+    /**
+     * Converts a double or boolean to a Lox value.
+     */
+    public static final class Box extends Instruction {
+        public Box(Instruction value) {
+            super(Type.OBJECT, 0, value);
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitBox(this);
+        }
+    }
+
+    public static final class Arithmetic extends Instruction {
+        public final TokenType operator;
+
+        public Arithmetic(TokenType operator, Instruction left, Instruction right) {
+            super(Type.DOUBLE, 0, left, right);
+            this.operator = operator;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitArithmetic(this);
+        }
+    }
+
+    public static final class Negate extends Instruction {
+        public Negate(Instruction value) {
+            super(Type.DOUBLE, 0, value);
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitNegate(this);
+        }
+    }
+
+    public static final class Compare extends Instruction {
+        public final TokenType operator;
+
+        public Compare(TokenType operator, Instruction left, Instruction right) {
+            super(Type.BOOLEAN, 0, left, right);
+            this.operator = operator;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCompare(this);
+        }
+    }
+
+    public static final class Equals extends Instruction {
+        public Equals(Instruction left, Instruction right) {
+            super(Type.BOOLEAN, 0, left, right);
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitEquals(this);
+        }
+    }
+
+    public static final class Not extends Instruction {
+        public Not(Instruction value) {
+            super(Type.BOOLEAN, 0, value);
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitNot(this);
+        }
+    }
+
+    public static final class Truthy extends Instruction {
+        public Truthy(Instruction value) {
+            super(Type.BOOLEAN, 0, value);
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitTruthy(this);
+        }
+    }
+
+    /**
+     * Adds two numbers or concatenates two strings.
+     */
+    public static final class Add extends Instruction {
+        public Add(Instruction left, Instruction right, int line) {
+            super(Type.OBJECT, line, left, right);
+        }
+
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitAdd(this);
+        }
+    }
+
+    /**
+     * Throws an error if the value isn't an instance.
+     */
+    public static final class CheckInstance extends Instruction {
+        public final String message;
+
+        public CheckInstance(Instruction value, String message, int line) {
+            super(Type.OBJECT, line, value);
+            this.message = message;
+        }
+
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCheckInstance(this);
+        }
+    }
+
+    public static final class Get extends Instruction {
+        public final Token name;
+
+        public Get(Instruction object, Token name) {
+            super(Type.OBJECT, name.line, object);
+            this.name = name;
+        }
+
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitGet(this);
+        }
+    }
+
+    /**
+     * Sets a field of an instance checked by {@link CheckInstance}.
+     */
+    public static final class Set extends Instruction {
+        public final Token name;
+
+        public Set(Instruction instance, Token name, Instruction value) {
+            super(Type.VOID, name.line, instance, value);
+            this.name = name;
+        }
+
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitSet(this);
+        }
+    }
+
+    /**
+     * Calls the callee, the first operand, with the remaining operands as arguments.
+     * <p>
+     * The function is known if the {@link SideEffectAnalyzer} could determine it statically,
+     * in which case the number of arguments is the arity of the function.
+     */
+    public static final class Call extends Instruction {
+        public final Stmt.Function function;
+
+        public Call(Instruction callee, List<Instruction> arguments, Stmt.Function function, int line) {
+            super(Type.OBJECT, line, callee);
+            arguments.forEach(this::addOperand);
+            this.function = function;
+        }
+
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitCall(this);
+        }
+    }
+
+    public static final class Print extends Instruction {
+        public Print(Instruction value) {
+            super(Type.VOID, 0, value);
+        }
+
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitPrint(this);
+        }
+    }
+
+    /**
+     * An expression that is compiled from the tree, such as <code>this</code> or <code>super</code>.
+     * It must not read any variables that are in SSA form.
+     */
+    public static final class Tree extends Instruction {
+        public final Expr expr;
+
+        public Tree(Expr expr) {
+            super(Type.OBJECT, 0);
+            this.expr = expr;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitTree(this);
+        }
+    }
+
+    /**
+     * A function or class declaration that is compiled from the tree.
+     * It must not read any variables that are in SSA form.
+     */
+    public static final class Statement extends Instruction {
+        public final Stmt stmt;
+
+        public Statement(Stmt stmt) {
+            super(Type.VOID, 0);
+            this.stmt = stmt;
+        }
+
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitStatement(this);
+        }
+    }
+
+    public abstract static class Terminator extends Instruction {
+        protected final List<Block> successors = new ArrayList<>();
+
+        protected Terminator(int line, Instruction... operands) {
+            super(Type.VOID, line, operands);
+        }
+
+        public List<Block> successors() {
+            return Collections.unmodifiableList(successors);
+        }
+
+        private void replaceSuccessor(Block successor, Block replacement) {
+            successors.set(successors.indexOf(successor), replacement);
+        }
+
+        @Override
+        public boolean hasSideEffects() {
+            return true;
+        }
+    }
+
+    public static final class Jump extends Terminator {
+        public Jump(Block target) {
+            super(0);
+            successors.add(target);
+        }
+
+        public Block target() {
+            return successors.get(0);
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitJump(this);
+        }
+    }
+
+    public static final class Branch extends Terminator {
+        public Branch(Instruction condition, Block ifTrue, Block ifFalse) {
+            super(0, condition);
+            successors.add(ifTrue);
+            successors.add(ifFalse);
+        }
+
+        public Block ifTrue() {
+            return successors.get(0);
+        }
+
+        public Block ifFalse() {
+            return successors.get(1);
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitBranch(this);
+        }
+    }
+
+    public static final class Return extends Terminator {
+        public Return(Instruction value, int line) {
+            super(line, value);
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitReturn(this);
+        }
+    }
+
+    public static final class Throw extends Terminator {
+        public final String message;
+
+        public Throw(String message, int line) {
+            super(line);
+            this.message = message;
+        }
+
+        @Override
+        public <R> R accept(Visitor<R> visitor) {
+            return visitor.visitThrow(this);
+        }
+    }
+
+    private static class Printer implements Visitor<String> {
+        private final Map<Instruction, String> names;
+
+        private Printer(Map<Instruction, String> names) {
+            this.names = names;
+        }
+
+        private String print(String name, Instruction instruction, Object... details) {
+            var result = new StringBuilder(name);
+            for (var detail : details) result.append(' ').append(detail);
+            for (var operand : instruction.operands()) result.append(' ').append(names.getOrDefault(operand, "?"));
+            return result.toString();
+        }
+
+        @Override
+        public String visitConstant(Constant instruction) {
+            return print("constant", instruction, instruction.value instanceof String ? "\"" + instruction.value + "\"" : instruction.value);
+        }
+
+        @Override
+        public String visitParameter(Parameter instruction) {
+            return print("parameter", instruction, instruction.index);
+        }
+
+        @Override
+        public String visitReceiver(Receiver instruction) {
+            return print("receiver", instruction);
+        }
+
+        @Override
+        public String visitPhi(Phi instruction) {
+            return print("phi", instruction);
+        }
+
+        @Override
+        public String visitLoadVariable(LoadVariable instruction) {
+            return print("load", instruction, instruction.variable.name.lexeme);
+        }
+
+        @Override
+        public String visitStoreVariable(StoreVariable instruction) {
+            return print("store", instruction, instruction.name.lexeme);
+        }
+
+        @Override
+        public String visitDeclareVariable(DeclareVariable instruction) {
+            return print("declare", instruction, instruction.varDef.token().lexeme);
+        }
+
+        @Override
+        public String visitUnbox(Unbox instruction) {
+            return print("unbox", instruction);
+        }
+
+        @Override
+        public String visitBox(Box instruction) {
+            return print("box", instruction);
+        }
+
+        @Override
+        public String visitArithmetic(Arithmetic instruction) {
+            return print(instruction.operator.name().toLowerCase(), instruction);
+        }
+
+        @Override
+        public String visitNegate(Negate instruction) {
+            return print("negate", instruction);
+        }
+
+        @Override
+        public String visitCompare(Compare instruction) {
+            return print(instruction.operator.name().toLowerCase(), instruction);
+        }
+
+        @Override
+        public String visitEquals(Equals instruction) {
+            return print("equals", instruction);
+        }
+
+        @Override
+        public String visitNot(Not instruction) {
+            return print("not", instruction);
+        }
+
+        @Override
+        public String visitTruthy(Truthy instruction) {
+            return print("truthy", instruction);
+        }
+
+        @Override
+        public String visitAdd(Add instruction) {
+            return print("add", instruction);
+        }
+
+        @Override
+        public String visitCheckInstance(CheckInstance instruction) {
+            return print("checkinstance", instruction);
+        }
+
+        @Override
+        public String visitGet(Get instruction) {
+            return print("get", instruction, instruction.name.lexeme);
+        }
+
+        @Override
+        public String visitSet(Set instruction) {
+            return print("set", instruction, instruction.name.lexeme);
+        }
+
+        @Override
+        public String visitCall(Call instruction) {
+            return instruction.function == null ?
+                print("call", instruction) :
+                print("call", instruction, "<" + instruction.function.name.lexeme + ">");
+        }
+
+        @Override
+        public String visitPrint(Print instruction) {
+            return print("print", instruction);
+        }
+
+        @Override
+        public String visitTree(Tree instruction) {
+            return print("tree", instruction, instruction.expr.getClass().getSimpleName());
+        }
+
+        @Override
+        public String visitStatement(Statement instruction) {
+            return print("statement", instruction, instruction.stmt.getClass().getSimpleName());
+        }
+
+        @Override
+        public String visitJump(Jump instruction) {
+            return print("jump", instruction, instruction.target());
+        }
+
+        @Override
+        public String visitBranch(Branch instruction) {
+            return print("branch", instruction, instruction.ifTrue(), instruction.ifFalse());
+        }
+
+        @Override
+        public String visitReturn(Return instruction) {
+            return print("return", instruction);
+        }
+
+        @Override
+        public String visitThrow(Throw instruction) {
+            return print("throw", instruction, "\"" + instruction.message + "\"");
+        }
+    }
+}
@@ -0,0 +1,457 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.CompilerResolver.ParameterVarDef;
+import com.craftinginterpreters.lox.CompilerResolver.VarDef;
+import com.craftinginterpreters.lox.Ir.Block;
+import com.craftinginterpreters.lox.Ir.Instruction;
+import com.craftinginterpreters.lox.Ir.Phi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+/**
+ * Lowers a resolved function to the {@link Ir} control flow graph.
+ * <p>
+ * Local variables that are neither captured nor late init are converted to SSA form
+ * while lowering, using the algorithm from "Simple and Efficient Construction of Static
+ * Single Assignment Form" by Braun et al. Other variables are accessed with
+ * {@link Ir.LoadVariable} and {@link Ir.StoreVariable} instructions.
+ * <p>
+ * Functions that the IR can't represent are left to the tree compiler.
+ */
+public class IrBuilder implements Stmt.Visitor<Void>, Expr.Visitor<Instruction> {
+
+    private final CompilerResolver resolver;
+    private final SideEffectAnalyzer sideEffectAnalyzer;
+    private final boolean directCalls;
+    private final Map<VarDef, Boolean> promoted = new HashMap<>();
+    private final Map<Block, Map<VarDef, Instruction>> currentDefs = new HashMap<>();
+    private final Map<Block, Map<VarDef, Phi>> incompletePhis = new HashMap<>();
+    private final Set<Block> sealed = new HashSet<>();
+    private Ir.Function function;
+    private Block current;
+    private Instruction receiver;
+
+    public IrBuilder(CompilerResolver resolver, SideEffectAnalyzer sideEffectAnalyzer) {
+        this(resolver, sideEffectAnalyzer, true);
+    }
+
+    /**
+     * Creates a builder whose calls never have a target, if <code>directCalls</code> is
+     * false, for functions whose class is loaded without the classes of the functions they call.
+     */
+    public IrBuilder(CompilerResolver resolver, SideEffectAnalyzer sideEffectAnalyzer, boolean directCalls) {
+        this.resolver = resolver;
+        this.sideEffectAnalyzer = sideEffectAnalyzer;
+        this.directCalls = directCalls;
+    }
+
+    public Optional<Ir.Function> build(Stmt.Class classStmt, Stmt.Function functionStmt) {
+        if (functionStmt instanceof Compiler.NativeFunction) return Optional.empty();
+
+        function = new Ir.Function(classStmt, functionStmt);
+        current = function.newBlock();
+        seal(current);
+
+        if (classStmt != null && functionStmt.name.lexeme.equals("init")) {
+            receiver = current.append(new Ir.Receiver());
+        }
+
+        try {
+            // Declaring a variable may overwrite the argument array, so read all the arguments first.
+            var parameters = new LinkedHashMap<VarDef, Instruction>();
+            for (int i = 0; i < functionStmt.params.size(); i++) {
+                var varDef = resolver.varDef(functionStmt.params.get(i));
+                if (varDef.isRead()) parameters.put(varDef, current.append(new Ir.Parameter(i)));
+            }
+            parameters.forEach((varDef, parameter) -> {
+                if (isPromoted(varDef)) writeVariable(varDef, current, parameter);
+                else current.append(new Ir.DeclareVariable(varDef, parameter, varDef.token().line));
+            });
+
+            functionStmt.body.forEach(stmt -> stmt.accept(this));
+
+            if (current.terminator() == null) {
+                current.terminate(new Ir.Return(receiver != null ? receiver : constant(null), 0));
+            }
+        } catch (Unsupported e) {
+            return Optional.empty();
+        }
+
+        function.removeUnreachableBlocks();
+
+        return Optional.of(function);
+    }
+
+    /**
+     * Variables declared in this function can be converted to SSA form
+     * if they are only accessed by this function.
+     */
+    private boolean isPromoted(VarDef varDef) {
+        return promoted.computeIfAbsent(varDef, it ->
+            (it.getClass() == VarDef.class || it instanceof ParameterVarDef) &&
+            it.function().name == function.function.name &&
+            !it.isLateInit() &&
+            !it.isCaptured()
+        );
+    }
+
+    private Instruction constant(Object value) {
+        return current.append(new Ir.Constant(value));
+    }
+
+    private Instruction truthy(Instruction value) {
+        return current.append(new Ir.Truthy(value));
+    }
+
+    private Instruction unbox(Instruction value, String message, int line) {
+        return current.append(new Ir.Unbox(value, message, line));
+    }
+
+    private Instruction box(Instruction value) {
+        return current.append(new Ir.Box(value));
+    }
+
+    private Block unreachableBlock() {
+        var block = function.newBlock();
+        seal(block);
+        return block;
+    }
+
+    private void writeVariable(VarDef varDef, Block block, Instruction value) {
+        currentDefs.computeIfAbsent(block, k -> new HashMap<>()).put(varDef, value);
+    }
+
+    private Instruction readVariable(VarDef varDef, Block block) {
+        var value = currentDefs.computeIfAbsent(block, k -> new HashMap<>()).get(varDef);
+        return value != null ? value : readVariableRecursive(varDef, block);
+    }
+
+    private Instruction readVariableRecursive(VarDef varDef, Block block) {
+        Instruction value;
+        if (!sealed.contains(block)) {
+            // Not all predecessors are known yet, the phi operands are added when the block is sealed.
+            var phi = block.addPhi();
+            incompletePhis.computeIfAbsent(block, k -> new LinkedHashMap<>()).put(varDef, phi);
+            value = phi;
+        } else if (block.predecessors.size() == 1) {
+            value = readVariable(varDef, block.predecessors.get(0));
+        } else if (block.predecessors.isEmpty()) {
+            // Read before any definition, which the resolver should have reported.
+            if (block == function.entry()) throw new Unsupported();
+            // Otherwise, the block is unreachable and will be removed.
+            value = block.insert(0, new Ir.Constant(null));
+        } else {
+            // Break potential cycles with an operandless phi.
+            var phi = block.addPhi();
+            writeVariable(varDef, block, phi);
+            value = addPhiOperands(varDef, phi);
+        }
+        writeVariable(varDef, block, value);
+        return value;
+    }
+
+    private Instruction addPhiOperands(VarDef varDef, Phi phi) {
+        for (var predecessor : phi.block().predecessors) {
+            phi.addIncoming(readVariable(varDef, predecessor));
+        }
+        return tryRemoveTrivialPhi(phi);
+    }
+
+    private Instruction tryRemoveTrivialPhi(Phi phi) {
+        Instruction same = null;
+        for (var operand : phi.operands()) {
+            // Unique value or self-reference.
+            if (operand == same || operand == phi) continue;
+            // The phi merges at least two values: not trivial.
+            if (same != null) return phi;
+            same = operand;
+        }
+
+        // The phi is unreachable or in the start block.
+        if (same == null) same = phi.block().insert(0, new Ir.Constant(null));
+
+        var users = new ArrayList<>(phi.users());
+        users.remove(phi);
+        phi.replaceAllUsesWith(same);
+        phi.remove();
+        for (var defs : currentDefs.values()) {
+            final var replacement = same;
+            defs.replaceAll((varDef, value) -> value == phi ? replacement : value);
+        }
+
+        // Removing this phi may have made other phis trivial.
+        for (var user : users) {
+            if (user instanceof Phi userPhi && userPhi.block() != null) tryRemoveTrivialPhi(userPhi);
+        }
+
+        return same;
+    }
+
+    private void seal(Block block) {
+        var phis = incompletePhis.remove(block);
+        if (phis != null) phis.forEach(this::addPhiOperands);
+        sealed.add(block);
+    }
+
+    private void jump(Block target) {
+        current.terminate(new Ir.Jump(target));
+    }
+
+    @Override
+    public Void visitBlockStmt(Stmt.Block stmt) {
+        stmt.statements.forEach(it -> it.accept(this));
+        return null;
+    }
+
+    @Override
+    public Void visitClassStmt(Stmt.Class stmt) {
+        // The superclass is loaded by the tree compiler, which can't read SSA values.
+        if (stmt.superclass != null) {
+            var superclass = resolver.varDef(stmt.superclass).orElseThrow(Unsupported::new);
+            if (isPromoted(superclass)) throw new Unsupported();
+        }
+        current.append(new Ir.Statement(stmt));
+        return null;
+    }
+
+    @Override
+    public Void visitExpressionStmt(Stmt.Expression stmt) {
+        stmt.expression.accept(this);
+        return null;
+    }
+
+    @Override
+    public Void visitFunctionStmt(Stmt.Function stmt) {
+        current.append(new Ir.Statement(stmt));
+        return null;
+    }
+
+    @Override
+    public Void visitIfStmt(Stmt.If stmt) {
+        var condition = truthy(stmt.condition.accept(this));
+        var thenBlock = function.newBlock();
+        var elseBlock = function.newBlock();
+        var end = function.newBlock();
+        current.terminate(new Ir.Branch(condition, thenBlock, elseBlock));
+        seal(thenBlock);
+        seal(elseBlock);
+
+        current = thenBlock;
+        stmt.thenBranch.accept(this);
+        jump(end);
+
+        current = elseBlock;
+        if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+        jump(end);
+
+        seal(end);
+        current = end;
+        return null;
+    }
+
+    @Override
+    public Void visitPrintStmt(Stmt.Print stmt) {
+        var value = stmt.expression.accept(this);
+        current.append(new Ir.Print(value));
+        return null;
+    }
+
+    @Override
+    public Void visitReturnStmt(Stmt.Return stmt) {
+        Instruction value;
+        if (stmt.value != null) value = stmt.value.accept(this);
+        else if (receiver != null) value = receiver;
+        else value = constant(null);
+
+        current.terminate(new Ir.Return(value, stmt.keyword.line));
+        current = unreachableBlock();
+        return null;
+    }
+
+    @Override
+    public Void visitVarStmt(Stmt.Var stmt) {
+        var value = stmt.initializer != null ? stmt.initializer.accept(this) : constant(null);
+        var varDef = resolver.varDef(stmt.name);
+        if (!varDef.isRead()) return null;
+
+        if (isPromoted(varDef)) writeVariable(varDef, current, value);
+        else current.append(new Ir.DeclareVariable(varDef, value, stmt.name.line));
+        return null;
+    }
+
+    @Override
+    public Void visitWhileStmt(Stmt.While stmt) {
+        var header = function.newBlock();
+        jump(header);
+        current = header;
+
+        var condition = truthy(stmt.condition.accept(this));
+        var body = function.newBlock();
+        var end = function.newBlock();
+        current.terminate(new Ir.Branch(condition, body, end));
+        seal(body);
+
+        current = body;
+        stmt.body.accept(this);
+        jump(header);
+
+        seal(header);
+        seal(end);
+        current = end;
+        return null;
+    }
+
+    @Override
+    public Instruction visitAssignExpr(Expr.Assign expr) {
+        var varDef = resolver.varDef(expr).orElseThrow(Unsupported::new);
+        var value = expr.value.accept(this);
+        if (!varDef.isRead()) return value;
+
+        if (isPromoted(varDef)) writeVariable(varDef, current, value);
+        else current.append(new Ir.StoreVariable(varDef.token(), value));
+        return value;
+    }
+
+    @Override
+    public Instruction visitBinaryExpr(Expr.Binary expr) {
+        var line = expr.operator.line;
+        return switch (expr.operator.type) {
+            case EQUAL_EQUAL -> {
+                var left = expr.left.accept(this);
+                var right = expr.right.accept(this);
+                yield box(current.append(new Ir.Equals(left, right)));
+            }
+            case BANG_EQUAL -> {
+                var left = expr.left.accept(this);
+                var right = expr.right.accept(this);
+                yield box(current.append(new Ir.Not(current.append(new Ir.Equals(left, right)))));
+            }
+            case PLUS -> {
+                var left = expr.left.accept(this);
+                var right = expr.right.accept(this);
+                yield current.append(new Ir.Add(left, right, line));
+            }
+            case MINUS, SLASH, STAR, GREATER, GREATER_EQUAL, LESS, LESS_EQUAL -> {
+                // The left operand is checked before the right operand is evaluated.
+                var left = unbox(expr.left.accept(this), "Operands must be numbers.", line);
+                var right = unbox(expr.right.accept(this), "Operands must be numbers.", line);
+                yield box(switch (expr.operator.type) {
+                    case MINUS, SLASH, STAR -> current.append(new Ir.Arithmetic(expr.operator.type, left, right));
+                    default -> current.append(new Ir.Compare(expr.operator.type, left, right));
+                });
+            }
+            default -> throw new IllegalStateException("Unexpected value: " + expr.operator);
+        };
+    }
+
+    @Override
+    public Instruction visitCallExpr(Expr.Call expr) {
+        var callee = expr.callee.accept(this);
+        var arguments = new ArrayList<Instruction>();
+        expr.arguments.forEach(it -> arguments.add(it.accept(this)));
+
+        var target = sideEffectAnalyzer.function(expr);
+        if (target.isPresent() && target.get().params.size() != arguments.size()) {
+            // The call always fails, but only after evaluating the callee and arguments.
+            current.terminate(new Ir.Throw("Expected " + target.get().params.size() + " arguments but got " + arguments.size() + ".", expr.paren.line));
+            current = unreachableBlock();
+            return constant(null);
+        }
+
+        return current.append(new Ir.Call(callee, arguments, directCalls ? target.orElse(null) : null, expr.paren.line));
+    }
+
+    @Override
+    public Instruction visitGetExpr(Expr.Get expr) {
+        var object = expr.object.accept(this);
+        return current.append(new Ir.Get(object, expr.name));
+    }
+
+    @Override
+    public Instruction visitGroupingExpr(Expr.Grouping expr) {
+        return expr.expression.accept(this);
+    }
+
+    @Override
+    public Instruction visitLiteralExpr(Expr.Literal expr) {
+        return constant(expr.value);
+    }
+
+    @Override
+    public Instruction visitLogicalExpr(Expr.Logical expr) {
+        var left = expr.left.accept(this);
+        var right = function.newBlock();
+        var end = function.newBlock();
+        var condition = truthy(left);
+        switch (expr.operator.type) {
+            case OR -> current.terminate(new Ir.Branch(condition, end, right));
+            case AND -> current.terminate(new Ir.Branch(condition, right, end));
+            default -> throw new IllegalArgumentException("Unsupported logical expr type: " + expr.operator.type);
+        }
+        seal(right);
+
+        current = right;
+        var rightValue = expr.right.accept(this);
+        jump(end);
+
+        seal(end);
+        current = end;
+        var phi = end.addPhi();
+        phi.addIncoming(left);
+        phi.addIncoming(rightValue);
+        return phi;
+    }
+
+    @Override
+    public Instruction visitSetExpr(Expr.Set expr) {
+        var object = expr.object.accept(this);
+        var instance = current.append(new Ir.CheckInstance(object, "Only instances have fields.", expr.name.line));
+        var value = expr.value.accept(this);
+        current.append(new Ir.Set(instance, expr.name, value));
+        return value;
+    }
+
+    @Override
+    public Instruction visitSuperExpr(Expr.Super expr) {
+        return current.append(new Ir.Tree(expr));
+    }
+
+    @Override
+    public Instruction visitThisExpr(Expr.This expr) {
+        return current.append(new Ir.Tree(expr));
+    }
+
+    @Override
+    public Instruction visitUnaryExpr(Expr.Unary expr) {
+        var right = expr.right.accept(this);
+        return switch (expr.operator.type) {
+            case BANG -> box(current.append(new Ir.Not(truthy(right))));
+            case MINUS -> box(current.append(new Ir.Negate(unbox(right, "Operand must be a number.", expr.operator.line))));
+            default -> throw new IllegalArgumentException("Unsupported op: " + expr.operator.type);
+        };
+    }
+
+    @Override
+    public Instruction visitVariableExpr(Expr.Variable expr) {
+        var varDef = resolver.varDef(expr).orElseThrow(Unsupported::new);
+        if (isPromoted(varDef)) return readVariable(varDef, current);
+        return current.append(new Ir.LoadVariable(expr));
+    }
+
+    /**
+     * Thrown when a function contains something that can't be lowered.
+     */
+    private static class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        Unsupported() {
+            super(null, null, false, false);
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.Ir.Block;
+import com.craftinginterpreters.lox.Ir.Instruction;
+import com.craftinginterpreters.lox.Ir.Type;
+import proguard.classfile.editor.CompactCodeAttributeComposer.Label;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.LoxConstants.LOX_INSTANCE;
+import static com.craftinginterpreters.lox.LoxConstants.LOX_METHOD;
+
+/**
+ * Emits the bytecode for an {@link Ir.Function}.
+ * <p>
+ * Every value that is used is stored in its own local variable, after the slots assigned
+ * by the {@link VariableAllocator}. Phis are resolved by copying the operands into the
+ * phi's slot at the end of each predecessor, after splitting critical edges.
+ * <p>
+ * <code>this</code>, <code>super</code> and nested declarations are compiled by the tree compiler.
+ */
+public class IrCompiler implements Ir.Visitor<LoxComposer> {
+
+    private final LoxComposer composer;
+    private final CompilerResolver resolver;
+    private final VariableAllocator allocator;
+    private final Stmt.Visitor<LoxComposer> stmtCompiler;
+    private final Expr.Visitor<LoxComposer> exprCompiler;
+    private final Map<Instruction, Integer> slots = new HashMap<>();
+    private final Map<Block, Label> labels = new HashMap<>();
+    private Ir.Function function;
+    private Block next;
+
+    public IrCompiler(LoxComposer composer, CompilerResolver resolver, VariableAllocator allocator, Stmt.Visitor<LoxComposer> stmtCompiler, Expr.Visitor<LoxComposer> exprCompiler) {
+        this.composer = composer;
+        this.resolver = resolver;
+        this.allocator = allocator;
+        this.stmtCompiler = stmtCompiler;
+        this.exprCompiler = exprCompiler;
+    }
+
+    public LoxComposer compile(Ir.Function function) {
+        this.function = function;
+        splitCriticalEdges();
+        allocateSlots();
+
+        var blocks = function.reversePostOrder();
+        blocks.forEach(block -> labels.put(block, composer.createLabel()));
+        for (int i = 0; i < blocks.size(); i++) {
+            var block = blocks.get(i);
+            next = i + 1 < blocks.size() ? blocks.get(i + 1) : null;
+            composer.label(labels.get(block));
+            block.instructions.forEach(this::emit);
+            emit(block.terminator());
+        }
+
+        return composer;
+    }
+
+    /**
+     * Phi copies are inserted before the jump at the end of a predecessor, so a branch
+     * to a block with phis needs a new block in between to hold the copies.
+     */
+    private void splitCriticalEdges() {
+        for (var block : new ArrayList<>(function.blocks)) {
+            if (!(block.terminator() instanceof Ir.Branch)) continue;
+            for (var successor : new ArrayList<>(block.successors())) {
+                if (!successor.phis.isEmpty()) block.splitEdge(function, successor);
+            }
+        }
+    }
+
+    private void allocateSlots() {
+        var slot = allocator.maxLocals(function.function);
+        for (var block : function.blocks) {
+            for (var instruction : block.allInstructions()) {
+                if (instruction.type == Type.VOID) continue;
+                if (instruction.users().isEmpty() && !(instruction instanceof Ir.Phi)) continue;
+                slots.put(instruction, slot);
+                slot += instruction.type == Type.DOUBLE ? 2 : 1;
+            }
+        }
+    }
+
+    private void emit(Instruction instruction) {
+        if (instruction.line > 0) composer.line(instruction.line);
+        instruction.accept(this);
+        if (instruction.type == Type.VOID) return;
+
+        if (slots.containsKey(instruction)) store(instruction);
+        else if (instruction.type == Type.DOUBLE) composer.pop2();
+        else composer.pop();
+    }
+
+    private LoxComposer load(Instruction value) {
+        int slot = slots.get(value);
+        return switch (value.type) {
+            case DOUBLE -> composer.dload(slot);
+            case BOOLEAN -> composer.iload(slot);
+            default -> composer.aload(slot);
+        };
+    }
+
+    private LoxComposer store(Instruction value) {
+        int slot = slots.get(value);
+        return switch (value.type) {
+            case DOUBLE -> composer.dstore(slot);
+            case BOOLEAN -> composer.istore(slot);
+            default -> composer.astore(slot);
+        };
+    }
+
+    private LoxComposer loadOperands(Instruction instruction) {
+        instruction.operands().forEach(this::load);
+        return composer;
+    }
+
+    @Override
+    public LoxComposer visitConstant(Ir.Constant instruction) {
+        return composer.loxliteral(instruction.value);
+    }
+
+    @Override
+    public LoxComposer visitParameter(Ir.Parameter instruction) {
+        return composer
+            .aload_1()
+            .pushInt(instruction.index)
+            .aaload();
+    }
+
+    @Override
+    public LoxComposer visitReceiver(Ir.Receiver instruction) {
+        return composer
+            .aload_0()
+            .invokevirtual(LOX_METHOD, "getReceiver", "()L" + LOX_INSTANCE + ";");
+    }
+
+    @Override
+    public LoxComposer visitPhi(Ir.Phi instruction) {
+        throw new IllegalStateException("Phis are resolved by their predecessors");
+    }
+
+    @Override
+    public LoxComposer visitLoadVariable(Ir.LoadVariable instruction) {
+        return composer.load(function.function, instruction.variable);
+    }
+
+    @Override
+    public LoxComposer visitStoreVariable(Ir.StoreVariable instruction) {
+        return loadOperands(instruction).store(function.function, instruction.name);
+    }
+
+    @Override
+    public LoxComposer visitDeclareVariable(Ir.DeclareVariable instruction) {
+        return loadOperands(instruction).declare(instruction.varDef);
+    }
+
+    @Override
+    public LoxComposer visitUnbox(Ir.Unbox instruction) {
+        return loadOperands(instruction).unbox("java/lang/Double", instruction.message);
+    }
+
+    @Override
+    public LoxComposer visitBox(Ir.Box instruction) {
+        return loadOperands(instruction).box(instruction.operand(0).type == Type.DOUBLE ? "java/lang/Double" : "java/lang/Boolean");
+    }
+
+    @Override
+    public LoxComposer visitArithmetic(Ir.Arithmetic instruction) {
+        loadOperands(instruction);
+        return switch (instruction.operator) {
+            case MINUS -> composer.dsub();
+            case SLASH -> composer.ddiv();
+            case STAR -> composer.dmul();
+            default -> throw new IllegalStateException("Unexpected value: " + instruction.operator);
+        };
+    }
+
+    @Override
+    public LoxComposer visitNegate(Ir.Negate instruction) {
+        return loadOperands(instruction).dneg();
+    }
+
+    @Override
+    public LoxComposer visitCompare(Ir.Compare instruction) {
+        var falseBranch = composer.createLabel();
+        var end = composer.createLabel();
+        loadOperands(instruction);
+        switch (instruction.operator) {
+            case GREATER -> composer.dcmpl().ifle(falseBranch);
+            case GREATER_EQUAL -> composer.dcmpl().iflt(falseBranch);
+            case LESS -> composer.dcmpg().ifge(falseBranch);
+            case LESS_EQUAL -> composer.dcmpg().ifgt(falseBranch);
+            default -> throw new IllegalStateException("Unexpected value: " + instruction.operator);
+        }
+        return composer
+            .iconst_1()
+            .goto_(end)
+            .label(falseBranch)
+            .iconst_0()
+            .label(end);
+    }
+
+    @Override
+    public LoxComposer visitEquals(Ir.Equals instruction) {
+        return loadOperands(instruction).invokestatic("java/util/Objects", "equals", "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+    }
+
+    @Override
+    public LoxComposer visitNot(Ir.Not instruction) {
+        return loadOperands(instruction)
+            .iconst_1()
+            .ixor();
+    }
+
+    @Override
+    public LoxComposer visitTruthy(Ir.Truthy instruction) {
+        return loadOperands(instruction).truthy();
+    }
+
+    @Override
+    public LoxComposer visitAdd(Ir.Add instruction) {
+        return loadOperands(instruction).loxadd();
+    }
+
+    @Override
+    public LoxComposer visitCheckInstance(Ir.CheckInstance instruction) {
+        var isInstance = composer.createLabel();
+        return loadOperands(instruction)
+            .dup()
+            .instanceof_(LOX_INSTANCE)
+            .ifne(isInstance)
+            .pop()
+            .loxthrow(instruction.message)
+
+            .label(isInstance)
+            .checkcast(LOX_INSTANCE);
+    }
+
+    @Override
+    public LoxComposer visitGet(Ir.Get instruction) {
+        return composer
+            .ldc(instruction.name.lexeme)
+            .also(composer -> loadOperands(instruction))
+            .loxget();
+    }
+
+    @Override
+    public LoxComposer visitSet(Ir.Set instruction) {
+        return load(instruction.operand(0))
+            .ldc(instruction.name.lexeme)
+            .also(composer -> load(instruction.operand(1)))
+            .invokevirtual(LOX_INSTANCE, "set", "(Ljava/lang/String;Ljava/lang/Object;)V");
+    }
+
+    @Override
+    public LoxComposer visitCall(Ir.Call instruction) {
+        var arguments = instruction.operands().subList(1, instruction.operands().size());
+
+        if (instruction.function == null) {
+            return loadOperands(instruction)
+                .line(instruction.line)
+                .invokedynamic(
+                    0,
+                    "invoke", "(Ljava/lang/Object;" + ("Ljava/lang/Object;".repeat(arguments.size())) + ")Ljava/lang/Object;",
+                    null);
+        }
+
+        load(instruction.operand(0));
+        if (!resolver.varDef(instruction.function.name).isLateInit()) composer.checkcast(resolver.javaClassName(instruction.function));
+        composer
+            .pushInt(arguments.size())
+            .anewarray("java/lang/Object", null);
+        for (int i = 0; i < arguments.size(); i++) {
+            var argument = arguments.get(i);
+            composer
+                .dup()
+                .pushInt(i)
+                .also(composer -> load(argument))
+                .aastore();
+        }
+
+        return composer
+            .line(instruction.line)
+            .loxinvoke(instruction.function);
+    }
+
+    @Override
+    public LoxComposer visitPrint(Ir.Print instruction) {
+        return loadOperands(instruction).loxprint();
+    }
+
+    @Override
+    public LoxComposer visitTree(Ir.Tree instruction) {
+        return instruction.expr.accept(exprCompiler);
+    }
+
+    @Override
+    public LoxComposer visitStatement(Ir.Statement instruction) {
+        return instruction.stmt.accept(stmtCompiler);
+    }
+
+    @Override
+    public LoxComposer visitJump(Ir.Jump instruction) {
+        var target = instruction.target();
+        var phis = target.phis;
+        if (!phis.isEmpty()) {
+            // Load all the operands before storing any, since phis can use each other.
+            var index = target.predecessors.indexOf(instruction.block());
+            phis.forEach(phi -> load(phi.operand(index)));
+            for (int i = phis.size() - 1; i >= 0; i--) store(phis.get(i));
+        }
+
+        return target == next ? composer : composer.goto_(labels.get(target));
+    }
+
+    @Override
+    public LoxComposer visitBranch(Ir.Branch instruction) {
+        loadOperands(instruction);
+        if (instruction.ifTrue() == next) return composer.ifeq(labels.get(instruction.ifFalse()));
+
+        composer.ifne(labels.get(instruction.ifTrue()));
+        return instruction.ifFalse() == next ? composer : composer.goto_(labels.get(instruction.ifFalse()));
+    }
+
+    @Override
+    public LoxComposer visitReturn(Ir.Return instruction) {
+        return loadOperands(instruction).areturn();
+    }
+
+    @Override
+    public LoxComposer visitThrow(Ir.Throw instruction) {
+        return composer.loxthrow(instruction.message);
+    }
+}
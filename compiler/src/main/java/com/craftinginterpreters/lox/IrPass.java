@@ -0,0 +1,15 @@
+package com.craftinginterpreters.lox;
+
+/**
+ * A transformation of an {@link Ir.Function}, run by the {@link IrPassManager}.
+ * <p>
+ * Passes must keep the operands and users of instructions consistent.
+ */
+public interface IrPass {
+
+    void run(Ir.Function function);
+
+    default String name() {
+        return getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,75 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Runs a sequence of {@link IrPass}es over a function.
+ * <p>
+ * When debugging, the function is printed and verified after each pass.
+ */
+public class IrPassManager {
+
+    private final boolean debug;
+    private final List<IrPass> passes;
+
+    public IrPassManager(boolean debug, IrPass... passes) {
+        this.debug = debug;
+        this.passes = List.of(passes);
+    }
+
+    public static IrPassManager defaultPasses(boolean debug) {
+        return new IrPassManager(
+            debug,
+            new BoxEliminator(),
+            new GuardEliminator(),
+            new DeadCodeEliminator()
+        );
+    }
+
+    public void run(Ir.Function function) {
+        if (debug) {
+            System.out.println(function);
+            verify(function);
+        }
+
+        for (var pass : passes) {
+            pass.run(function);
+            if (debug) {
+                System.out.println("after " + pass.name() + ":");
+                System.out.println(function);
+                verify(function);
+            }
+        }
+    }
+
+    private static void verify(Ir.Function function) {
+        var blocks = new HashSet<>(function.blocks);
+        for (var block : function.blocks) {
+            if (block.terminator() == null) fail(function, block + " is not terminated");
+            for (var successor : block.successors()) {
+                if (!blocks.contains(successor) || !successor.predecessors.contains(block))
+                    fail(function, block + " has invalid successor " + successor);
+            }
+            for (var phi : block.phis) {
+                if (phi.operands().size() != block.predecessors.size())
+                    fail(function, block + " has a phi with " + phi.operands().size() + " operands");
+            }
+            for (var instruction : block.allInstructions()) {
+                if (instruction.block() != block) fail(function, instruction + " is in the wrong block");
+                for (var operand : instruction.operands()) {
+                    if (!operand.users().contains(instruction) || !blocks.contains(operand.block()))
+                        fail(function, instruction + " has invalid operand " + operand);
+                }
+                for (var user : instruction.users()) {
+                    if (!user.operands().contains(instruction))
+                        fail(function, instruction + " has invalid user " + user);
+                }
+            }
+        }
+    }
+
+    private static void fail(Ir.Function function, String message) {
+        throw new IllegalStateException("Invalid IR in " + function.function.name.lexeme + ": " + message);
+    }
+}
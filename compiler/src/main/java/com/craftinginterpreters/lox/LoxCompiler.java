@@ -0,0 +1,196 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.Diagnostics.Diagnostic;
+import lox.LoxException;
+import org.jetbrains.annotations.Nullable;
+import proguard.classfile.ClassPool;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles Lox programs to a {@link ClassPool}, or to closures, reporting errors as
+ * structured {@link Diagnostic}s rather than printing them.
+ * <p>
+ * All the state of a compilation is created by {@link #compile(String)}, so the same
+ * compiler can be used by several threads at the same time.
+ * <p>
+ * The first compilation replaces <code>System.err</code> by a {@link ThreadLocalPrintStream},
+ * for the rest of the life of the JVM, to capture the errors that the parser prints.
+ */
+public class LoxCompiler {
+
+    private static final Pattern ERROR = Pattern.compile("\\[line (\\d+)] Error(.*): (.*)");
+
+    private final CompilerOptions options;
+
+    public LoxCompiler() {
+        this(CompilerOptions.defaults());
+    }
+
+    public LoxCompiler(CompilerOptions options) {
+        this.options = options;
+    }
+
+    /**
+     * The compiled program, or <code>null</code> if there were errors, and the Java
+     * field names of its exported globals in the main class, by name.
+     */
+    public record Result(@Nullable ClassPool classPool, List<Diagnostic> diagnostics, Map<String, String> exports) {
+        public Result(@Nullable ClassPool classPool, List<Diagnostic> diagnostics) {
+            this(classPool, diagnostics, Map.of());
+        }
+
+        public boolean isSuccess() {
+            return classPool != null;
+        }
+
+        /**
+         * Returns the exit status of <code>jlox</code> for this result: 70 if a runtime
+         * error was detected at compile time, 65 if there were other errors, or 0.
+         */
+        public int status() {
+            return LoxCompiler.status(diagnostics, isSuccess());
+        }
+    }
+
+    public Result compile(String source) {
+        return compile(source, Set.of());
+    }
+
+    /**
+     * Compiles the source as a continuation of programs that declared the given globals,
+     * as {@link Compiler#compile(List, Collection)} does.
+     */
+    public Result compile(String source, Collection<String> globals) {
+        var diagnostics = new Diagnostics();
+        var compiler = new Compiler(options, diagnostics);
+        var classPool = compile(source, diagnostics, statements -> compiler.compile(statements, globals));
+        if (classPool == null) return new Result(null, diagnostics.toList());
+        return new Result(classPool, diagnostics.toList(), compiler.exports());
+    }
+
+    /**
+     * The program compiled to closures, or <code>null</code> if there were errors.
+     */
+    public record ClosureResult(@Nullable ClosureCompiler.Program program, List<Diagnostic> diagnostics) {
+        public boolean isSuccess() {
+            return program != null;
+        }
+
+        /**
+         * Returns the exit status of <code>jlox</code> for this result, like {@link Result#status()}.
+         */
+        public int status() {
+            return LoxCompiler.status(diagnostics, isSuccess());
+        }
+    }
+
+    /**
+     * Compiles the source to closures, which start running sooner than classes.
+     */
+    public ClosureResult compileToClosures(String source) {
+        var diagnostics = new Diagnostics();
+        var program = compile(source, diagnostics, new Compiler(options, diagnostics)::compileToClosures);
+        return new ClosureResult(program, diagnostics.toList());
+    }
+
+    /**
+     * Compiles the source to closures, whose hot functions are compiled to classes in the background.
+     */
+    public ClosureResult compileTiered(String source) {
+        var diagnostics = new Diagnostics();
+        var program = compile(source, diagnostics, new Compiler(options, diagnostics)::compileTiered);
+        return new ClosureResult(program, diagnostics.toList());
+    }
+
+    /**
+     * A class loader for the lazily compiled program, or <code>null</code> if there were errors.
+     */
+    public record LazyResult(@Nullable ClassLoader classLoader, List<Diagnostic> diagnostics) {
+        public boolean isSuccess() {
+            return classLoader != null;
+        }
+
+        /**
+         * Returns the exit status of <code>jlox</code> for this result, like {@link Result#status()}.
+         */
+        public int status() {
+            return LoxCompiler.status(diagnostics, isSuccess());
+        }
+    }
+
+    /**
+     * Compiles the source to classes whose functions' code is generated when they're first called.
+     */
+    public LazyResult compileLazily(String source) {
+        var diagnostics = new Diagnostics();
+        var classLoader = compile(source, diagnostics, new Compiler(options, diagnostics)::compileLazily);
+        return new LazyResult(classLoader, diagnostics.toList());
+    }
+
+    private static int status(List<Diagnostic> diagnostics, boolean isSuccess) {
+        if (diagnostics.stream().anyMatch(it -> it.kind() == Diagnostics.Kind.RUNTIME_ERROR)) return 70;
+        if (!isSuccess) return 65;
+        return 0;
+    }
+
+    private <T> @Nullable T compile(String source, Diagnostics diagnostics, Function<List<Stmt>, T> compiler) {
+        try {
+            var statements = parse(source, diagnostics);
+
+            if (diagnostics.hasErrors()) return null;
+
+            new Checker(diagnostics).execute(statements);
+
+            if (diagnostics.hasErrors()) return null;
+
+            var result = compiler.apply(statements);
+
+            if (diagnostics.hasErrors()) return null;
+
+            return result;
+        } catch (LoxException e) {
+            // The message includes the line number.
+            var message = e.getMessage();
+            diagnostics.runtimeError(e.getLine(), message.substring(0, message.lastIndexOf("\n[line ")));
+            return null;
+        }
+    }
+
+    /**
+     * The scanner and parser are unmodified from the book, and report errors by printing
+     * them to <code>System.err</code> and setting <code>Lox.hadError</code>. Instead, the
+     * errors that the current thread prints while parsing are captured and added to the
+     * diagnostics.
+     */
+    private static List<Stmt> parse(String source, Diagnostics diagnostics) {
+        var errors = new ByteArrayOutputStream();
+        var err = ThreadLocalPrintStream.err();
+        err.capture(errors);
+        List<Stmt> statements;
+        try {
+            var tokens = new Scanner(source).scanTokens();
+            statements = new Parser(tokens).parse();
+        } finally {
+            err.capture(null);
+        }
+
+        errors.toString(Charset.defaultCharset()).lines().forEach(line -> {
+            var matcher = ERROR.matcher(line);
+            if (matcher.matches()) {
+                diagnostics.add(new Diagnostic(Diagnostics.Kind.ERROR, Integer.parseInt(matcher.group(1)), matcher.group(2), matcher.group(3)));
+            } else {
+                diagnostics.error(0, line);
+            }
+        });
+
+        return statements;
+    }
+}
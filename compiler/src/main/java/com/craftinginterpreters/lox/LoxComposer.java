@@ -14,12 +14,22 @@ public class LoxComposer extends Composer<LoxComposer> {
     private final ClassPool programClassPool;
     private final CompilerResolver resolver;
     private final VariableAllocator allocator;
+    private final boolean outlineToTarget;
 
     public LoxComposer(CompactCodeAttributeComposer delegate, ClassPool programClassPool, CompilerResolver resolver, VariableAllocator allocator) {
+        this(delegate, programClassPool, resolver, allocator, false);
+    }
+
+    /**
+     * Creates a composer that outlines helpers into its target class if <code>outlineToTarget</code>
+     * is true, rather than into the main class, which may already be loaded.
+     */
+    public LoxComposer(CompactCodeAttributeComposer delegate, ClassPool programClassPool, CompilerResolver resolver, VariableAllocator allocator, boolean outlineToTarget) {
         super(delegate);
         this.programClassPool = programClassPool;
         this.resolver = resolver;
         this.allocator = allocator;
+        this.outlineToTarget = outlineToTarget;
     }
 
     public LoxComposer also(Function<LoxComposer, LoxComposer> block) {
@@ -35,8 +45,19 @@ public class LoxComposer extends Composer<LoxComposer> {
     }
 
     private LoxComposer isTruthy(boolean jumpIfTrue, Label jumpTo) {
-        outline(programClassPool, LOX_MAIN_CLASS, "isTruthy", "(Ljava/lang/Object;)Z", composer -> {
-            var loxComposer = new LoxComposer(composer, programClassPool, resolver, allocator);
+        truthy();
+
+        if (jumpIfTrue) ifne(jumpTo); else ifeq(jumpTo);
+
+        return this;
+    }
+
+    /**
+     * Replaces the value on top of the stack with 1 if it is truthy, or 0 otherwise.
+     */
+    public LoxComposer truthy() {
+        return outline(programClassPool, helperClass(), "isTruthy", "(Ljava/lang/Object;)Z", composer -> {
+            var loxComposer = new LoxComposer(composer, programClassPool, resolver, allocator, outlineToTarget);
             var nonNull = loxComposer.createLabel();
             var isTruthy = loxComposer.createLabel();
             var isNotTruthy = loxComposer.createLabel();
@@ -68,10 +89,6 @@ public class LoxComposer extends Composer<LoxComposer> {
                 .iconst_1()
                 .label(end);
         });
-
-        if (jumpIfTrue) ifne(jumpTo); else ifeq(jumpTo);
-
-        return this;
     }
 
     public LoxComposer loxthrow(String message) {
@@ -83,12 +100,235 @@ public class LoxComposer extends Composer<LoxComposer> {
         return this;
     }
 
+    /**
+     * Prints the value on top of the stack, formatted like Lox values.
+     */
+    public LoxComposer loxprint() {
+        return outline(programClassPool, helperClass(), "println", "(Ljava/lang/Object;)V", composer -> {
+            var nonNull = composer.createLabel();
+            var isObject = composer.createLabel();
+            var end = composer.createLabel();
+            // Stringify before printing.
+            composer
+                .dup()
+                // O, O
+                .ifnonnull(nonNull)
+                // O
+                .pop()
+                //
+                .ldc("nil")
+                // "nil"
+                .goto_(end)
+
+                .label(nonNull)
+                // O
+                .dup()
+                // O, O
+                .instanceof_("java/lang/Double", null)
+                // O, I
+                .ifeq(isObject)
+                // O
+                .invokevirtual("java/lang/Object", "toString", "()Ljava/lang/String;")
+                // O.toString
+                .dup()
+                // O.toString, O.toString
+                .ldc(".0")
+                // O.toString, O.toString, ".0"
+                .invokevirtual("java/lang/String", "endsWith", "(Ljava/lang/String;)Z")
+                // O.toString, Z
+                .ifeq(end)
+                // O.toString
+                .dup()
+                // O.toString, O.toString
+                .iconst_0()
+                // O.toString, O.toString, 0
+                .swap()
+                // O.toString, 0, O.toString
+                .invokevirtual("java/lang/String", "length", "()I")
+                // O.toString, 0, O.toString.length
+                .iconst_2()
+                // O.toString, 0, O.toString.length, 2
+                .isub()
+                // O.toString, 0, O.toString.length - 2
+                .invokevirtual("java/lang/String", "substring", "(II)Ljava/lang/String;")
+                // S
+                .goto_(end)
+
+                .label(isObject)
+                // O
+                .invokevirtual("java/lang/Object", "toString", "()Ljava/lang/String;")
+                // S
+                .label(end)
+                .getstatic("java/lang/System", "out", "Ljava/io/PrintStream;")
+                .swap()
+                .invokevirtual("java/io/PrintStream", "println", "(Ljava/lang/Object;)V");
+            }
+        );
+    }
+
+    /**
+     * Adds the two numbers or concatenates the two strings on top of the stack.
+     */
+    public LoxComposer loxadd() {
+        return outline(programClassPool, helperClass(), "add", "(Ljava/lang/Object;Ljava/lang/Object;)Ljava/lang/Object;", outlineComposer -> {
+            var composer = new LoxComposer(outlineComposer, programClassPool, resolver, allocator, outlineToTarget);
+            var bothDouble = composer.createLabel();
+            var checkAbIsString = composer.createLabel();
+            var checkBaIsString = composer.createLabel();
+            var bothString = composer.createLabel();
+            var throwException = composer.createLabel();
+            var throwExceptionPop = composer.createLabel();
+            var end = composer.createLabel();
+            //noinspection unchecked
+            composer
+                    .dup()
+                    // A, B, B
+                    .instanceof_("java/lang/Double")
+                    // A, B, Z
+                    .ifeq(checkAbIsString)
+                    // A, B
+                    .swap()
+                    // B, A
+                    .dup()
+                    // B, A, A
+                    .instanceof_("java/lang/Double")
+                    // B, A, Z
+                    .ifeq(checkBaIsString)
+                    // B, A
+                    .swap()
+                    // A, B
+                    .label(bothDouble)
+                    .unbox("java/lang/Double")
+                    // A, Ba, Bb
+                    .dup2_x1()
+                    // Ba, Bb, A, Ba, Bb
+                    .pop2()
+                    // Ba, Bb, A
+                    .unbox("java/lang/Double")
+                    // Ba, Bb, Aa, Ab
+                    .dadd()
+                    // Ba, Bb + Aa, Ab
+                    .box("java/lang/Double")
+                    // A + B
+                    .goto_(end)
+
+                    .label(checkBaIsString)
+                    .swap()
+                    .label(checkAbIsString)
+                    // A, B
+                    .dup()
+                    // A, B, B
+                    .instanceof_("java/lang/String")
+                    // A, B, Z
+                    .ifeq(throwExceptionPop)
+                    // A, B
+                    .swap()
+                    // B, A
+                    .instanceof_("java/lang/String")
+                    // B, Z
+                    .ifeq(throwException)
+                    // B
+                    .pop()
+                    //
+                    .label(bothString)
+                    .concat(
+                        CompactCodeAttributeComposer::aload_0,
+                        CompactCodeAttributeComposer::aload_1
+                    )
+                    .goto_(end)
+
+                    .label(throwExceptionPop)
+                    .pop()
+                    .label(throwException)
+                    .pop()
+                    .loxthrow("Operands must be two numbers or two strings.")
+
+                    .label(end);
+            }
+        );
+    }
+
+    /**
+     * Gets the property, named by the string below the instance on top of the stack.
+     */
+    public LoxComposer loxget() {
+        return outline(programClassPool, helperClass(), "get", "(Ljava/lang/String;Ljava/lang/Object;)Ljava/lang/Object;", composer -> {
+            var notInstance = composer.createLabel();
+            var end = composer.createLabel();
+            var loxComposer = new LoxComposer(composer, programClassPool, resolver, allocator, outlineToTarget);
+
+            loxComposer
+                .dup()
+                .instanceof_(LOX_INSTANCE)
+                .ifeq(notInstance)
+                .checkcast(LOX_INSTANCE)
+                .swap()
+                .invokevirtual(LOX_INSTANCE, "get", "(Ljava/lang/String;)Ljava/lang/Object;")
+                .goto_(end)
+
+                .label(notInstance)
+                .pop()
+                .loxthrow("Only instances have properties.")
+
+                .label(end);
+        });
+    }
+
+    /**
+     * Pushes a literal Lox value.
+     */
+    public LoxComposer loxliteral(Object value) {
+        if (value instanceof Boolean b) {
+            return b ?
+                    getstatic("java/lang/Boolean", "TRUE", "Ljava/lang/Boolean;") :
+                    getstatic("java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;");
+        } else if (value instanceof String s) {
+            return ldc(s);
+        } else if (value instanceof Double d) {
+            return pushDouble(d).box("java/lang/Double");
+        } else if (value == null) {
+            return aconst_null();
+        } else {
+            throw new IllegalArgumentException("Unknown literal type: " + value);
+        }
+    }
+
+    /**
+     * Invokes the statically known function below the argument array on top of the stack.
+     * The callee must already be cast to the function's class, unless it is late init.
+     */
+    public LoxComposer loxinvoke(Stmt.Function function) {
+        var className = resolver.javaClassName(function);
+
+        // A late init function may be called before its declaration has been executed.
+        if (resolver.varDef(function.name).isLateInit()) {
+            var notDeclared = createLabel();
+            var end = createLabel();
+            return swap()
+                .dup()
+                .instanceof_(className)
+                .ifeq(notDeclared)
+                .checkcast(className)
+                .swap()
+                .invokevirtual(className, "invoke", "([Ljava/lang/Object;)Ljava/lang/Object;")
+                .goto_(end)
+
+                .label(notDeclared)
+                .swap()
+                .invokestatic(LOX_INVOKER, "invoke", "(Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;")
+
+                .label(end);
+        }
+
+        return invokevirtual(className, "invoke", "([Ljava/lang/Object;)Ljava/lang/Object;");
+    }
+
     public LoxComposer unbox(String expectedType, String exceptionMessage) {
         char returnType = internalPrimitiveTypeFromNumericClassName(expectedType);
         String name = "unbox$" + returnType;
         ldc(exceptionMessage);
-        return outline(programClassPool, LOX_MAIN_CLASS, name, "(Ljava/lang/Object;Ljava/lang/String;)" + returnType, composer -> {
-            var loxComposer = new LoxComposer(composer, programClassPool, resolver, allocator);
+        return outline(programClassPool, helperClass(), name, "(Ljava/lang/Object;Ljava/lang/String;)" + returnType, composer -> {
+            var loxComposer = new LoxComposer(composer, programClassPool, resolver, allocator, outlineToTarget);
             var notInstance = createLabel();
             var end = createLabel();
             loxComposer
@@ -138,12 +378,15 @@ public class LoxComposer extends Composer<LoxComposer> {
             if (varDef.isCaptured()) {
                 if (varDef.isLateInit()) {
                     // Late init vars already have an initial value set in the function's constructor
-                    getstatic(resolver.javaClassName(varDef.function()), varDef.getJavaFieldName(), "L" + LOX_CAPTURED + ";");
+                    aload_0();
+                    getfield(resolver.javaClassName(varDef.function()), varDef.getJavaFieldName(), "L" + LOX_CAPTURED + ";");
                     swap();
                     invokevirtual(LOX_CAPTURED, "setValue", "(Ljava/lang/Object;)V");
                 } else {
                     box(varDef);
-                    putstatic(resolver.javaClassName(varDef.function()), varDef.getJavaFieldName(), "L" + LOX_CAPTURED + ";");
+                    aload_0();
+                    swap();
+                    putfield(resolver.javaClassName(varDef.function()), varDef.getJavaFieldName(), "L" + LOX_CAPTURED + ";");
                 }
                 // Don't need to store captured globals in a local.
                 return this;
@@ -177,12 +420,9 @@ public class LoxComposer extends Composer<LoxComposer> {
             .ifPresentOrElse(varDef -> {
                 if (varDef.isGlobal()) {
                     if (varDef.isCaptured()) {
-                        if (isTargetMainClass()) {
-                            getstatic(getTargetClass().getName(), varDef.getJavaFieldName(), "L" + LOX_CAPTURED + ";");
-                        } else {
-                            aload_0();
-                            getfield(getTargetClass().getName(), varDef.getJavaFieldName(), "L" + LOX_CAPTURED + ";");
-                        }
+                        // In main the field is declared, elsewhere it is a copy taken when capturing.
+                        aload_0();
+                        getfield(resolver.javaClassName(function), varDef.getJavaFieldName(), "L" + LOX_CAPTURED + ";");
                         unbox(varDef, false);
                     } else {
                         assert isTargetMainClass();
@@ -201,14 +441,13 @@ public class LoxComposer extends Composer<LoxComposer> {
     public LoxComposer store(Stmt.Function function, Token token) {
         var varDef = resolver.varDef(token);
 
+        // A variable that is never read has no slot or field, unless the optimizer removed its stores.
+        if (!varDef.isRead()) return pop();
+
         if (varDef.isGlobal()) {
             if (varDef.isCaptured()) {
-                if (isTargetMainClass()) {
-                    getstatic(getTargetClass().getName(), varDef.getJavaFieldName(), "L" + LOX_CAPTURED + ";");
-                } else {
-                    aload_0();
-                    getfield(getTargetClass().getName(), varDef.getJavaFieldName(), "L" + LOX_CAPTURED + ";");
-                }
+                aload_0();
+                getfield(resolver.javaClassName(function), varDef.getJavaFieldName(), "L" + LOX_CAPTURED + ";");
                 swap();
                 invokevirtual(LOX_CAPTURED, "setValue", "(Ljava/lang/Object;)V");
             } else {
@@ -265,6 +504,10 @@ public class LoxComposer extends Composer<LoxComposer> {
     }
 
 
+    private String helperClass() {
+        return outlineToTarget ? getTargetClass().getName() : LOX_MAIN_CLASS;
+    }
+
     private boolean isTargetMainClass() {
         return getTargetClass().getName().equals(LOX_MAIN_CLASS);
     }
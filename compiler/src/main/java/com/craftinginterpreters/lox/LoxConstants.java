@@ -8,6 +8,7 @@ public interface LoxConstants {
 
     String LOX_CALLABLE = internalClassName(lox.LoxCallable.class.getName());
     String LOX_FUNCTION = internalClassName(lox.LoxFunction.class.getName());
+    String LOX_MEMOIZED_FUNCTION = internalClassName(lox.LoxMemoizedFunction.class.getName());
     String LOX_METHOD = internalClassName(lox.LoxMethod.class.getName());
     String LOX_CLASS = internalClassName(lox.LoxClass.class.getName());
     String LOX_INSTANCE = internalClassName(lox.LoxInstance.class.getName());
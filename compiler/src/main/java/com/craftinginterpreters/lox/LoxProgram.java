@@ -0,0 +1,167 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.Diagnostics.Diagnostic;
+import lox.LoxCallable;
+import lox.LoxCaptured;
+import lox.LoxException;
+import proguard.classfile.ClassPool;
+import proguard.classfile.util.ClassPoolClassLoader;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static com.craftinginterpreters.lox.LoxConstants.LOX_MAIN_CLASS;
+import static java.lang.invoke.MethodType.methodType;
+import static proguard.classfile.util.ClassUtil.externalClassName;
+
+/**
+ * A compiled Lox program, for running Lox scripts from Java.
+ * <p>
+ * The program is compiled and loaded once, and can then be run any number of times,
+ * concurrently: each {@link #run()} creates a new instance of the main function, which
+ * holds the state of that run. The globals of a run, including its top-level functions,
+ * can be read and called from Java afterwards.
+ */
+public class LoxProgram {
+
+    private final MethodHandle constructor;
+    private final Map<String, VarHandle> globals = new LinkedHashMap<>();
+
+    private LoxProgram(ClassPool classPool, Map<String, String> exports) {
+        try {
+            var mainClass = new ClassPoolClassLoader(classPool).loadClass(externalClassName(LOX_MAIN_CLASS));
+            var lookup = MethodHandles.publicLookup();
+            constructor = lookup
+                .findConstructor(mainClass, methodType(void.class, LoxCallable.class))
+                .asType(methodType(LoxCallable.class, LoxCallable.class));
+            for (var export : exports.entrySet()) {
+                globals.put(export.getKey(), lookup.findVarHandle(mainClass, export.getValue(), LoxCaptured.class));
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public static LoxProgram compile(String source) throws CompileException {
+        return compile(source, CompilerOptions.defaults());
+    }
+
+    /**
+     * Compiles the source with the given options, exporting its globals.
+     *
+     * @throws CompileException if the program has errors.
+     */
+    public static LoxProgram compile(String source, CompilerOptions options) throws CompileException {
+        var result = new LoxCompiler(options.withExportGlobals(true)).compile(source);
+        if (!result.isSuccess()) throw new CompileException(result.diagnostics());
+        return new LoxProgram(result.classPool(), result.exports());
+    }
+
+    /**
+     * Returns the names of the variables, functions and classes in the global scope.
+     */
+    public Set<String> globals() {
+        return Collections.unmodifiableSet(globals.keySet());
+    }
+
+    /**
+     * Runs the top-level code of the program.
+     *
+     * @throws LoxException if there is a runtime error.
+     */
+    public Run run() {
+        LoxCallable main;
+        try {
+            main = (LoxCallable) constructor.invokeExact((LoxCallable) null);
+        } catch (RuntimeException | Error e) {
+            throw e;
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+        main.invoke(new Object[0]);
+        return new Run(main);
+    }
+
+    /**
+     * The globals of a run of the program.
+     */
+    public class Run {
+        private final LoxCallable main;
+
+        private Run(LoxCallable main) {
+            this.main = main;
+        }
+
+        /**
+         * Returns the value of a global, or <code>nil</code> if
+         * the run stopped before it was declared.
+         */
+        public Object get(String name) {
+            var captured = captured(name);
+            return captured != null ? captured.getValue() : null;
+        }
+
+        /**
+         * Returns a global function or class, to be called any number of times.
+         */
+        public LoxCallable function(String name) {
+            if (get(name) instanceof LoxCallable callable) return callable;
+            throw new IllegalArgumentException("'" + name + "' is not a function.");
+        }
+
+        /**
+         * Calls a global function or class. Java numbers are converted to Lox numbers.
+         *
+         * @throws LoxException if there is a runtime error.
+         */
+        public Object call(String name, Object... args) {
+            var function = function(name);
+            if (function.arity() != args.length) {
+                throw new IllegalArgumentException("Expected " + function.arity() + " arguments but got " + args.length + ".");
+            }
+            return function.invoke(toLox(args));
+        }
+
+        private LoxCaptured captured(String name) {
+            var handle = globals.get(name);
+            if (handle == null) throw new IllegalArgumentException("Undefined variable '" + name + "'.");
+            return (LoxCaptured) handle.get(main);
+        }
+    }
+
+    /**
+     * Converts Java numbers to Lox numbers, which are doubles.
+     */
+    static Object[] toLox(Object[] args) {
+        var loxArgs = new Object[args.length];
+        for (int i = 0; i < args.length; i++) {
+            loxArgs[i] = args[i] instanceof Number number && !(number instanceof Double) ? number.doubleValue() : args[i];
+        }
+        return loxArgs;
+    }
+
+    /**
+     * Thrown when a program can't be compiled, with the errors.
+     */
+    public static class CompileException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Diagnostic> diagnostics;
+
+        public CompileException(List<Diagnostic> diagnostics) {
+            super(diagnostics.stream().map(Diagnostic::toString).collect(Collectors.joining("\n")));
+            this.diagnostics = List.copyOf(diagnostics);
+        }
+
+        public List<Diagnostic> diagnostics() {
+            return diagnostics;
+        }
+    }
+}
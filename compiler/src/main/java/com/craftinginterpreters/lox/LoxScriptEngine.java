@@ -0,0 +1,238 @@
+package com.craftinginterpreters.lox;
+
+import lox.LoxCallable;
+import lox.LoxException;
+import lox.LoxInstance;
+import org.jetbrains.annotations.Nullable;
+
+import javax.script.AbstractScriptEngine;
+import javax.script.Bindings;
+import javax.script.Compilable;
+import javax.script.CompiledScript;
+import javax.script.Invocable;
+import javax.script.ScriptContext;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineFactory;
+import javax.script.ScriptException;
+import javax.script.SimpleBindings;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Proxy;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * A <code>javax.script</code> engine for Lox.
+ * <p>
+ * Scripts are compiled to a {@link LoxProgram}, which is cached by source so that
+ * evaluating the same script again only runs it. After a script has run, its globals are
+ * copied into the engine scope bindings, and its top-level functions can be called with
+ * {@link #invokeFunction(String, Object...)}.
+ * <p>
+ * The output of a script is written to the writers of the script context, as each line
+ * is printed.
+ * <p>
+ * Compiled programs print to <code>System.out</code> and <code>System.err</code>, so the
+ * first script that runs replaces both of them, for the rest of the life of the JVM, by a
+ * {@link ThreadLocalPrintStream}: it writes to the original stream, except in a thread
+ * that is running Lox code for this engine. Code that holds on to the original streams,
+ * or replaces them again, doesn't see this.
+ */
+public class LoxScriptEngine extends AbstractScriptEngine implements Compilable, Invocable {
+
+    private static final int CACHE_CAPACITY = 64;
+
+    private final ScriptEngineFactory factory;
+    private final CompilerOptions options;
+    private final Map<String, LoxProgram> programs = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LoxProgram> eldest) {
+            return size() > CACHE_CAPACITY;
+        }
+    });
+    private volatile LoxProgram.Run lastRun;
+
+    public LoxScriptEngine(ScriptEngineFactory factory, CompilerOptions options) {
+        this.factory = factory;
+        this.options = options;
+    }
+
+    @Override
+    public Object eval(String script, ScriptContext context) throws ScriptException {
+        return eval(program(script), context);
+    }
+
+    @Override
+    public Object eval(Reader reader, ScriptContext context) throws ScriptException {
+        return eval(read(reader), context);
+    }
+
+    @Override
+    public CompiledScript compile(String script) throws ScriptException {
+        var program = program(script);
+        return new CompiledScript() {
+            @Override
+            public Object eval(ScriptContext context) throws ScriptException {
+                return LoxScriptEngine.this.eval(program, context);
+            }
+
+            @Override
+            public ScriptEngine getEngine() {
+                return LoxScriptEngine.this;
+            }
+        };
+    }
+
+    @Override
+    public CompiledScript compile(Reader reader) throws ScriptException {
+        return compile(read(reader));
+    }
+
+    @Override
+    public Bindings createBindings() {
+        return new SimpleBindings();
+    }
+
+    @Override
+    public ScriptEngineFactory getFactory() {
+        return factory;
+    }
+
+    /**
+     * Calls a top-level function of the last script that was evaluated.
+     */
+    @Override
+    public Object invokeFunction(String name, Object... args) throws ScriptException, NoSuchMethodException {
+        var run = lastRun;
+        if (run == null) throw new NoSuchMethodException(name);
+        try {
+            run.function(name);
+        } catch (IllegalArgumentException e) {
+            throw new NoSuchMethodException(name);
+        }
+        return capture(context, () -> run.call(name, args));
+    }
+
+    @Override
+    public Object invokeMethod(Object thiz, String name, Object... args) throws ScriptException, NoSuchMethodException {
+        if (!(thiz instanceof LoxInstance instance)) throw new IllegalArgumentException("Not a Lox instance: " + thiz);
+        return capture(context, () -> {
+            if (instance.get(name) instanceof LoxCallable method) return method.invoke(LoxProgram.toLox(args));
+            throw new LoxException("'" + name + "' is not a method.");
+        });
+    }
+
+    @Override
+    public <T> T getInterface(Class<T> clasz) {
+        return proxy(clasz, (name, args) -> invokeFunction(name, args));
+    }
+
+    @Override
+    public <T> T getInterface(Object thiz, Class<T> clasz) {
+        return proxy(clasz, (name, args) -> invokeMethod(thiz, name, args));
+    }
+
+    private interface Invoker {
+        Object invoke(String name, Object[] args) throws ScriptException, NoSuchMethodException;
+    }
+
+    private static <T> T proxy(Class<T> clasz, Invoker invoker) {
+        if (clasz == null || !clasz.isInterface()) throw new IllegalArgumentException("Not an interface: " + clasz);
+        return clasz.cast(Proxy.newProxyInstance(
+            clasz.getClassLoader(),
+            new Class<?>[] { clasz },
+            (proxy, method, args) -> invoker.invoke(method.getName(), args != null ? args : new Object[0])
+        ));
+    }
+
+    private LoxProgram program(String script) throws ScriptException {
+        var program = programs.get(script);
+        if (program != null) return program;
+
+        try {
+            program = LoxProgram.compile(script, options);
+        } catch (LoxProgram.CompileException e) {
+            throw new ScriptException(e.getMessage());
+        }
+        programs.put(script, program);
+        return program;
+    }
+
+    private Object eval(LoxProgram program, ScriptContext context) throws ScriptException {
+        var run = capture(context, program::run);
+        lastRun = run;
+        var bindings = context.getBindings(ScriptContext.ENGINE_SCOPE);
+        if (bindings != null) program.globals().forEach(name -> bindings.put(name, run.get(name)));
+        // Lox scripts don't have a value.
+        return null;
+    }
+
+    /**
+     * Runs Lox code, sending what it prints in this thread to the writers of the context.
+     */
+    private static <T> T capture(ScriptContext context, Supplier<T> code) throws ScriptException {
+        var output = new WriterOutputStream(context.getWriter());
+        var errors = new WriterOutputStream(context.getErrorWriter());
+        var out = ThreadLocalPrintStream.out();
+        var err = ThreadLocalPrintStream.err();
+        out.capture(output);
+        err.capture(errors);
+        T result = null;
+        ScriptException exception = null;
+        try {
+            result = code.get();
+        } catch (LoxException e) {
+            exception = new ScriptException(e.getMessage());
+        } finally {
+            out.capture(null);
+            err.capture(null);
+        }
+
+        try {
+            output.flush();
+            errors.flush();
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+        if (exception != null) throw exception;
+        return result;
+    }
+
+    /**
+     * Passes the bytes written to it on to a writer whenever it's flushed,
+     * which the standard streams do after each line.
+     */
+    private static class WriterOutputStream extends ByteArrayOutputStream {
+        private final @Nullable Writer writer;
+
+        WriterOutputStream(@Nullable Writer writer) {
+            this.writer = writer;
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (size() == 0) return;
+            if (writer != null) {
+                writer.write(toString(Charset.defaultCharset()));
+                writer.flush();
+            }
+            reset();
+        }
+    }
+
+    private static String read(Reader reader) throws ScriptException {
+        try {
+            var writer = new StringWriter();
+            reader.transferTo(writer);
+            return writer.toString();
+        } catch (IOException e) {
+            throw new ScriptException(e);
+        }
+    }
+}
@@ -1,41 +1,372 @@
 package com.craftinginterpreters.lox;
 
-import lox.LoxException;
 import org.jetbrains.annotations.Nullable;
 import proguard.classfile.ClassPool;
 import proguard.classfile.util.ClassPoolClassLoader;
+import proguard.classfile.util.ClassUtil;
 import proguard.io.util.IOUtil;
 
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
 
 import static com.craftinginterpreters.lox.LoxConstants.LOX_MAIN_CLASS;
-import static com.craftinginterpreters.lox.Lox.hadError;
-import static com.craftinginterpreters.lox.Lox.hadRuntimeError;
 
 public class Main {
+    // Scripts up to this many characters are run as closures by the auto engine.
+    static final int SMALL_SCRIPT = 2048;
+
+    static final String USAGE = """
+        Usage: jlox [options] [script [jar]]
+          (without a script, starts an interactive prompt)
+          -O<level>                 optimization level, 0 to 3 (default 2)
+          -f<pass>, -fno-<pass>     enable or disable a pass: scalar-replacement, optimizer,
+                                    cse, ir, memoize, peephole or parallel
+          --optimizer-passes=<n>    number of times the optimizer runs
+          --memoize-capacity=<n>    results cached per memoized function
+          --target=<version>        class file version of generated classes, e.g. 1.8 or 17
+          --dump=<what>[,<what>]    print debug output: resolver, allocator, ir, peephole or classes
+          --engine=<engine>         how to run scripts: bytecode, closures, tiered, which compiles hot
+                                    functions of closures to bytecode, lazy, which generates the
+                                    bytecode of each function when it's first called, or auto, which
+                                    runs small scripts as closures to start faster, unless -O or -f
+                                    options are given (default auto)
+          --shrink                  with a jar, remove the classes and methods that the program
+                                    doesn't use
+          --strip-debug             with a jar, also remove the debug information that runtime errors
+                                    don't need
+          --cds                     with a jar, create a class data sharing archive and a launcher
+                                    that uses it, by running the jar once, to start faster
+          --cds-timing              with --cds, also time the jar with and without the archive,
+                                    by running it 6 more times
+          --cache[=<directory>]     re-use programs compiled by previous runs (default ~/.cache/jlox)
+          --cache-size=<megabytes>  maximum size of the cache (default 256)
+          --daemon[=<socket>]       run a compile server that keeps the compiler warmed up
+          --connect[=<socket>]      compile with the compile server, if it is running
+          --batch=<manifest>        run the scripts listed in the manifest, each with an optional input
+          --jobs=<n>                maximum number of scripts the batch runs at the same time""";
+
     public static void main(String[] args) throws IOException {
-        if (args.length > 2) {
-            System.out.println("Usage: jlox [script]");
+        var arguments = new ArrayList<>(List.of(args));
+        if (!arguments.isEmpty() && arguments.get(0).equals("--help")) {
+            System.out.println(USAGE);
+            return;
+        }
+
+        var flags = new ArrayList<String>();
+        while (!arguments.isEmpty() && arguments.get(0).startsWith("-")) flags.add(arguments.remove(0));
+        // Optimization flags only apply to compiled code.
+        var optimizing = flags.stream().anyMatch(flag -> flag.startsWith("-O") || flag.startsWith("-f") ||
+            flag.startsWith("--optimizer-passes=") || flag.startsWith("--memoize-capacity="));
+
+        var daemon = parseSocket(flags, "--daemon");
+        var connect = parseSocket(flags, "--connect");
+        var batch = parseValue(flags, "--batch");
+        var jobs = parseValue(flags, "--jobs");
+        var engineName = parseValue(flags, "--engine");
+        var cdsTiming = parseFlag(flags, "--cds-timing");
+        var cds = parseFlag(flags, "--cds") || cdsTiming;
+        var stripDebug = parseFlag(flags, "--strip-debug");
+        var shrink = parseFlag(flags, "--shrink") || stripDebug;
+
+        if (daemon.isPresent()) {
+            if (!arguments.isEmpty()) {
+                System.out.println(USAGE);
+                System.exit(64); // [64]
+            }
+            try {
+                new CompileServer(daemon.get()).serve();
+            } catch (IOException e) {
+                System.err.println("Could not start the compile server: " + e.getMessage());
+                System.exit(74);
+            }
+            return;
+        }
+
+        if ((cds || shrink) && arguments.size() != 2) {
+            System.out.println(USAGE);
+            System.exit(64); // [64]
+        }
+
+        // The compile server writes jars as they are compiled, so shrunk jars are compiled locally.
+        if (connect.isPresent() && !shrink && (arguments.size() == 1 || arguments.size() == 2)) {
+            var source = new String(Files.readAllBytes(Paths.get(arguments.get(0))));
+            var response = new CompileClient(connect.get()).compile(flags, source);
+            // Compile locally if the compile server isn't running.
+            if (response.isPresent()) {
+                System.out.print(response.get().output());
+                System.err.print(response.get().errors());
+                if (response.get().status() != 0) System.exit(response.get().status());
+                if (arguments.size() == 1) CompileClient.run(response.get().jar(), args);
+                else Files.write(Paths.get(arguments.get(1)), response.get().jar());
+                if (cds) createCdsArchive(Paths.get(arguments.get(1)), cdsTiming);
+                return;
+            }
+        }
+
+        CompilerOptions options;
+        Optional<CompileCache> cache;
+        int concurrency;
+        Engine engine;
+        try {
+            cache = parseCache(flags);
+            options = parseOptions(flags);
+            concurrency = jobs.isPresent() ?
+                parseInt("--jobs=" + jobs.get(), jobs.get(), 1, Integer.MAX_VALUE) :
+                Runtime.getRuntime().availableProcessors();
+            engine = engineName.isPresent() ?
+                Engine.of(engineName.get()).orElseThrow(() -> new IllegalArgumentException("Unknown engine '" + engineName.get() + "'.")) :
+                Engine.AUTO;
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.out.println(USAGE);
+            System.exit(64); // [64]
+            return;
+        }
+
+        if (batch.isPresent()) {
+            if (!arguments.isEmpty()) {
+                System.out.println(USAGE);
+                System.exit(64); // [64]
+            }
+            List<BatchRunner.Job> batchJobs;
+            try {
+                batchJobs = BatchRunner.parseManifest(Paths.get(batch.get()));
+            } catch (IllegalArgumentException e) {
+                System.out.println(e.getMessage());
+                System.exit(65);
+                return;
+            }
+            try {
+                var status = new BatchRunner(options, cache.orElse(null), concurrency).run(batchJobs);
+                if (status != 0) System.exit(status);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.exit(70);
+            }
+            return;
+        }
+
+        if (arguments.size() > 2) {
+            System.out.println(USAGE);
             System.exit(64); // [64]
-        } else if (args.length == 1 || args.length == 2) {
-            var classPool = compileFile(args[0]);
-            if (hadRuntimeError) System.exit(70);
-            if (hadError || classPool == null) System.exit(65);
-            if (args.length == 1) runClassPool(classPool, args);
-            else IOUtil.writeJar(classPool, args[1], LOX_MAIN_CLASS);
+        } else if (arguments.size() == 1 || arguments.size() == 2) {
+            var source = new String(Files.readAllBytes(Paths.get(arguments.get(0))));
+            if (arguments.size() == 1 && useClosures(engine, source, optimizing, options, cache)) {
+                var result = engine == Engine.TIERED ?
+                    new LoxCompiler(options).compileTiered(source) :
+                    new LoxCompiler(options).compileToClosures(source);
+                result.diagnostics().forEach(System.err::println);
+                if (result.status() != 0) System.exit(result.status());
+                result.program().run();
+                return;
+            }
+            if (arguments.size() == 1 && engine == Engine.LAZY) {
+                var result = new LoxCompiler(options).compileLazily(source);
+                result.diagnostics().forEach(System.err::println);
+                if (result.status() != 0) System.exit(result.status());
+                run(result.classLoader(), args);
+                return;
+            }
+            var result = cache.isPresent() && options.dumps().isEmpty() ?
+                compile(source, options, cache.get()) :
+                new LoxCompiler(options).compile(source);
+            result.diagnostics().forEach(System.err::println);
+            if (result.status() != 0) System.exit(result.status());
+            var classPool = result.classPool();
+            if (arguments.size() == 1) runClassPool(classPool, args);
+            else {
+                IOUtil.writeJar(shrink ? Shrinker.shrink(classPool, stripDebug) : classPool, arguments.get(1), LOX_MAIN_CLASS);
+                if (cds) createCdsArchive(Paths.get(arguments.get(1)), cdsTiming);
+            }
         } else {
-            Lox.main(args);
+            new Repl(options).run();
         }
     }
 
+    /**
+     * How scripts are run; programs written to a jar are always compiled to classes.
+     */
+    enum Engine {
+        BYTECODE("bytecode"),
+        CLOSURES("closures"),
+        TIERED("tiered"),
+        LAZY("lazy"),
+        AUTO("auto");
+
+        public final String flag;
+
+        Engine(String flag) {
+            this.flag = flag;
+        }
+
+        public static Optional<Engine> of(String flag) {
+            return Arrays.stream(values()).filter(it -> it.flag.equals(flag)).findFirst();
+        }
+    }
+
+    /**
+     * Small scripts are run as closures, since they typically finish before compiling them to
+     * classes would, unless they're already cached, their compilation should be dumped or
+     * optimization flags were given.
+     */
+    private static boolean useClosures(Engine engine, String source, boolean optimizing, CompilerOptions options, Optional<CompileCache> cache) {
+        return switch (engine) {
+            case BYTECODE, LAZY -> false;
+            case CLOSURES, TIERED -> true;
+            case AUTO -> source.length() <= SMALL_SCRIPT && !optimizing && cache.isEmpty() && options.dumps().isEmpty();
+        };
+    }
+
+    /**
+     * Removes the given socket option from the flags and returns the
+     * socket, or the default socket if no path was given.
+     */
+    private static Optional<Path> parseSocket(List<String> flags, String option) {
+        Optional<Path> socket = Optional.empty();
+        for (var iterator = flags.iterator(); iterator.hasNext(); ) {
+            var flag = iterator.next();
+            if (flag.equals(option)) {
+                socket = Optional.of(CompileServer.defaultSocket());
+            } else if (flag.startsWith(option + "=")) {
+                socket = Optional.of(Paths.get(value(flag)));
+            } else {
+                continue;
+            }
+            iterator.remove();
+        }
+        return socket;
+    }
+
+    /**
+     * Removes the given option from the flags and returns whether it was given.
+     */
+    private static boolean parseFlag(List<String> flags, String option) {
+        return flags.removeIf(option::equals);
+    }
+
+    /**
+     * Removes the given option from the flags and returns its value, if it was given.
+     */
+    private static Optional<String> parseValue(List<String> flags, String option) {
+        Optional<String> value = Optional.empty();
+        for (var iterator = flags.iterator(); iterator.hasNext(); ) {
+            var flag = iterator.next();
+            if (!flag.startsWith(option + "=")) continue;
+            value = Optional.of(value(flag));
+            iterator.remove();
+        }
+        return value;
+    }
+
+    /**
+     * Removes the cache options from the given flags and returns the cache, if enabled.
+     */
+    static Optional<CompileCache> parseCache(List<String> flags) {
+        var enabled = false;
+        var directory = CompileCache.defaultDirectory();
+        var maxSize = CompileCache.DEFAULT_MAX_SIZE;
+        for (var iterator = flags.iterator(); iterator.hasNext(); ) {
+            var flag = iterator.next();
+            if (flag.equals("--cache")) {
+                enabled = true;
+            } else if (flag.startsWith("--cache=")) {
+                enabled = true;
+                directory = Paths.get(value(flag));
+            } else if (flag.startsWith("--cache-size=")) {
+                maxSize = parseInt(flag, value(flag), 1, Integer.MAX_VALUE) * 1024L * 1024L;
+            } else {
+                continue;
+            }
+            iterator.remove();
+        }
+
+        return enabled ? Optional.of(new CompileCache(directory, maxSize)) : Optional.empty();
+    }
+
+    /**
+     * Returns the compiler options for the given flags. The optimization level applies
+     * first, so that individual passes can be enabled or disabled regardless of the order
+     * of the flags.
+     */
+    static CompilerOptions parseOptions(List<String> flags) {
+        var options = CompilerOptions.defaults();
+        for (var flag : flags) {
+            if (flag.startsWith("-O")) options = options.withLevel(parseInt(flag, flag.substring(2), 0, CompilerOptions.MAX_LEVEL));
+        }
+
+        for (var flag : flags) {
+            if (flag.startsWith("-O")) continue;
+
+            if (flag.startsWith("-f")) {
+                var enabled = !flag.startsWith("-fno-");
+                var name = flag.substring(enabled ? 2 : 5);
+                if (name.equals("parallel")) {
+                    options = options.withParallel(enabled);
+                } else {
+                    var pass = CompilerOptions.Pass.of(name).orElseThrow(() -> new IllegalArgumentException("Unknown pass '" + name + "'."));
+                    options = options.with(pass, enabled);
+                }
+            } else if (flag.startsWith("--optimizer-passes=")) {
+                options = options.withOptimizerPasses(parseInt(flag, value(flag), 1, Integer.MAX_VALUE));
+            } else if (flag.startsWith("--memoize-capacity=")) {
+                options = options.withMemoizeCapacity(parseInt(flag, value(flag), 1, Integer.MAX_VALUE));
+            } else if (flag.startsWith("--target=")) {
+                var version = ClassUtil.internalClassVersion(value(flag));
+                if (version == 0) throw new IllegalArgumentException("Unknown target '" + value(flag) + "'.");
+                options = options.withTargetClassVersion(version);
+            } else if (flag.startsWith("--dump=")) {
+                for (var name : value(flag).split(",")) {
+                    var dump = CompilerOptions.Dump.of(name).orElseThrow(() -> new IllegalArgumentException("Unknown dump '" + name + "'."));
+                    options = options.with(dump);
+                }
+            } else {
+                throw new IllegalArgumentException("Unknown option '" + flag + "'.");
+            }
+        }
+
+        return options;
+    }
+
+    private static String value(String flag) {
+        return flag.substring(flag.indexOf('=') + 1);
+    }
+
+    private static int parseInt(String flag, String value, int min, int max) {
+        try {
+            var result = Integer.parseInt(value);
+            if (result >= min && result <= max) return result;
+        } catch (NumberFormatException ignored) {
+        }
+        throw new IllegalArgumentException("Invalid option '" + flag + "'.");
+    }
+
+
+    private static void createCdsArchive(Path jar, boolean time) {
+        try {
+            System.out.println(CdsArchive.create(jar, time));
+        } catch (IOException e) {
+            System.err.println("Could not create the class data sharing archive: " + e.getMessage());
+            System.exit(74);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.exit(70);
+        }
+    }
 
     private static void runClassPool(ClassPool programClassPool, String[] args) throws RuntimeException {
-        var clazzLoader = new ClassPoolClassLoader(programClassPool);
+        run(new ClassPoolClassLoader(programClassPool), args);
+    }
+
+    private static void run(ClassLoader classLoader, String[] args) throws RuntimeException {
         try {
-            clazzLoader
+            classLoader
                 .loadClass(LOX_MAIN_CLASS)
                 .getDeclaredMethod("main", String[].class)
                 .invoke(null, (Object) args);
@@ -44,35 +375,53 @@ public class Main {
         }
     }
 
-    public static ClassPool compileFile(String path) throws IOException {
-        byte[] bytes = Files.readAllBytes(Paths.get(path));
-        return compile(new String(bytes));
+    /**
+     * Loads the main function class of a compiled program in a new class loader.
+     */
+    static Class<?> loadMainClass(ClassPool programClassPool) throws ClassNotFoundException {
+        return new ClassPoolClassLoader(programClassPool).loadClass(LOX_MAIN_CLASS);
     }
 
-    public static @Nullable ClassPool compile(String source) {
-        try {
-            var scanner = new Scanner(source);
-            var tokens = scanner.scanTokens();
-
-            var parser = new Parser(tokens);
-
-            var statements = parser.parse();
-
-            if (hadError) return null;
+    public static @Nullable ClassPool compileFile(String path) throws IOException {
+        return compileFile(path, CompilerOptions.defaults());
+    }
 
-            new Checker().execute(statements);
+    public static @Nullable ClassPool compileFile(String path, CompilerOptions options) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(path));
+        return compile(new String(bytes), options);
+    }
 
-            if (hadError) return null;
+    /**
+     * Compiles the source, or loads it from the cache if it
+     * has been compiled with the same options before.
+     */
+    public static LoxCompiler.Result compile(String source, CompilerOptions options, CompileCache cache) {
+        var key = cache.key(source, options);
+        var cached = cache.get(key);
+        if (cached.isPresent()) return new LoxCompiler.Result(cached.get(), List.of());
 
-            var classPool = new Compiler().compile(statements);
+        var result = new LoxCompiler(options).compile(source);
+        if (result.isSuccess()) {
+            try {
+                cache.put(key, result.classPool());
+            } catch (IOException e) {
+                System.err.println("Could not cache the compiled program: " + e.getMessage());
+            }
+        }
+        return result;
+    }
 
-            if (hadError) return null;
+    public static @Nullable ClassPool compile(String source) {
+        return compile(source, CompilerOptions.defaults());
+    }
 
-            return classPool;
-        } catch (LoxException e) {
-            System.err.println(e.getMessage());
-            hadRuntimeError = true;
-            return null;
-        }
+    /**
+     * Compiles the source, printing any errors, and returns
+     * the compiled program or <code>null</code>.
+     */
+    public static @Nullable ClassPool compile(String source, CompilerOptions options) {
+        var result = new LoxCompiler(options).compile(source);
+        result.diagnostics().forEach(System.err::println);
+        return result.classPool();
     }
-}
\ No newline at end of file
+}
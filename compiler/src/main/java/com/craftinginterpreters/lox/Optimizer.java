@@ -6,16 +6,19 @@ import java.util.Map;
 import java.util.Objects;
 import java.util.stream.Collectors;
 
-import static com.craftinginterpreters.lox.Lox.runtimeError;
 import static com.craftinginterpreters.lox.TokenType.MINUS;
 
 public class Optimizer {
 
     private final CompilerResolver resolver;
+    private final SideEffectAnalyzer sideEffectAnalyzer;
+    private final Diagnostics diagnostics;
 
 
-    public Optimizer(CompilerResolver resolver) {
+    public Optimizer(CompilerResolver resolver, SideEffectAnalyzer sideEffectAnalyzer, Diagnostics diagnostics) {
         this.resolver = resolver;
+        this.sideEffectAnalyzer = sideEffectAnalyzer;
+        this.diagnostics = diagnostics;
     }
 
     public Stmt.Function execute(Stmt.Function function, int passes) {
@@ -45,11 +48,11 @@ public class Optimizer {
             var value = expr.value.accept(this);
             var optionalVarDef = resolver.varDef(expr);
             if (optionalVarDef.isEmpty()) {
-                runtimeError(new RuntimeError(expr.name, "Undefined variable '" + expr.name.lexeme + "'."));
+                diagnostics.runtimeError(new RuntimeError(expr.name, "Undefined variable '" + expr.name.lexeme + "'."));
             } else {
                 var varDef = optionalVarDef.get();
                 if (!varDef.isRead()) {
-                    if (value.accept(new SideEffectCounter()) == 0) {
+                    if (value.accept(new SideEffectCounter(sideEffectAnalyzer)) == 0) {
                         return null;
                     } else {
                         return value;
@@ -234,7 +237,7 @@ public class Optimizer {
             var varDef = resolver.varDef(expr);
 
             if (varDef.isEmpty()) {
-                runtimeError(new RuntimeError(expr.name, "Undefined variable '" + expr.name.lexeme + "'."));
+                diagnostics.runtimeError(new RuntimeError(expr.name, "Undefined variable '" + expr.name.lexeme + "'."));
                 return expr;
             } else {
                 if (varExprReplacements.containsKey(varDef.get().token())) {
@@ -271,7 +274,7 @@ public class Optimizer {
 
                 if (!(superClass instanceof Expr.Variable)) {
                     // For compatibility with Lox test suite, throw a runtime error.
-                    runtimeError(new RuntimeError(stmt.superclass.name, "Superclass must be a class."));
+                    diagnostics.runtimeError(new RuntimeError(stmt.superclass.name, "Superclass must be a class."));
                     return null;
                 }
             }
@@ -364,7 +367,7 @@ public class Optimizer {
                 // The variable is never read but if it has an initializer,
                 // there could be side effects.
                 if (stmt.initializer != null) {
-                    if (stmt.initializer.accept(new SideEffectCounter()) == 0) {
+                    if (stmt.initializer.accept(new SideEffectCounter(sideEffectAnalyzer)) == 0) {
                         return null;
                     } else {
                         // potential side effects so keep the initializer
@@ -0,0 +1,211 @@
+package com.craftinginterpreters.lox;
+
+import proguard.classfile.Clazz;
+import proguard.classfile.Method;
+import proguard.classfile.ProgramClass;
+import proguard.classfile.attribute.Attribute;
+import proguard.classfile.attribute.CodeAttribute;
+import proguard.classfile.attribute.visitor.AllAttributeVisitor;
+import proguard.classfile.attribute.visitor.AttributeNameFilter;
+import proguard.classfile.attribute.visitor.AttributeVisitor;
+import proguard.classfile.constant.Constant;
+import proguard.classfile.editor.CodeAttributeEditor;
+import proguard.classfile.editor.InstructionSequenceBuilder;
+import proguard.classfile.editor.InstructionSequencesReplacer;
+import proguard.classfile.editor.PeepholeEditor;
+import proguard.classfile.instruction.BranchInstruction;
+import proguard.classfile.instruction.Instruction;
+import proguard.classfile.instruction.InstructionFactory;
+import proguard.classfile.instruction.visitor.InstructionCounter;
+import proguard.classfile.instruction.visitor.InstructionVisitor;
+import proguard.classfile.instruction.visitor.MultiInstructionVisitor;
+import proguard.classfile.util.BranchTargetFinder;
+import proguard.classfile.visitor.AllMethodVisitor;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.craftinginterpreters.lox.LoxConstants.LOX_MAIN_CLASS;
+import static proguard.classfile.util.InstructionSequenceMatcher.X;
+
+/**
+ * Removes redundant instruction sequences from generated classes, such as a number
+ * that is boxed only to be unboxed again by the next operation, and shortens jumps
+ * to jumps.
+ * <p>
+ * The statement-at-a-time code generation produces these at the boundaries between
+ * expressions; the {@link IrCompiler} avoids most of them already.
+ */
+public class PeepholeOptimizer {
+
+    private static final int MAX_PASSES = 3;
+
+    private static final Constant[] CONSTANTS;
+    private static final Instruction[][][] SEQUENCES;
+
+    static {
+        var ____ = new InstructionSequenceBuilder();
+        SEQUENCES = new Instruction[][][] {
+            {
+                ____.invokestatic("java/lang/Double", "valueOf", "(D)Ljava/lang/Double;")
+                    .ldc_(X)
+                    .invokestatic(LOX_MAIN_CLASS, "unbox$D", "(Ljava/lang/Object;Ljava/lang/String;)D").__(),
+                ____.__()
+            },
+            {
+                ____.invokestatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;")
+                    .ldc_(X)
+                    .invokestatic(LOX_MAIN_CLASS, "unbox$Z", "(Ljava/lang/Object;Ljava/lang/String;)Z").__(),
+                ____.__()
+            },
+            {
+                ____.invokestatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;")
+                    .invokestatic(LOX_MAIN_CLASS, "isTruthy", "(Ljava/lang/Object;)Z").__(),
+                ____.__()
+            },
+            {
+                ____.iconst_0()
+                    .invokestatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;").__(),
+                ____.getstatic("java/lang/Boolean", "FALSE", "Ljava/lang/Boolean;").__()
+            },
+            {
+                ____.iconst_1()
+                    .invokestatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;").__(),
+                ____.getstatic("java/lang/Boolean", "TRUE", "Ljava/lang/Boolean;").__()
+            },
+            {
+                ____.dup().pop().__(),
+                ____.__()
+            },
+            {
+                ____.dup2().pop2().__(),
+                ____.__()
+            },
+        };
+        CONSTANTS = ____.constants();
+    }
+
+    private final boolean debug;
+    private final AtomicInteger totalBefore = new AtomicInteger();
+    private final AtomicInteger totalAfter = new AtomicInteger();
+
+    public PeepholeOptimizer(boolean debug) {
+        this.debug = debug;
+    }
+
+    /**
+     * Optimizes the code of all the methods in the given class.
+     * <p>
+     * Classes may be optimized concurrently, since each one is edited separately.
+     */
+    public void optimize(ProgramClass programClass) {
+        int before = codeLength(programClass);
+
+        for (int pass = 0; pass < MAX_PASSES; pass++) {
+            var branchTargetFinder = new BranchTargetFinder();
+            var codeAttributeEditor = new CodeAttributeEditor();
+            var counter = new InstructionCounter();
+            programClass.methodsAccept(
+                new AllAttributeVisitor(
+                new PeepholeEditor(branchTargetFinder, codeAttributeEditor,
+                new MultiInstructionVisitor(
+                    new InstructionSequencesReplacer(CONSTANTS, SEQUENCES, branchTargetFinder, codeAttributeEditor, counter),
+                    new GotoShortener(codeAttributeEditor, counter)))));
+
+            if (counter.getCount() == 0) break;
+        }
+
+        int after = codeLength(programClass);
+        totalBefore.addAndGet(before);
+        totalAfter.addAndGet(after);
+        if (debug && after < before) {
+            System.out.println("peephole: " + programClass.getName() + " " + before + " -> " + after + " bytes");
+        }
+    }
+
+    /**
+     * Prints the total size of the code before and after optimization.
+     */
+    public void report() {
+        if (!debug) return;
+        int before = totalBefore.get();
+        int after = totalAfter.get();
+        System.out.println("peephole: removed " + (before - after) + " of " + before + " bytes of code");
+    }
+
+    private static int codeLength(ProgramClass programClass) {
+        var length = new int[1];
+        programClass.accept(
+            new AllMethodVisitor(
+            new AllAttributeVisitor(
+            new AttributeNameFilter(Attribute.CODE, new AttributeVisitor() {
+                @Override
+                public void visitAnyAttribute(Clazz clazz, Attribute attribute) { }
+
+                @Override
+                public void visitCodeAttribute(Clazz clazz, Method method, CodeAttribute codeAttribute) {
+                    length[0] += codeAttribute.u4codeLength;
+                }
+            }))));
+        return length[0];
+    }
+
+    /**
+     * Replaces a <code>goto</code> to a <code>goto</code> by a <code>goto</code>
+     * to the final target, and a <code>goto</code> to a return by the return.
+     */
+    private static class GotoShortener implements InstructionVisitor {
+
+        private static final int MAX_HOPS = 8;
+
+        private final CodeAttributeEditor codeAttributeEditor;
+        private final InstructionVisitor extraInstructionVisitor;
+
+        private GotoShortener(CodeAttributeEditor codeAttributeEditor, InstructionVisitor extraInstructionVisitor) {
+            this.codeAttributeEditor = codeAttributeEditor;
+            this.extraInstructionVisitor = extraInstructionVisitor;
+        }
+
+        @Override
+        public void visitAnyInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, Instruction instruction) { }
+
+        @Override
+        public void visitBranchInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, BranchInstruction branchInstruction) {
+            if (!isGoto(branchInstruction)) return;
+
+            int target = offset + branchInstruction.branchOffset;
+            var targetInstruction = InstructionFactory.create(codeAttribute.code, target);
+
+            if (isReturn(targetInstruction)) {
+                codeAttributeEditor.replaceInstruction(offset, targetInstruction);
+                extraInstructionVisitor.visitAnyInstruction(clazz, method, codeAttribute, offset, targetInstruction);
+                return;
+            }
+
+            // Follow a bounded number of jumps, since they may form an infinite loop.
+            int finalTarget = target;
+            for (int hop = 0; hop < MAX_HOPS && targetInstruction instanceof BranchInstruction next && isGoto(next); hop++) {
+                finalTarget += next.branchOffset;
+                if (finalTarget == offset) return;
+                targetInstruction = InstructionFactory.create(codeAttribute.code, finalTarget);
+            }
+
+            if (finalTarget != target) {
+                var replacement = new BranchInstruction(Instruction.OP_GOTO, finalTarget - offset);
+                codeAttributeEditor.replaceInstruction(offset, replacement);
+                extraInstructionVisitor.visitAnyInstruction(clazz, method, codeAttribute, offset, replacement);
+            }
+        }
+
+        private static boolean isGoto(Instruction instruction) {
+            return instruction.opcode == Instruction.OP_GOTO || instruction.opcode == Instruction.OP_GOTO_W;
+        }
+
+        private static boolean isReturn(Instruction instruction) {
+            return switch (instruction.opcode) {
+                case Instruction.OP_IRETURN, Instruction.OP_LRETURN, Instruction.OP_FRETURN,
+                     Instruction.OP_DRETURN, Instruction.OP_ARETURN, Instruction.OP_RETURN -> true;
+                default -> false;
+            };
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.craftinginterpreters.lox;
+
+import lox.LoxCallable;
+import lox.LoxCaptured;
+import proguard.classfile.ClassPool;
+import proguard.classfile.util.ClassPoolClassLoader;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.craftinginterpreters.lox.LoxConstants.LOX_MAIN_CLASS;
+import static java.lang.invoke.MethodType.methodType;
+import static proguard.classfile.util.ClassUtil.externalClassName;
+
+/**
+ * An interactive prompt that compiles each line, rather than interpreting it.
+ * <p>
+ * Each input is resolved against the globals declared by the inputs before it, compiled to
+ * a new main class and loaded by its own class loader. The globals live in cells that are
+ * shared by the main functions of all the inputs: the fields of the globals that an input
+ * uses are set to the shared cells before it runs, and the globals that it declares are
+ * added to them afterwards.
+ * <p>
+ * A function only sees the globals declared before it, or in the same input: unlike
+ * in a script, a function can't use a global that a later input declares.
+ */
+public class Repl {
+
+    private final LoxCompiler compiler;
+    // The cells of the globals declared so far, by name.
+    private final Map<String, LoxCaptured> globals = new LinkedHashMap<>();
+
+    public Repl(CompilerOptions options) {
+        this.compiler = new LoxCompiler(options.withExportGlobals(true));
+    }
+
+    public void run() throws IOException {
+        var reader = new BufferedReader(new InputStreamReader(System.in));
+        for (;;) {
+            System.out.print("> ");
+            var line = reader.readLine();
+            if (line == null) break;
+            run(line);
+        }
+    }
+
+    /**
+     * Compiles and runs one input, printing its errors.
+     */
+    public void run(String source) {
+        var result = compiler.compile(source, globals.keySet());
+        result.diagnostics().forEach(System.err::println);
+        if (!result.isSuccess()) return;
+
+        LoxCallable main;
+        var fields = new LinkedHashMap<String, VarHandle>();
+        try {
+            var mainClass = new ClassPoolClassLoader(result.classPool()).loadClass(externalClassName(LOX_MAIN_CLASS));
+            var lookup = MethodHandles.publicLookup();
+            for (var export : result.exports().entrySet()) {
+                fields.put(export.getKey(), lookup.findVarHandle(mainClass, export.getValue(), LoxCaptured.class));
+            }
+            main = (LoxCallable) lookup
+                .findConstructor(mainClass, methodType(void.class, LoxCallable.class))
+                .invoke((LoxCallable) null);
+        } catch (Throwable e) {
+            throw new IllegalStateException(e);
+        }
+
+        globals.forEach((name, cell) -> fields.get(name).set(main, cell));
+        try {
+            main.invoke(new Object[0]);
+        } catch (StackOverflowError e) {
+            // The same as the main method of a compiled program.
+            System.err.println("Stack overflow.");
+        } catch (RuntimeException e) {
+            System.err.println(e.getMessage());
+        } finally {
+            // Globals whose declaration wasn't reached have no cell.
+            fields.forEach((name, field) -> {
+                var cell = (LoxCaptured) field.get(main);
+                if (cell != null) globals.put(name, cell);
+            });
+        }
+    }
+}
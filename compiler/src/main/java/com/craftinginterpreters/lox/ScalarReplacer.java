@@ -0,0 +1,570 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.CompilerResolver.ClassVarDef;
+import com.craftinginterpreters.lox.CompilerResolver.ParameterVarDef;
+import com.craftinginterpreters.lox.CompilerResolver.VarDef;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Replaces instances that never escape the function that creates them with local variables.
+ * <p>
+ * An instance is replaced if it is created by calling a class whose initializer only assigns
+ * fields of <code>this</code> from its parameters, and the variable that holds the instance is
+ * only used to get or set those fields. The initializer is inlined and each field becomes
+ * a compiler-generated temporary. For example:
+ * <code>
+ * class Point { init(x, y) { this.x = x; this.y = y; } }
+ * var p = Point(a, b);
+ * print p.x * p.y;
+ * </code>
+ * becomes
+ * <code>
+ * var $tmp0 = a;
+ * var $tmp1 = b;
+ * var $tmp2 = $tmp0;
+ * var $tmp3 = $tmp1;
+ * print $tmp2 * $tmp3;
+ * </code>
+ */
+public class ScalarReplacer {
+
+    private final CompilerResolver resolver;
+    private final Map<Token, Stmt.Class> classes = new HashMap<>();
+    private final Map<Token, Stmt.Class> instances = new HashMap<>();
+    private final Set<Token> escaped = new HashSet<>();
+
+    public ScalarReplacer(CompilerResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    public Stmt.Function execute(Stmt.Function main) {
+        new EscapeAnalyzer().analyze(main.body);
+        instances.keySet().removeAll(escaped);
+        if (instances.isEmpty()) return main;
+        return new Rewriter().rewrite(main);
+    }
+
+    private static Optional<Stmt.Function> initializer(Stmt.Class classStmt) {
+        return classStmt.methods.stream().filter(it -> it.name.lexeme.equals("init")).findFirst();
+    }
+
+    private static Set<String> fields(Stmt.Class classStmt) {
+        return initializer(classStmt)
+            .stream()
+            .flatMap(it -> it.body.stream())
+            .map(it -> ((Expr.Set) ((Stmt.Expression) it).expression).name.lexeme)
+            .collect(Collectors.toSet());
+    }
+
+    /**
+     * A class can be replaced if it has no superclass and its initializer only
+     * assigns fields of <code>this</code> from expressions of its parameters.
+     */
+    private boolean isReplaceable(Stmt.Class classStmt) {
+        var varDef = resolver.varDef(classStmt.name);
+        if (classStmt.superclass != null || varDef == null || !varDef.isFinal() || varDef.isLateInit()) return false;
+
+        var init = initializer(classStmt);
+        return init.isPresent() &&
+            !init.get().body.isEmpty() &&
+            init.get().body.stream().allMatch(it ->
+                it instanceof Stmt.Expression expressionStmt &&
+                expressionStmt.expression instanceof Expr.Set set &&
+                set.object instanceof Expr.This &&
+                isParameterExpression(init.get(), set.value)
+            );
+    }
+
+    private boolean isParameterExpression(Stmt.Function init, Expr expr) {
+        if (expr instanceof Expr.Literal) {
+            return true;
+        } else if (expr instanceof Expr.Grouping grouping) {
+            return isParameterExpression(init, grouping.expression);
+        } else if (expr instanceof Expr.Unary unary) {
+            return isParameterExpression(init, unary.right);
+        } else if (expr instanceof Expr.Binary binary) {
+            return isParameterExpression(init, binary.left) && isParameterExpression(init, binary.right);
+        } else if (expr instanceof Expr.Logical logical) {
+            return isParameterExpression(init, logical.left) && isParameterExpression(init, logical.right);
+        } else if (expr instanceof Expr.Variable variable) {
+            return resolver
+                .varDef(variable)
+                .filter(it -> it instanceof ParameterVarDef && it.function().name == init.name)
+                .isPresent();
+        } else {
+            return false;
+        }
+    }
+
+    private Optional<Stmt.Class> classCalled(Expr initializer) {
+        if (initializer instanceof Expr.Call call && call.callee instanceof Expr.Variable callee) {
+            return resolver
+                .varDef(callee)
+                .filter(it -> it instanceof ClassVarDef)
+                .map(it -> classes.get(it.token()))
+                .filter(it -> initializer(it).orElseThrow().params.size() == call.arguments.size());
+        }
+        return Optional.empty();
+    }
+
+    private Optional<Token> instance(Expr expr) {
+        return expr instanceof Expr.Variable variable ?
+            resolver.varDef(variable).map(VarDef::token).filter(instances::containsKey) :
+            Optional.empty();
+    }
+
+    /**
+     * Finds variables initialized with a new instance of a replaceable class, and marks as escaped
+     * those that are used other than to get or set the fields assigned by the initializer.
+     */
+    private class EscapeAnalyzer implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+        private Token initializing;
+
+        private void analyze(List<Stmt> stmts) {
+            stmts.forEach(it -> it.accept(this));
+        }
+
+        private boolean isFieldAccess(Expr object, Token name) {
+            return instance(object)
+                .filter(it -> !Objects.equals(it, initializing))
+                .filter(it -> fields(instances.get(it)).contains(name.lexeme))
+                .isPresent();
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            expr.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            expr.callee.accept(this);
+            expr.arguments.forEach(it -> it.accept(this));
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            if (!isFieldAccess(expr.object, expr.name)) expr.object.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            if (!isFieldAccess(expr.object, expr.name)) expr.object.accept(this);
+            expr.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            instance(expr).ifPresent(escaped::add);
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            analyze(stmt.statements);
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            if (isReplaceable(stmt)) classes.put(resolver.varDef(stmt.name).token(), stmt);
+            if (stmt.superclass != null) stmt.superclass.accept(this);
+            stmt.methods.forEach(it -> analyze(it.body));
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            analyze(stmt.body);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            stmt.condition.accept(this);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            if (stmt.value != null) stmt.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if (stmt.initializer == null) return null;
+
+            var varDef = resolver.varDef(stmt.name);
+            var classStmt = classCalled(stmt.initializer);
+            if (varDef != null && classStmt.isPresent() &&
+                varDef.isFinal() && !varDef.isCaptured() && !varDef.isLateInit()) {
+                instances.put(varDef.token(), classStmt.get());
+                // The instance doesn't exist yet while evaluating the arguments.
+                initializing = varDef.token();
+                stmt.initializer.accept(this);
+                initializing = null;
+            } else {
+                stmt.initializer.accept(this);
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            stmt.condition.accept(this);
+            stmt.body.accept(this);
+            return null;
+        }
+    }
+
+    private class Rewriter implements Stmt.Visitor<Stmt>, Expr.Visitor<Expr> {
+        private final Map<Token, Map<String, VarDef>> fieldTemporaries = new HashMap<>();
+        private Stmt.Function function;
+
+        private Stmt.Function rewrite(Stmt.Function function) {
+            if (function instanceof Compiler.NativeFunction) return function;
+
+            var enclosing = this.function;
+            this.function = function;
+            var result = new Stmt.Function(function.name, function.params, rewrite(function.body));
+            this.function = enclosing;
+            return result;
+        }
+
+        private List<Stmt> rewrite(List<Stmt> stmts) {
+            var result = new ArrayList<Stmt>();
+            for (var stmt : stmts) {
+                if (stmt instanceof Stmt.Var varStmt && instance(varStmt.name).isPresent()) {
+                    result.addAll(replace(varStmt));
+                } else {
+                    result.add(stmt.accept(this));
+                }
+            }
+            return result;
+        }
+
+        private Optional<Token> instance(Token name) {
+            return Optional.ofNullable(resolver.varDef(name)).map(VarDef::token).filter(instances::containsKey);
+        }
+
+        /**
+         * Inlines the initializer: arguments are stored in temporaries,
+         * followed by a temporary for each field.
+         */
+        private List<Stmt> replace(Stmt.Var stmt) {
+            var varDef = resolver.varDef(stmt.name);
+            var call = (Expr.Call) stmt.initializer;
+            var init = initializer(instances.get(varDef.token())).orElseThrow();
+            var result = new ArrayList<Stmt>();
+
+            resolver.varDef(call.callee).ifPresent(resolver::decrementReads);
+
+            var parameters = new HashMap<Token, VarDef>();
+            for (int i = 0; i < init.params.size(); i++) {
+                var temporary = resolver.declareTemporary(function, stmt.name.line);
+                parameters.put(init.params.get(i), temporary);
+                result.add(new Stmt.Var(temporary.token(), call.arguments.get(i).accept(this)));
+            }
+
+            var fields = new HashMap<String, VarDef>();
+            var inliner = new Inliner(parameters);
+            for (var initStmt : init.body) {
+                var set = (Expr.Set) ((Stmt.Expression) initStmt).expression;
+                var value = set.value.accept(inliner);
+                var temporary = fields.get(set.name.lexeme);
+                if (temporary == null) {
+                    temporary = resolver.declareTemporary(function, stmt.name.line);
+                    fields.put(set.name.lexeme, temporary);
+                    result.add(new Stmt.Var(temporary.token(), value));
+                } else {
+                    resolver.incrementWrites(temporary);
+                    result.add(new Stmt.Expression(new Expr.Assign(temporary.token(), value)));
+                }
+            }
+            fieldTemporaries.put(varDef.token(), fields);
+
+            return result;
+        }
+
+        private Optional<VarDef> field(Expr object, Token name) {
+            return ScalarReplacer.this
+                .instance(object)
+                .map(it -> fieldTemporaries.get(it).get(name.lexeme));
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            return new Expr.Assign(expr.name, expr.value.accept(this));
+        }
+
+        @Override
+        public Expr visitBinaryExpr(Expr.Binary expr) {
+            return new Expr.Binary(expr.left.accept(this), expr.operator, expr.right.accept(this));
+        }
+
+        @Override
+        public Expr visitCallExpr(Expr.Call expr) {
+            return new Expr.Call(
+                expr.callee.accept(this),
+                expr.paren,
+                expr.arguments
+                    .stream()
+                    .map(it -> it.accept(this))
+                    .collect(Collectors.toList())
+            );
+        }
+
+        @Override
+        public Expr visitGetExpr(Expr.Get expr) {
+            var field = field(expr.object, expr.name);
+            if (field.isPresent()) {
+                resolver.incrementReads(field.get());
+                return new Expr.Variable(field.get().token());
+            }
+            return new Expr.Get(expr.object.accept(this), expr.name);
+        }
+
+        @Override
+        public Expr visitGroupingExpr(Expr.Grouping expr) {
+            return new Expr.Grouping(expr.expression.accept(this));
+        }
+
+        @Override
+        public Expr visitLiteralExpr(Expr.Literal expr) {
+            return expr;
+        }
+
+        @Override
+        public Expr visitLogicalExpr(Expr.Logical expr) {
+            return new Expr.Logical(expr.left.accept(this), expr.operator, expr.right.accept(this));
+        }
+
+        @Override
+        public Expr visitSetExpr(Expr.Set expr) {
+            var field = field(expr.object, expr.name);
+            if (field.isPresent()) {
+                resolver.incrementWrites(field.get());
+                return new Expr.Assign(field.get().token(), expr.value.accept(this));
+            }
+            return new Expr.Set(expr.object.accept(this), expr.name, expr.value.accept(this));
+        }
+
+        @Override
+        public Expr visitSuperExpr(Expr.Super expr) {
+            return expr;
+        }
+
+        @Override
+        public Expr visitThisExpr(Expr.This expr) {
+            return expr;
+        }
+
+        @Override
+        public Expr visitUnaryExpr(Expr.Unary expr) {
+            return new Expr.Unary(expr.operator, expr.right.accept(this));
+        }
+
+        @Override
+        public Expr visitVariableExpr(Expr.Variable expr) {
+            return expr;
+        }
+
+        @Override
+        public Stmt visitBlockStmt(Stmt.Block stmt) {
+            return new Stmt.Block(rewrite(stmt.statements));
+        }
+
+        @Override
+        public Stmt visitClassStmt(Stmt.Class stmt) {
+            return new Stmt.Class(
+                stmt.name,
+                stmt.superclass,
+                stmt.methods
+                    .stream()
+                    .map(this::rewrite)
+                    .collect(Collectors.toList())
+            );
+        }
+
+        @Override
+        public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+            return new Stmt.Expression(stmt.expression.accept(this));
+        }
+
+        @Override
+        public Stmt visitFunctionStmt(Stmt.Function stmt) {
+            return rewrite(stmt);
+        }
+
+        @Override
+        public Stmt visitIfStmt(Stmt.If stmt) {
+            return new Stmt.If(
+                stmt.condition.accept(this),
+                stmt.thenBranch.accept(this),
+                stmt.elseBranch == null ? null : stmt.elseBranch.accept(this)
+            );
+        }
+
+        @Override
+        public Stmt visitPrintStmt(Stmt.Print stmt) {
+            return new Stmt.Print(stmt.expression.accept(this));
+        }
+
+        @Override
+        public Stmt visitReturnStmt(Stmt.Return stmt) {
+            return new Stmt.Return(stmt.keyword, stmt.value == null ? null : stmt.value.accept(this));
+        }
+
+        @Override
+        public Stmt visitVarStmt(Stmt.Var stmt) {
+            return new Stmt.Var(stmt.name, stmt.initializer == null ? null : stmt.initializer.accept(this));
+        }
+
+        @Override
+        public Stmt visitWhileStmt(Stmt.While stmt) {
+            return new Stmt.While(stmt.condition.accept(this), stmt.body.accept(this));
+        }
+    }
+
+    /**
+     * Copies an initializer's field value, replacing parameters with the temporaries holding the arguments.
+     */
+    private class Inliner implements Expr.Visitor<Expr> {
+        private final Map<Token, VarDef> parameters;
+
+        private Inliner(Map<Token, VarDef> parameters) {
+            this.parameters = parameters;
+        }
+
+        @Override
+        public Expr visitAssignExpr(Expr.Assign expr) {
+            throw new IllegalStateException("Unexpected assignment in field initializer.");
+        }
+
+        @Override
+        public Expr visitBinaryExpr(Expr.Binary expr) {
+            return new Expr.Binary(expr.left.accept(this), expr.operator, expr.right.accept(this));
+        }
+
+        @Override
+        public Expr visitCallExpr(Expr.Call expr) {
+            throw new IllegalStateException("Unexpected call in field initializer.");
+        }
+
+        @Override
+        public Expr visitGetExpr(Expr.Get expr) {
+            throw new IllegalStateException("Unexpected get in field initializer.");
+        }
+
+        @Override
+        public Expr visitGroupingExpr(Expr.Grouping expr) {
+            return new Expr.Grouping(expr.expression.accept(this));
+        }
+
+        @Override
+        public Expr visitLiteralExpr(Expr.Literal expr) {
+            return expr;
+        }
+
+        @Override
+        public Expr visitLogicalExpr(Expr.Logical expr) {
+            return new Expr.Logical(expr.left.accept(this), expr.operator, expr.right.accept(this));
+        }
+
+        @Override
+        public Expr visitSetExpr(Expr.Set expr) {
+            throw new IllegalStateException("Unexpected set in field initializer.");
+        }
+
+        @Override
+        public Expr visitSuperExpr(Expr.Super expr) {
+            throw new IllegalStateException("Unexpected super in field initializer.");
+        }
+
+        @Override
+        public Expr visitThisExpr(Expr.This expr) {
+            throw new IllegalStateException("Unexpected this in field initializer.");
+        }
+
+        @Override
+        public Expr visitUnaryExpr(Expr.Unary expr) {
+            return new Expr.Unary(expr.operator, expr.right.accept(this));
+        }
+
+        @Override
+        public Expr visitVariableExpr(Expr.Variable expr) {
+            var temporary = parameters.get(resolver.varDef(expr).orElseThrow().token());
+            resolver.incrementReads(temporary);
+            return new Expr.Variable(temporary.token());
+        }
+    }
+}
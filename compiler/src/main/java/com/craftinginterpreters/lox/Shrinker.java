@@ -0,0 +1,353 @@
+package com.craftinginterpreters.lox;
+
+import proguard.classfile.Clazz;
+import proguard.classfile.ClassPool;
+import proguard.classfile.Method;
+import proguard.classfile.ProgramClass;
+import proguard.classfile.ProgramMethod;
+import proguard.classfile.attribute.Attribute;
+import proguard.classfile.attribute.CodeAttribute;
+import proguard.classfile.attribute.visitor.AllAttributeVisitor;
+import proguard.classfile.attribute.visitor.AllBootstrapMethodInfoVisitor;
+import proguard.classfile.attribute.visitor.AttributeVisitor;
+import proguard.classfile.constant.AnyMethodrefConstant;
+import proguard.classfile.constant.ClassConstant;
+import proguard.classfile.constant.Constant;
+import proguard.classfile.constant.FieldrefConstant;
+import proguard.classfile.constant.InvokeDynamicConstant;
+import proguard.classfile.constant.MethodHandleConstant;
+import proguard.classfile.constant.MethodTypeConstant;
+import proguard.classfile.constant.visitor.ConstantVisitor;
+import proguard.classfile.editor.ClassEditor;
+import proguard.classfile.editor.ConstantPoolShrinker;
+import proguard.classfile.editor.NamedAttributeDeleter;
+import proguard.classfile.instruction.ConstantInstruction;
+import proguard.classfile.instruction.Instruction;
+import proguard.classfile.instruction.visitor.InstructionVisitor;
+import proguard.classfile.io.ProgramClassReader;
+import proguard.classfile.io.ProgramClassWriter;
+import proguard.classfile.visitor.AllMethodVisitor;
+import proguard.classfile.visitor.MultiClassVisitor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import static com.craftinginterpreters.lox.LoxConstants.LOX_CALLABLE;
+import static com.craftinginterpreters.lox.LoxConstants.LOX_MAIN_CLASS;
+import static proguard.classfile.AccessConstants.PRIVATE;
+import static proguard.classfile.AccessConstants.STATIC;
+import static proguard.classfile.ClassConstants.METHOD_NAME_CLINIT;
+import static proguard.classfile.util.ClassUtil.externalClassName;
+import static proguard.classfile.util.ClassUtil.internalPackagePrefix;
+
+/**
+ * Removes the classes and methods of a compiled program that can't be reached from its
+ * main method, so that the jars it's written to are smaller and load faster. This mostly
+ * removes the parts of the runtime that the program doesn't use, and the methods of the
+ * generated classes that are never called, such as the <code>capture</code> methods of
+ * functions that are never declared.
+ * <p>
+ * Starting from <code>main</code>, a method marks the classes, fields and methods that its
+ * code refers to. Calls are resolved by name, without a type analysis: a call to a method
+ * marks the methods with the same name and descriptor in every marked class, and methods
+ * that override a library method, such as <code>toString</code>, are always marked. Static
+ * methods of a bootstrap method's class that have the name of one of its call sites are
+ * marked too, since <code>LoxInvoker</code> looks them up by name. The fields of marked
+ * classes are all kept.
+ * <p>
+ * The classes are copied first, since the runtime classes are shared by all the programs
+ * that the compiler compiles.
+ */
+public class Shrinker {
+
+    private static final Pattern CLASS_TYPE = Pattern.compile("L([^;]+);");
+
+    private final ClassPool classPool;
+    private final Set<ProgramClass> classes = Collections.newSetFromMap(new IdentityHashMap<>());
+    private final Set<ProgramMethod> methods = Collections.newSetFromMap(new IdentityHashMap<>());
+    // The name and descriptor of each method that's called, such as "invoke([Ljava/lang/Object;)Ljava/lang/Object;".
+    private final Set<String> calledMethods = new HashSet<>();
+    private final Map<String, Set<String>> libraryMethods = new HashMap<>();
+    private final Deque<Runnable> work = new ArrayDeque<>();
+
+    private Shrinker(ClassPool classPool) {
+        this.classPool = classPool;
+    }
+
+    /**
+     * Returns a copy of the program without its unreachable classes and methods
+     * and, optionally, without the attributes that are only used for debugging.
+     */
+    public static ClassPool shrink(ClassPool programClassPool, boolean stripDebug) {
+        var classPool = new ClassPool();
+        programClassPool.classesAccept(clazz -> classPool.addClass(copy((ProgramClass) clazz)));
+
+        var shrinker = new Shrinker(classPool);
+        shrinker.markMethod(LOX_MAIN_CLASS, "main", "([Ljava/lang/String;)V");
+        while (!shrinker.work.isEmpty()) shrinker.work.pop().run();
+
+        var shrunk = new ClassPool();
+        for (var clazz : classPool.classes()) {
+            var programClass = (ProgramClass) clazz;
+            if (!shrinker.classes.contains(programClass)) continue;
+            var editor = new ClassEditor(programClass);
+            methods(programClass).stream()
+                .filter(method -> !shrinker.methods.contains(method))
+                .toList()
+                .forEach(editor::removeMethod);
+            if (stripDebug) programClass.accept(new MultiClassVisitor(
+                new NamedAttributeDeleter(Attribute.SOURCE_FILE),
+                new AllMethodVisitor(
+                new AllAttributeVisitor(
+                new MultiAttributeDeleter(isRuntimeClass(programClass) ?
+                    new String[] { Attribute.LINE_NUMBER_TABLE, Attribute.LOCAL_VARIABLE_TABLE, Attribute.LOCAL_VARIABLE_TYPE_TABLE } :
+                    new String[] { Attribute.LOCAL_VARIABLE_TABLE, Attribute.LOCAL_VARIABLE_TYPE_TABLE })))));
+            programClass.accept(new ConstantPoolShrinker());
+            shrunk.addClass(programClass);
+        }
+        return shrunk;
+    }
+
+    /**
+     * The line numbers of the generated classes are kept, since runtime errors get their
+     * line from the stack trace, skipping the frames of the runtime classes.
+     */
+    private static boolean isRuntimeClass(ProgramClass programClass) {
+        return programClass.getName().startsWith(internalPackagePrefix(LOX_CALLABLE));
+    }
+
+    private static ProgramClass copy(ProgramClass programClass) {
+        var bytes = new ByteArrayOutputStream();
+        programClass.accept(new ProgramClassWriter(new DataOutputStream(bytes)));
+        var copy = new ProgramClass();
+        copy.accept(new ProgramClassReader(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+        return copy;
+    }
+
+    private void markClass(String className) {
+        if (className == null) return;
+        var clazz = programClass(className);
+        if (clazz == null || !classes.add(clazz)) return;
+
+        work.add(() -> {
+            markClass(clazz.getSuperName());
+            for (int i = 0; i < clazz.getInterfaceCount(); i++) markClass(clazz.getInterfaceName(i));
+            for (int i = 0; i < clazz.u2fieldsCount; i++) markTypes(clazz.fields[i].getDescriptor(clazz));
+            for (var method : methods(clazz)) {
+                var name = method.getName(clazz);
+                var signature = name + method.getDescriptor(clazz);
+                if (name.equals(METHOD_NAME_CLINIT) ||
+                    isVirtual(clazz, method) && (calledMethods.contains(signature) || overridesLibraryMethod(clazz, signature))) {
+                    markMethod(clazz, method);
+                }
+            }
+            clazz.attributesAccept(new AllBootstrapMethodInfoVisitor((c, bootstrapMethodInfo) -> {
+                bootstrapMethodInfo.methodHandleAccept(c, constantMarker);
+                bootstrapMethodInfo.methodArgumentsAccept(c, constantMarker);
+            }));
+        });
+    }
+
+    private void markMethod(ProgramClass clazz, ProgramMethod method) {
+        if (!methods.add(method)) return;
+        markClass(clazz.getName());
+
+        work.add(() -> {
+            markTypes(method.getDescriptor(clazz));
+            method.attributesAccept(clazz, new CodeMarker());
+        });
+    }
+
+    /**
+     * Marks the method that a reference resolves to, in the class or its superclasses, and
+     * the methods with the same name and descriptor in the marked classes that override it.
+     */
+    private void markMethod(String className, String name, String descriptor) {
+        markClass(className);
+        for (var clazz = programClass(className); clazz != null; clazz = superClass(clazz)) {
+            var method = (ProgramMethod) clazz.findMethod(name, descriptor);
+            if (method != null) {
+                markMethod(clazz, method);
+                break;
+            }
+        }
+
+        if (calledMethods.add(name + descriptor)) {
+            for (var clazz : Set.copyOf(classes)) {
+                var method = (ProgramMethod) clazz.findMethod(name, descriptor);
+                if (method != null && isVirtual(clazz, method)) markMethod(clazz, method);
+            }
+        }
+    }
+
+    private ProgramClass programClass(String className) {
+        return className != null ? (ProgramClass) classPool.getClass(className) : null;
+    }
+
+    private ProgramClass superClass(Clazz clazz) {
+        return programClass(clazz.getSuperName());
+    }
+
+    private static List<ProgramMethod> methods(ProgramClass programClass) {
+        return Arrays.asList(programClass.methods).subList(0, programClass.u2methodsCount);
+    }
+
+    private void markTypes(String descriptor) {
+        var matcher = CLASS_TYPE.matcher(descriptor);
+        while (matcher.find()) markClass(matcher.group(1));
+    }
+
+    private static boolean isVirtual(Clazz clazz, Method method) {
+        return (method.getAccessFlags() & (STATIC | PRIVATE)) == 0 && !method.getName(clazz).startsWith("<");
+    }
+
+    /**
+     * Returns whether the method overrides a method of a library class that the
+     * class extends, which the library can call.
+     */
+    private boolean overridesLibraryMethod(Clazz clazz, String signature) {
+        for (var current = clazz; current != null; current = superClass(current)) {
+            var superName = current.getSuperName();
+            if (superName != null && classPool.getClass(superName) == null && libraryMethods(superName).contains(signature)) return true;
+            for (int i = 0; i < current.getInterfaceCount(); i++) {
+                var interfaceName = current.getInterfaceName(i);
+                if (classPool.getClass(interfaceName) == null && libraryMethods(interfaceName).contains(signature)) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the name and descriptor of the methods that can be overridden in
+     * the given library class, which is loaded to find them.
+     */
+    private Set<String> libraryMethods(String className) {
+        return libraryMethods.computeIfAbsent(className, name -> {
+            var signatures = new HashSet<String>();
+            try {
+                var library = Class.forName(externalClassName(name), false, Shrinker.class.getClassLoader());
+                var types = new ArrayDeque<Class<?>>();
+                types.add(library);
+                while (!types.isEmpty()) {
+                    var type = types.pop();
+                    for (var method : type.getDeclaredMethods()) {
+                        if ((method.getModifiers() & (Modifier.STATIC | Modifier.PRIVATE)) != 0) continue;
+                        signatures.add(method.getName() + MethodType.methodType(method.getReturnType(), method.getParameterTypes()).toMethodDescriptorString());
+                    }
+                    if (type.getSuperclass() != null) types.add(type.getSuperclass());
+                    types.addAll(List.of(type.getInterfaces()));
+                }
+            } catch (ClassNotFoundException e) {
+                throw new IllegalStateException("Unknown library class " + externalClassName(name) + ".", e);
+            }
+            return signatures;
+        });
+    }
+
+    private final ConstantVisitor constantMarker = new ConstantVisitor() {
+        @Override
+        public void visitAnyConstant(Clazz clazz, Constant constant) { }
+
+        @Override
+        public void visitClassConstant(Clazz clazz, ClassConstant classConstant) {
+            var name = classConstant.getName(clazz);
+            if (name.startsWith("[")) markTypes(name);
+            else markClass(name);
+        }
+
+        @Override
+        public void visitFieldrefConstant(Clazz clazz, FieldrefConstant fieldrefConstant) {
+            markClass(fieldrefConstant.getClassName(clazz));
+            markTypes(fieldrefConstant.getType(clazz));
+        }
+
+        @Override
+        public void visitAnyMethodrefConstant(Clazz clazz, AnyMethodrefConstant refConstant) {
+            markMethod(refConstant.getClassName(clazz), refConstant.getName(clazz), refConstant.getType(clazz));
+        }
+
+        @Override
+        public void visitMethodHandleConstant(Clazz clazz, MethodHandleConstant methodHandleConstant) {
+            methodHandleConstant.referenceAccept(clazz, this);
+        }
+
+        @Override
+        public void visitMethodTypeConstant(Clazz clazz, MethodTypeConstant methodTypeConstant) {
+            markTypes(methodTypeConstant.getType(clazz));
+        }
+
+        @Override
+        public void visitInvokeDynamicConstant(Clazz clazz, InvokeDynamicConstant invokeDynamicConstant) {
+            markTypes(invokeDynamicConstant.getType(clazz));
+            var name = invokeDynamicConstant.getName(clazz);
+            invokeDynamicConstant.bootstrapMethodHandleAccept(clazz, new ConstantVisitor() {
+                @Override
+                public void visitMethodHandleConstant(Clazz clazz, MethodHandleConstant methodHandleConstant) {
+                    methodHandleConstant.referenceAccept(clazz, constantMarker);
+                    var bootstrapClass = programClass(methodHandleConstant.getClassName(clazz));
+                    if (bootstrapClass != null) for (var method : methods(bootstrapClass)) {
+                        if ((method.getAccessFlags() & STATIC) != 0 && method.getName(bootstrapClass).equals(name)) markMethod(bootstrapClass, method);
+                    }
+                }
+            });
+        }
+    };
+
+    /**
+     * Marks what the instructions and exception handlers of a method's code refer to.
+     */
+    private class CodeMarker implements AttributeVisitor, InstructionVisitor {
+        @Override
+        public void visitAnyAttribute(Clazz clazz, Attribute attribute) { }
+
+        @Override
+        public void visitCodeAttribute(Clazz clazz, Method method, CodeAttribute codeAttribute) {
+            codeAttribute.instructionsAccept(clazz, method, this);
+            codeAttribute.exceptionsAccept(clazz, method, (c, m, code, exceptionInfo) -> {
+                if (exceptionInfo.u2catchType != 0) c.constantPoolEntryAccept(exceptionInfo.u2catchType, constantMarker);
+            });
+        }
+
+        @Override
+        public void visitAnyInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, Instruction instruction) { }
+
+        @Override
+        public void visitConstantInstruction(Clazz clazz, Method method, CodeAttribute codeAttribute, int offset, ConstantInstruction constantInstruction) {
+            clazz.constantPoolEntryAccept(constantInstruction.constantIndex, constantMarker);
+        }
+    }
+
+    /**
+     * Deletes the attributes with any of the given names from a code attribute.
+     */
+    private static class MultiAttributeDeleter implements AttributeVisitor {
+        private final NamedAttributeDeleter[] deleters;
+
+        private MultiAttributeDeleter(String... names) {
+            deleters = Arrays.stream(names).map(NamedAttributeDeleter::new).toArray(NamedAttributeDeleter[]::new);
+        }
+
+        @Override
+        public void visitAnyAttribute(Clazz clazz, Attribute attribute) { }
+
+        @Override
+        public void visitCodeAttribute(Clazz clazz, Method method, CodeAttribute codeAttribute) {
+            for (var deleter : deleters) deleter.visitCodeAttribute(clazz, method, codeAttribute);
+        }
+    }
+}
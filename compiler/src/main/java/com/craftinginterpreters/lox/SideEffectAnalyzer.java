@@ -0,0 +1,506 @@
+package com.craftinginterpreters.lox;
+
+import com.craftinginterpreters.lox.CompilerResolver.ClassVarDef;
+import com.craftinginterpreters.lox.CompilerResolver.FunctionVarDef;
+import com.craftinginterpreters.lox.CompilerResolver.VarDef;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+
+import static com.craftinginterpreters.lox.SideEffectAnalyzer.Effect.ALLOCATES;
+import static com.craftinginterpreters.lox.SideEffectAnalyzer.Effect.MAY_DIVERGE;
+import static com.craftinginterpreters.lox.SideEffectAnalyzer.Effect.MUTATES_INSTANCES;
+import static com.craftinginterpreters.lox.SideEffectAnalyzer.Effect.PERFORMS_IO;
+import static com.craftinginterpreters.lox.SideEffectAnalyzer.Effect.READS_GLOBALS;
+import static com.craftinginterpreters.lox.SideEffectAnalyzer.Effect.READS_INSTANCES;
+import static com.craftinginterpreters.lox.SideEffectAnalyzer.Effect.WRITES_GLOBALS;
+
+/**
+ * Computes a side effect summary for every function in a program.
+ * <p>
+ * The direct effects of each function body are propagated over the call graph of
+ * statically resolved calls i.e. calls through function or class variables that are
+ * never reassigned. Calls that cannot be resolved, such as method calls, are assumed
+ * to have every effect.
+ * <p>
+ * Any variable declared outside a function is treated as a global of that function, since
+ * it outlives the call. Runtime errors are not considered side effects, in the same
+ * way as the {@link Optimizer} removes unused operator expressions.
+ */
+public class SideEffectAnalyzer {
+
+    public enum Effect {
+        READS_GLOBALS,
+        WRITES_GLOBALS,
+        READS_INSTANCES,
+        MUTATES_INSTANCES,
+        ALLOCATES,
+        PERFORMS_IO,
+        MAY_DIVERGE
+    }
+
+    public record Summary(Set<Effect> effects) {
+        public static final Summary UNKNOWN = new Summary(EnumSet.allOf(Effect.class));
+
+        public boolean has(Effect effect) {
+            return effects.contains(effect);
+        }
+
+        /**
+         * A pure function always returns the same value for the same arguments
+         * and has no observable effects, except possibly not terminating.
+         */
+        public boolean isPure() {
+            return EnumSet.of(MAY_DIVERGE).containsAll(effects);
+        }
+
+        /**
+         * A call is removable if its result is not needed.
+         */
+        public boolean isRemovable() {
+            return EnumSet.of(READS_GLOBALS, READS_INSTANCES, ALLOCATES).containsAll(effects);
+        }
+
+        /**
+         * Returns true if the call may change the value of variables or properties.
+         */
+        public boolean isWriting() {
+            return has(WRITES_GLOBALS) || has(MUTATES_INSTANCES);
+        }
+    }
+
+    private final CompilerResolver resolver;
+    private final Map<Token, Stmt.Function> functions = new HashMap<>();
+    private final Set<Token> initializers = new HashSet<>();
+    private final Map<Token, Stmt.Function> functionDeclarations = new HashMap<>();
+    private final Map<Token, Stmt.Class> classDeclarations = new HashMap<>();
+    private final Map<Token, Set<Effect>> directEffects = new HashMap<>();
+    private final Map<Token, Set<Token>> callees = new HashMap<>();
+    private final Map<Token, Summary> summaries = new HashMap<>();
+    private final Set<Token> recursive = new HashSet<>();
+
+    public SideEffectAnalyzer(CompilerResolver resolver) {
+        this.resolver = resolver;
+    }
+
+    public SideEffectAnalyzer analyze(Stmt.Function main) {
+        new DeclarationCollector().collect(main);
+        functions.values().forEach(function -> new DirectEffectComputer(function).compute());
+        propagate();
+        return this;
+    }
+
+    public Summary summary(Stmt.Function function) {
+        return summaries.getOrDefault(function.name, Summary.UNKNOWN);
+    }
+
+    /**
+     * Returns true if the function can call itself, directly or through other functions.
+     */
+    public boolean isRecursive(Stmt.Function function) {
+        return recursive.contains(function.name);
+    }
+
+    /**
+     * Returns the summary of performing the call, excluding the
+     * evaluation of the callee and arguments.
+     */
+    public Summary summary(Expr.Call call) {
+        var function = function(call);
+        if (function.isPresent()) {
+            return function.get().params.size() == call.arguments.size() ?
+                summary(function.get()) :
+                Summary.UNKNOWN;
+        }
+
+        var classStmt = classDeclaration(call.callee);
+        if (classStmt.isPresent() && classStmt.get().superclass == null) {
+            var init = initializer(classStmt.get());
+            var arity = init.map(it -> it.params.size()).orElse(0);
+            if (arity != call.arguments.size()) return Summary.UNKNOWN;
+
+            var effects = EnumSet.of(ALLOCATES);
+            init.ifPresent(it -> effects.addAll(summary(it).effects()));
+            return new Summary(effects);
+        }
+
+        return Summary.UNKNOWN;
+    }
+
+    /**
+     * Returns the function that is statically known to be called by the call expression.
+     */
+    public Optional<Stmt.Function> function(Expr.Call call) {
+        return varDef(call.callee)
+            .filter(it -> it instanceof FunctionVarDef && it.isFinal())
+            .map(it -> functionDeclarations.get(it.token()));
+    }
+
+    private Optional<Stmt.Class> classDeclaration(Expr callee) {
+        return varDef(callee)
+            .filter(it -> it instanceof ClassVarDef && it.isFinal())
+            .map(it -> classDeclarations.get(it.token()));
+    }
+
+    private Optional<VarDef> varDef(Expr callee) {
+        while (callee instanceof Expr.Grouping grouping) callee = grouping.expression;
+        return callee instanceof Expr.Variable variable ? resolver.varDef(variable) : Optional.empty();
+    }
+
+    private static Optional<Stmt.Function> initializer(Stmt.Class classStmt) {
+        return classStmt.methods.stream().filter(it -> it.name.lexeme.equals("init")).findFirst();
+    }
+
+    /**
+     * Propagates direct effects over the strongly connected components of the call graph,
+     * in reverse topological order so that callees are summarised before their callers.
+     */
+    private void propagate() {
+        for (var component : stronglyConnectedComponents()) {
+            var effects = EnumSet.noneOf(Effect.class);
+            var isRecursive = component.size() > 1;
+            for (var function : component) {
+                effects.addAll(directEffects.get(function));
+                for (var callee : callees.get(function)) {
+                    if (component.contains(callee)) isRecursive = true;
+                    else effects.addAll(summaries.get(callee).effects());
+                }
+            }
+            if (isRecursive) {
+                effects.add(MAY_DIVERGE);
+                recursive.addAll(component);
+            }
+            var summary = new Summary(Collections.unmodifiableSet(effects));
+            component.forEach(function -> summaries.put(function, summary));
+        }
+    }
+
+    /**
+     * An iterative version of Tarjan's algorithm, which returns the
+     * components in reverse topological order.
+     */
+    private List<Set<Token>> stronglyConnectedComponents() {
+        var components = new ArrayList<Set<Token>>();
+        var index = new HashMap<Token, Integer>();
+        var lowLink = new HashMap<Token, Integer>();
+        var stack = new ArrayDeque<Token>();
+        var onStack = new HashSet<Token>();
+
+        for (var root : functions.keySet()) {
+            if (index.containsKey(root)) continue;
+
+            Deque<Map.Entry<Token, Iterator<Token>>> work = new ArrayDeque<>();
+            index.put(root, index.size());
+            lowLink.put(root, index.get(root));
+            stack.push(root);
+            onStack.add(root);
+            work.push(Map.entry(root, callees.get(root).iterator()));
+
+            while (!work.isEmpty()) {
+                var node = work.peek().getKey();
+                var iterator = work.peek().getValue();
+                if (iterator.hasNext()) {
+                    var callee = iterator.next();
+                    if (!index.containsKey(callee)) {
+                        index.put(callee, index.size());
+                        lowLink.put(callee, index.get(callee));
+                        stack.push(callee);
+                        onStack.add(callee);
+                        work.push(Map.entry(callee, callees.get(callee).iterator()));
+                    } else if (onStack.contains(callee)) {
+                        lowLink.put(node, Math.min(lowLink.get(node), index.get(callee)));
+                    }
+                } else {
+                    work.pop();
+                    if (!work.isEmpty()) {
+                        var caller = work.peek().getKey();
+                        lowLink.put(caller, Math.min(lowLink.get(caller), lowLink.get(node)));
+                    }
+                    if (lowLink.get(node).equals(index.get(node))) {
+                        var component = new LinkedHashSet<Token>();
+                        Token member;
+                        do {
+                            member = stack.pop();
+                            onStack.remove(member);
+                            component.add(member);
+                        } while (member != node);
+                        components.add(component);
+                    }
+                }
+            }
+        }
+
+        return components;
+    }
+
+    /**
+     * Collects every function and class in the program, along with the
+     * declarations of the function and class variables that are never reassigned.
+     */
+    private class DeclarationCollector implements Stmt.Visitor<Void> {
+
+        public void collect(Stmt.Function main) {
+            functions.put(main.name, main);
+            main.body.forEach(it -> it.accept(this));
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            stmt.statements.forEach(it -> it.accept(this));
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            var varDef = resolver.varDef(stmt.name);
+            if (varDef instanceof ClassVarDef && varDef.isFinal()) classDeclarations.put(varDef.token(), stmt);
+            stmt.methods.forEach(method -> {
+                if (method.name.lexeme.equals("init")) initializers.add(method.name);
+                functions.put(method.name, method);
+                method.body.forEach(it -> it.accept(this));
+            });
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            var varDef = resolver.varDef(stmt.name);
+            if (varDef instanceof FunctionVarDef && varDef.isFinal()) functionDeclarations.put(varDef.token(), stmt);
+            functions.put(stmt.name, stmt);
+            stmt.body.forEach(it -> it.accept(this));
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            stmt.body.accept(this);
+            return null;
+        }
+    }
+
+    /**
+     * Computes the effects of a single function body, without following calls,
+     * and records the statically resolved callees.
+     */
+    private class DirectEffectComputer implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
+        private final Stmt.Function function;
+        private final boolean isInitializer;
+        private final Set<Effect> effects = EnumSet.noneOf(Effect.class);
+        private final Set<Token> calls = new LinkedHashSet<>();
+
+        private DirectEffectComputer(Stmt.Function function) {
+            this.function = function;
+            this.isInitializer = initializers.contains(function.name);
+        }
+
+        public void compute() {
+            if (function instanceof Compiler.NativeFunction) {
+                // utf only converts its arguments; the other natives interact with the process.
+                if (!function.name.lexeme.equals("utf")) effects.add(PERFORMS_IO);
+            } else {
+                function.body.forEach(it -> it.accept(this));
+            }
+            directEffects.put(function.name, effects);
+            callees.put(function.name, calls);
+        }
+
+        private boolean isNonLocal(VarDef varDef) {
+            return varDef.function() != null && varDef.function().name != function.name;
+        }
+
+        @Override
+        public Void visitAssignExpr(Expr.Assign expr) {
+            expr.value.accept(this);
+            resolver.varDef(expr).ifPresentOrElse(varDef -> {
+                if (isNonLocal(varDef)) effects.add(WRITES_GLOBALS);
+            }, () -> effects.add(WRITES_GLOBALS));
+            return null;
+        }
+
+        @Override
+        public Void visitBinaryExpr(Expr.Binary expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitCallExpr(Expr.Call expr) {
+            expr.callee.accept(this);
+            expr.arguments.forEach(it -> it.accept(this));
+
+            var callee = function(expr);
+            var classStmt = classDeclaration(expr.callee);
+            if (callee.isPresent() && callee.get().params.size() == expr.arguments.size()) {
+                calls.add(callee.get().name);
+            } else if (classStmt.isPresent() && classStmt.get().superclass == null &&
+                       initializer(classStmt.get()).map(it -> it.params.size()).orElse(0) == expr.arguments.size()) {
+                effects.add(ALLOCATES);
+                initializer(classStmt.get()).ifPresent(it -> calls.add(it.name));
+            } else {
+                effects.addAll(Summary.UNKNOWN.effects());
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitGetExpr(Expr.Get expr) {
+            expr.object.accept(this);
+            effects.add(READS_INSTANCES);
+            return null;
+        }
+
+        @Override
+        public Void visitGroupingExpr(Expr.Grouping expr) {
+            expr.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitLiteralExpr(Expr.Literal expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitLogicalExpr(Expr.Logical expr) {
+            expr.left.accept(this);
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitSetExpr(Expr.Set expr) {
+            expr.object.accept(this);
+            expr.value.accept(this);
+            // An initializer called through its class only sets fields of the new instance.
+            if (!(isInitializer && expr.object instanceof Expr.This)) effects.add(MUTATES_INSTANCES);
+            return null;
+        }
+
+        @Override
+        public Void visitSuperExpr(Expr.Super expr) {
+            // Binds a new method.
+            effects.add(ALLOCATES);
+            return null;
+        }
+
+        @Override
+        public Void visitThisExpr(Expr.This expr) {
+            return null;
+        }
+
+        @Override
+        public Void visitUnaryExpr(Expr.Unary expr) {
+            expr.right.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVariableExpr(Expr.Variable expr) {
+            resolver.varDef(expr).ifPresentOrElse(varDef -> {
+                var isConstant = (varDef instanceof FunctionVarDef || varDef instanceof ClassVarDef) && varDef.isFinal();
+                if (isNonLocal(varDef) && !isConstant) effects.add(READS_GLOBALS);
+            }, () -> effects.add(READS_GLOBALS));
+            return null;
+        }
+
+        @Override
+        public Void visitBlockStmt(Stmt.Block stmt) {
+            stmt.statements.forEach(it -> it.accept(this));
+            return null;
+        }
+
+        @Override
+        public Void visitClassStmt(Stmt.Class stmt) {
+            if (stmt.superclass != null) stmt.superclass.accept(this);
+            effects.add(ALLOCATES);
+            return null;
+        }
+
+        @Override
+        public Void visitExpressionStmt(Stmt.Expression stmt) {
+            stmt.expression.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitFunctionStmt(Stmt.Function stmt) {
+            // Creates a new closure; the body is summarised separately.
+            effects.add(ALLOCATES);
+            return null;
+        }
+
+        @Override
+        public Void visitIfStmt(Stmt.If stmt) {
+            stmt.condition.accept(this);
+            stmt.thenBranch.accept(this);
+            if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitPrintStmt(Stmt.Print stmt) {
+            stmt.expression.accept(this);
+            effects.add(PERFORMS_IO);
+            return null;
+        }
+
+        @Override
+        public Void visitReturnStmt(Stmt.Return stmt) {
+            if (stmt.value != null) stmt.value.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitVarStmt(Stmt.Var stmt) {
+            if (stmt.initializer != null) stmt.initializer.accept(this);
+            return null;
+        }
+
+        @Override
+        public Void visitWhileStmt(Stmt.While stmt) {
+            stmt.condition.accept(this);
+            stmt.body.accept(this);
+            effects.add(MAY_DIVERGE);
+            return null;
+        }
+    }
+}
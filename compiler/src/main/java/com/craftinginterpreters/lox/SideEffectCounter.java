@@ -3,10 +3,29 @@ package com.craftinginterpreters.lox;
 /**
  * Counts how many instructions that have side effects.
  * <p>
- * Side effects include function calls, assign and set expressions.
+ * Side effects include function calls, assign and set expressions. If a
+ * {@link SideEffectAnalyzer} is given, calls that it summarises as removable
+ * are not counted.
  */
 public class SideEffectCounter extends FunctionCallCounter {
 
+    private final SideEffectAnalyzer sideEffectAnalyzer;
+
+    public SideEffectCounter() {
+        this(null);
+    }
+
+    public SideEffectCounter(SideEffectAnalyzer sideEffectAnalyzer) {
+        this.sideEffectAnalyzer = sideEffectAnalyzer;
+    }
+
+    @Override
+    public Integer visitCallExpr(Expr.Call expr) {
+        var count = super.visitCallExpr(expr);
+        if (sideEffectAnalyzer != null && sideEffectAnalyzer.summary(expr).isRemovable()) count--;
+        return count;
+    }
+
     @Override
     public Integer visitSetExpr(Expr.Set expr) {
         return super.visitSetExpr(expr) + 1;
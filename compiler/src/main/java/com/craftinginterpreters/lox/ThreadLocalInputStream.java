@@ -0,0 +1,60 @@
+package com.craftinginterpreters.lox;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A standard input that reads from the original stream, except in threads
+ * that have their own input, like {@link ThreadLocalPrintStream}.
+ */
+class ThreadLocalInputStream extends InputStream {
+
+    private final InputStream original;
+    private final ThreadLocal<InputStream> input = new ThreadLocal<>();
+
+    private ThreadLocalInputStream(InputStream original) {
+        this.original = original;
+    }
+
+    /**
+     * Returns the current <code>System.in</code>, first wrapping
+     * it if it isn't a {@link ThreadLocalInputStream} yet.
+     */
+    static synchronized ThreadLocalInputStream in() {
+        if (System.in instanceof ThreadLocalInputStream in) return in;
+        var in = new ThreadLocalInputStream(System.in);
+        System.setIn(in);
+        return in;
+    }
+
+    /**
+     * Reads the input of the current thread from the given stream,
+     * or from the original stream again if it is <code>null</code>.
+     */
+    void use(@Nullable InputStream inputStream) {
+        if (inputStream == null) input.remove();
+        else input.set(inputStream);
+    }
+
+    private InputStream current() {
+        var inputStream = input.get();
+        return inputStream != null ? inputStream : original;
+    }
+
+    @Override
+    public int read() throws IOException {
+        return current().read();
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        return current().read(b, off, len);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return current().available();
+    }
+}
@@ -0,0 +1,77 @@
+package com.craftinginterpreters.lox;
+
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+
+/**
+ * A standard stream that writes to the original stream, except in threads that
+ * are capturing their output.
+ * <p>
+ * Generated programs print to <code>System.out</code> and the front-end prints errors to
+ * <code>System.err</code>, so this is how the output of concurrent compilations and runs
+ * is kept apart.
+ */
+class ThreadLocalPrintStream extends PrintStream {
+
+    private final ThreadLocal<OutputStream> capture;
+
+    private ThreadLocalPrintStream(PrintStream original, ThreadLocal<OutputStream> capture) {
+        super(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                var outputStream = capture.get();
+                if (outputStream != null) outputStream.write(b);
+                else original.write(b);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                var outputStream = capture.get();
+                if (outputStream != null) outputStream.write(b, off, len);
+                else original.write(b, off, len);
+            }
+
+            @Override
+            public void flush() throws IOException {
+                var outputStream = capture.get();
+                if (outputStream != null) outputStream.flush();
+                else original.flush();
+            }
+        }, true);
+        this.capture = capture;
+    }
+
+    /**
+     * Returns the current <code>System.out</code>, first wrapping
+     * it if it isn't a {@link ThreadLocalPrintStream} yet.
+     */
+    static synchronized ThreadLocalPrintStream out() {
+        if (System.out instanceof ThreadLocalPrintStream out) return out;
+        var out = new ThreadLocalPrintStream(System.out, new ThreadLocal<>());
+        System.setOut(out);
+        return out;
+    }
+
+    /**
+     * Returns the current <code>System.err</code>, first wrapping
+     * it if it isn't a {@link ThreadLocalPrintStream} yet.
+     */
+    static synchronized ThreadLocalPrintStream err() {
+        if (System.err instanceof ThreadLocalPrintStream err) return err;
+        var err = new ThreadLocalPrintStream(System.err, new ThreadLocal<>());
+        System.setErr(err);
+        return err;
+    }
+
+    /**
+     * Sends the output of the current thread to the given stream,
+     * or to the original stream again if it is <code>null</code>.
+     */
+    void capture(@Nullable OutputStream outputStream) {
+        if (outputStream == null) capture.remove();
+        else capture.set(outputStream);
+    }
+}
@@ -2,25 +2,52 @@ package com.craftinginterpreters.lox;
 
 import com.craftinginterpreters.lox.CompilerResolver.VarDef;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Optional;
+import java.util.PriorityQueue;
 import java.util.Stack;
-import java.util.WeakHashMap;
 
-public class VariableAllocator implements Stmt.Visitor<Void>, Expr.Visitor<Void> {
-
-    private static final boolean DEBUG = System.getProperty("lox.variableallocator.debug") != null;
+/**
+ * Assigns JVM local variable slots to the variables of each function.
+ * <p>
+ * The live range of a variable is the interval from its first to its last access in
+ * the order the function's code is emitted; an access inside a loop extends the range
+ * to the end of the outermost loop entered after the variable was defined, since the
+ * value must survive the back edge. Slots are then assigned by a linear scan over the
+ * intervals, so a slot is re-used as soon as the variable in it is dead.
+ * <p>
+ * Slot 0 holds the function itself; slot 1 holds the argument array until it is unpacked.
+ * <p>
+ * Since this is the last walk over the tree before code generation, it also records the
+ * other facts the compiler needs per function and statement, so that code generation
+ * doesn't need to re-walk function bodies: whether a function contains calls, the
+ * captured variables it reads and the number of values left on the stack by each
+ * expression statement.
+ */
+public class VariableAllocator implements Stmt.Visitor<Void>, Expr.Visitor<Integer> {
 
     private final CompilerResolver resolver;
-    private final Stack<Stmt.Function> functionStack = new Stack<>();
-    private final Stack<Map<VarDef, Boolean>> scopes = new Stack<>();
-    private final Map<Token, Map<VarDef, Slot>> slots = new HashMap<>();
+    private final boolean debug;
+    private final Stack<FunctionIntervals> functionStack = new Stack<>();
+    private final Map<Token, Map<VarDef, Integer>> slots = new HashMap<>();
+    private final Map<Token, Integer> maxLocals = new HashMap<>();
+    private final Map<Token, Boolean> hasCalls = new HashMap<>();
+    private final Map<Token, List<VarDef>> captured = new HashMap<>();
+    private final Map<Stmt.Expression, Integer> stackSizes = new IdentityHashMap<>();
+    private int position = 0;
 
     public VariableAllocator(CompilerResolver resolver) {
+        this(resolver, false);
+    }
+
+    public VariableAllocator(CompilerResolver resolver, boolean debug) {
         this.resolver = resolver;
+        this.debug = debug;
     }
 
     /**
@@ -28,14 +55,42 @@ public class VariableAllocator implements Stmt.Visitor<Void>, Expr.Visitor<Void>
      * function.
      */
     public int slot(Stmt.Function function, VarDef varDef) {
-        var slot = slots(function)
-                .entrySet()
-                .stream()
-                .filter(it -> it.getKey().equals(varDef))
-                .map(Map.Entry::getValue)
-                .findFirst();
+        var slot = slots.getOrDefault(function.name, Map.of()).get(varDef);
+        if (slot == null) throw new IllegalArgumentException("No slot for " + varDef + " in " + function.name.lexeme);
+        return slot;
+    }
+
+    /**
+     * Returns the number of local variable slots used by the
+     * specified function, including the receiver and arguments.
+     */
+    public int maxLocals(Stmt.Function function) {
+        return maxLocals.getOrDefault(function.name, 2);
+    }
 
-        return slot.orElseThrow().number;
+    /**
+     * Returns true if the specified function contains calls, not including
+     * calls in nested functions.
+     */
+    public boolean hasCalls(Stmt.Function function) {
+        return hasCalls.getOrDefault(function.name, false);
+    }
+
+    /**
+     * Returns the variables captured by the specified function that are read.
+     */
+    public List<VarDef> captured(Stmt.Function function) {
+        return captured.getOrDefault(function.name, List.of());
+    }
+
+    /**
+     * Returns the number of values left on the stack after executing
+     * the expression of the specified statement.
+     */
+    public int stackSize(Stmt.Expression stmt) {
+        var stackSize = stackSizes.get(stmt);
+        if (stackSize == null) throw new IllegalArgumentException("No stack size for " + stmt);
+        return stackSize;
     }
 
     public void resolve(Stmt.Function function) {
@@ -50,177 +105,174 @@ public class VariableAllocator implements Stmt.Visitor<Void>, Expr.Visitor<Void>
         stmt.accept(this);
     }
 
-    private void resolve(Expr expr) {
-        expr.accept(this);
+    private int resolve(Expr expr) {
+        return expr.accept(this);
     }
 
     private void resolveFunction(Stmt.Function function) {
-        beginScope(function);
+        functionStack.push(new FunctionIntervals(function));
         for (Token param : function.params) declare(param);
-        // Assign slots for variables captured by this function.
-        resolver.captured(function)
+        var captured = resolver.captured(function)
                 .stream()
-                .filter(it -> !it.isGlobal())
                 .filter(VarDef::isRead)
-                .forEach(
-                    varDef -> slots(function).put(varDef, new Slot(function, nextSlotNumber(function), true))
-                );
+                .toList();
+        this.captured.put(function.name, captured);
+        // Variables captured by this function are loaded into slots before the body.
+        captured.stream()
+                .filter(it -> !it.isGlobal())
+                .forEach(this::access);
         resolve(function.body);
-        endScope(function);
+        var intervals = functionStack.pop();
+        hasCalls.put(function.name, intervals.hasCalls);
+        allocate(intervals);
     }
 
-    private void beginScope(Stmt.Function function) {
-        functionStack.push(function);
-        beginScope();
-    }
+    private void declare(Token name) {
+        var varDef = resolver.varDef(name);
 
-    private void beginScope() {
-        scopes.push(new HashMap<>());
-    }
+        if (!varDef.isRead()) return;
 
-    private void endScope() {
-        // At the end of each scope, the variable slot can be re-used.
-        scopes.peek().keySet().forEach(it -> free(functionStack.peek(), it));
-        scopes.pop();
-    }
+        // Captured globals are stored in static fields instead.
+        if (varDef.isGlobal() && varDef.isCaptured()) return;
 
-    private void free(Stmt.Function function, VarDef it) {
-        var slot = slots(function).get(it);
-        if (slot != null) slot.isUsed = false;
-        if (DEBUG) System.out.println("freeing " + it.token().lexeme + " from slot " + slot + " in function " + function.name.lexeme);
+        access(varDef);
     }
 
-    private void endScope(Stmt.Function ignoredFunction) {
-        endScope();
-        functionStack.pop();
+    private void access(Expr varAccess) {
+        resolver.varDef(varAccess).ifPresent(varDef -> {
+            var intervals = functionStack.peek().intervals;
+            // Only variables declared in, or captured by, this function have slots.
+            if (intervals.containsKey(varDef)) access(varDef);
+        });
     }
 
-    private void declare(Token name) {
-        if (scopes.isEmpty()) return;
+    private void access(VarDef varDef) {
+        var function = functionStack.peek();
+        int position = this.position++;
+        var interval = function.intervals.computeIfAbsent(varDef, k -> new Interval(varDef, position));
+        interval.end = position;
 
-        var varDef = resolver.varDef(name);
+        for (var loop : function.loops) {
+            if (loop.start > interval.start) {
+                loop.intervals.add(interval);
+                break;
+            }
+        }
+    }
 
-        if (!varDef.isRead()) return;
+    private void allocate(FunctionIntervals function) {
+        var slots = slots(function.function);
+        var free = new PriorityQueue<Integer>();
+        var active = new PriorityQueue<Interval>(Comparator.comparingInt(it -> it.end));
+        int nextSlot = 1;
 
-        var currentFunction = functionStack.peek();
-        boolean isAlreadyDeclared = slots(currentFunction).containsKey(varDef);
-        boolean isGlobalScope = scopes.size() == 1;
+        // Intervals are created in order of their start position.
+        for (var interval : function.intervals.values()) {
+            while (!active.isEmpty() && active.peek().end < interval.start) {
+                free.add(slots.get(active.poll().varDef));
+            }
+            int slot = free.isEmpty() ? nextSlot++ : free.poll();
+            slots.put(interval.varDef, slot);
+            active.add(interval);
 
-        if (isAlreadyDeclared && isGlobalScope) {
-             // Global scope allows redefinitions so no need to assign a new slot.
-            return;
+            if (debug) System.out.println("assigning " + interval.varDef + " " + interval + " to slot " + slot + " in " + function.function.name.lexeme);
         }
 
-        scopes.peek().put(varDef, false);
-        int slot = nextSlotNumber(currentFunction);
-        slots(currentFunction).put(varDef, new Slot(currentFunction, slot, true));
-
-        if (DEBUG) System.out.println("assigning " + varDef + " to slot " + slot + " in " + currentFunction.name.lexeme);
+        maxLocals.put(function.function.name, Math.max(2, nextSlot));
     }
 
     @Override
-    public Void visitAssignExpr(Expr.Assign expr) {
-        resolve(expr.value);
-        return null;
+    public Integer visitAssignExpr(Expr.Assign expr) {
+        var before = resolve(expr.value);
+        access(expr);
+        return stackSize(before, 1, 1);
     }
 
     @Override
-    public Void visitBinaryExpr(Expr.Binary expr) {
-        resolve(expr.left);
-        resolve(expr.right);
-        return null;
+    public Integer visitBinaryExpr(Expr.Binary expr) {
+        return stackSize(resolve(expr.left) + resolve(expr.right), 2, 1);
     }
 
     @Override
-    public Void visitCallExpr(Expr.Call expr) {
-        resolve(expr.callee);
-        expr.arguments.forEach(this::resolve);
-        return null;
+    public Integer visitCallExpr(Expr.Call expr) {
+        int before = resolve(expr.callee);
+        for (var argument : expr.arguments) before += resolve(argument);
+        functionStack.peek().hasCalls = true;
+        return stackSize(before, expr.arguments.size() + 1, 1);
     }
 
     @Override
-    public Void visitGetExpr(Expr.Get expr) {
-        resolve(expr.object);
-        return null;
+    public Integer visitGetExpr(Expr.Get expr) {
+        return stackSize(resolve(expr.object), 1, 1);
     }
 
     @Override
-    public Void visitGroupingExpr(Expr.Grouping expr) {
-        resolve(expr.expression);
-        return null;
+    public Integer visitGroupingExpr(Expr.Grouping expr) {
+        return stackSize(resolve(expr.expression), 0, 0);
     }
 
     @Override
-    public Void visitLiteralExpr(Expr.Literal expr) {
-        return null;
+    public Integer visitLiteralExpr(Expr.Literal expr) {
+        return stackSize(0, 0, 1);
     }
 
     @Override
-    public Void visitLogicalExpr(Expr.Logical expr) {
-        resolve(expr.left);
-        resolve(expr.right);
-        return null;
+    public Integer visitLogicalExpr(Expr.Logical expr) {
+        return stackSize(resolve(expr.left) + resolve(expr.right), 2, 1);
     }
 
     @Override
-    public Void visitSetExpr(Expr.Set expr) {
-        resolve(expr.object);
-        resolve(expr.value);
-        return null;
+    public Integer visitSetExpr(Expr.Set expr) {
+        var object = resolve(expr.object);
+        var value = resolve(expr.value);
+        return stackSize(value, object, 1);
     }
 
     @Override
-    public Void visitSuperExpr(Expr.Super expr) {
-
-        return null;
+    public Integer visitSuperExpr(Expr.Super expr) {
+        return stackSize(0, 0, 1);
     }
 
     @Override
-    public Void visitThisExpr(Expr.This expr) {
-
-        return null;
+    public Integer visitThisExpr(Expr.This expr) {
+        return stackSize(0, 0, 1);
     }
 
     @Override
-    public Void visitUnaryExpr(Expr.Unary expr) {
-        resolve(expr.right);
-        return null;
+    public Integer visitUnaryExpr(Expr.Unary expr) {
+        return stackSize(resolve(expr.right), 1, 1);
     }
 
     @Override
-    public Void visitVariableExpr(Expr.Variable expr) {
-
-        return null;
+    public Integer visitVariableExpr(Expr.Variable expr) {
+        access(expr);
+        return stackSize(0, 0, 1);
     }
 
     @Override
     public Void visitBlockStmt(Stmt.Block stmt) {
-        beginScope();
         resolve(stmt.statements);
-        endScope();
         return null;
     }
 
     @Override
     public Void visitClassStmt(Stmt.Class stmt) {
-        declare(stmt.name);
         if (stmt.superclass != null) resolve(stmt.superclass);
-        beginScope();
         stmt.methods.forEach(this::resolveFunction);
-        endScope();
+        declare(stmt.name);
         return null;
     }
 
     @Override
     public Void visitExpressionStmt(Stmt.Expression stmt) {
-        resolve(stmt.expression);
+        stackSizes.put(stmt, resolve(stmt.expression));
         return null;
     }
 
     @Override
     public Void visitFunctionStmt(Stmt.Function stmt) {
-        declare(stmt.name);
         resolveFunction(stmt);
+        declare(stmt.name);
         return null;
     }
 
@@ -246,57 +298,68 @@ public class VariableAllocator implements Stmt.Visitor<Void>, Expr.Visitor<Void>
 
     @Override
     public Void visitVarStmt(Stmt.Var stmt) {
-        declare(stmt.name);
         if (stmt.initializer != null) resolve(stmt.initializer);
+        declare(stmt.name);
         return null;
     }
 
     @Override
     public Void visitWhileStmt(Stmt.While stmt) {
+        var loops = functionStack.peek().loops;
+        var loop = new Loop(position++);
+        loops.add(loop);
         resolve(stmt.condition);
         resolve(stmt.body);
+        loops.remove(loops.size() - 1);
+
+        // Variables defined before the loop and accessed in it are live until its end.
+        int end = position++;
+        loop.intervals.forEach(it -> it.end = Math.max(it.end, end));
         return null;
     }
 
-    private Map<VarDef, Slot> slots(Stmt.Function function) {
-        return slots.computeIfAbsent(function.name, k -> new WeakHashMap<>());
+    private static int stackSize(int before, int consumes, int produces) {
+        return before - consumes + produces;
     }
 
-    private int nextSlotNumber(Stmt.Function function) {
-        Map<VarDef, Slot> slots = slots(function);
-        if (slots != null) {
-            var firstFreeSlot = slots
-                .entrySet()
-                .stream()
-                .filter(entry -> !entry.getValue().isUsed)
-                .min(Comparator.comparingInt(it -> it.getValue().number));
-            if (firstFreeSlot.isPresent()) {
-                firstFreeSlot.get().getValue().isUsed = true;
-                return firstFreeSlot.get().getValue().number;
-            } else {
-                Optional<Slot> maxSlot = slots.values()
-                                              .stream()
-                                              .max(Comparator.comparingInt(it -> it.number));
-                return maxSlot.map(slot -> slot.number).orElse(0) + 1;
-            }
-        }
-        return 0;
+    private Map<VarDef, Integer> slots(Stmt.Function function) {
+        return slots.computeIfAbsent(function.name, k -> new HashMap<>());
     }
 
-    private static class Slot {
-
-        public final int number;
+    private static class FunctionIntervals {
         private final Stmt.Function function;
-        private boolean isUsed;
+        private final Map<VarDef, Interval> intervals = new LinkedHashMap<>();
+        // The enclosing loops, outermost first.
+        private final List<Loop> loops = new ArrayList<>();
+        private boolean hasCalls = false;
 
-        public Slot(Stmt.Function function, int number, boolean isUsed) {
+        private FunctionIntervals(Stmt.Function function) {
             this.function = function;
-            this.number = number;
-            this.isUsed = isUsed;
+        }
+    }
+
+    private static class Interval {
+        private final VarDef varDef;
+        private final int start;
+        private int end;
+
+        private Interval(VarDef varDef, int start) {
+            this.varDef = varDef;
+            this.start = start;
+            this.end = start;
         }
 
         public String toString() {
-            return function.name.lexeme + "@" + number + (isUsed ? " (used)" : " (unused)");
+            return "[" + start + ", " + end + "]";
+        }
+    }
+
+    private static class Loop {
+        private final int start;
+        private final List<Interval> intervals = new ArrayList<>();
+
+        private Loop(int start) {
+            this.start = start;
         }
     }
 }
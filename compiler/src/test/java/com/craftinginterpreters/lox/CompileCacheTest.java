@@ -0,0 +1,89 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import proguard.classfile.ClassPool;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+
+import static com.craftinginterpreters.lox.LoxConstants.LOX_MAIN_CLASS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CompileCacheTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void keysDependOnTheSourceAndOptions() {
+        var cache = new CompileCache(directory, CompileCache.DEFAULT_MAX_SIZE);
+        var options = CompilerOptions.defaults();
+
+        assertEquals(cache.key("print 1;", options), cache.key("print 1;", options));
+        assertNotEquals(cache.key("print 1;", options), cache.key("print 2;", options));
+        assertNotEquals(cache.key("print 1;", options), cache.key("print 1;", options.withLevel(0)));
+    }
+
+    @Test
+    void missesUntilTheProgramIsPut() throws IOException {
+        var cache = new CompileCache(directory, CompileCache.DEFAULT_MAX_SIZE);
+        var key = cache.key("print 1;", CompilerOptions.defaults());
+
+        assertTrue(cache.get(key).isEmpty());
+        cache.put(key, compile("print 1;"));
+
+        var cached = cache.get(key);
+        assertTrue(cached.isPresent());
+        assertNotNull(cached.get().getClass(LOX_MAIN_CLASS));
+        assertTrue(cache.get(cache.key("print 2;", CompilerOptions.defaults())).isEmpty());
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedPrograms() throws IOException {
+        var sources = List.of("print 1;", "print 2;", "print 3;");
+        var probe = new CompileCache(directory.resolve("probe"), CompileCache.DEFAULT_MAX_SIZE);
+        long size = 0;
+        for (var source : sources) {
+            probe.put(probe.key(source, CompilerOptions.defaults()), compile(source));
+        }
+        try (var jars = Files.list(directory.resolve("probe"))) {
+            for (var jar : jars.toList()) size = Math.max(size, Files.size(jar));
+        }
+
+        // Room for two programs.
+        var cache = new CompileCache(directory.resolve("cache"), 2 * size + size / 2);
+        var keys = sources.stream().map(source -> cache.key(source, CompilerOptions.defaults())).toList();
+        cache.put(keys.get(0), compile(sources.get(0)));
+        cache.put(keys.get(1), compile(sources.get(1)));
+        age(keys.get(0), 2);
+        age(keys.get(1), 1);
+        // Using the oldest program makes the other one the least recently used.
+        assertTrue(cache.get(keys.get(0)).isPresent());
+        cache.put(keys.get(2), compile(sources.get(2)));
+
+        assertTrue(cache.get(keys.get(0)).isPresent());
+        assertTrue(cache.get(keys.get(1)).isEmpty());
+        assertTrue(cache.get(keys.get(2)).isPresent());
+    }
+
+    /**
+     * Makes a cached program look like it was last used the given number of hours ago.
+     */
+    private void age(String key, int hours) throws IOException {
+        var jar = directory.resolve("cache").resolve(key + ".jar");
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(System.currentTimeMillis() - hours * 3_600_000L));
+    }
+
+    private static ClassPool compile(String source) {
+        var result = new LoxCompiler().compile(source);
+        assertTrue(result.isSuccess(), result.diagnostics().toString());
+        return result.classPool();
+    }
+}
@@ -0,0 +1,83 @@
+package com.craftinginterpreters.lox;
+
+import lox.LoxException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LoxProgramTest {
+
+    private static final String COUNTER = """
+        var count = 0;
+        fun add(n) {
+            for (var i = 0; i < n; i = i + 1) count = count + 1;
+            return count;
+        }
+        """;
+
+    @Test
+    void concurrentRunsHaveTheirOwnGlobals() throws Exception {
+        var program = LoxProgram.compile(COUNTER);
+        var executor = Executors.newFixedThreadPool(8);
+        try {
+            var counts = new ArrayList<Future<Object>>();
+            for (int i = 0; i < 64; i++) {
+                int n = i;
+                counts.add(executor.submit(() -> {
+                    var run = program.run();
+                    run.call("add", n);
+                    run.call("add", n);
+                    return run.get("count");
+                }));
+            }
+            for (int i = 0; i < counts.size(); i++) assertEquals(2.0 * i, counts.get(i).get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void globalsCanBeReadAfterARun() throws Exception {
+        var program = LoxProgram.compile(COUNTER + "var name = \"lox\";");
+        var run = program.run();
+
+        assertEquals(0.0, run.get("count"));
+        assertEquals("lox", run.get("name"));
+        assertEquals(3.0, run.call("add", 3));
+        assertEquals(3.0, run.get("count"));
+        assertThrows(IllegalArgumentException.class, () -> run.get("undefined"));
+        assertThrows(IllegalArgumentException.class, () -> run.call("name"));
+        assertThrows(IllegalArgumentException.class, () -> run.call("add"));
+    }
+
+    @Test
+    void compileErrorsAreReported() {
+        var exception = assertThrows(LoxProgram.CompileException.class, () -> LoxProgram.compile("print ;"));
+
+        assertFalse(exception.diagnostics().isEmpty());
+        assertEquals(1, exception.diagnostics().get(0).line());
+    }
+
+    @Test
+    void runtimeErrorsAreThrown() throws Exception {
+        var run = LoxProgram.compile("fun increment(n) {\n  return n + 1;\n}").run();
+
+        var exception = assertThrows(LoxException.class, () -> run.call("increment", "one"));
+        assertEquals("Operands must be two numbers or two strings.", exception.getMessage().lines().findFirst().orElseThrow());
+        assertEquals(2, exception.getLine());
+    }
+
+    @Test
+    void functionsReturnNilByDefault() throws Exception {
+        var run = LoxProgram.compile("fun nothing() { }").run();
+
+        assertNull(run.call("nothing"));
+    }
+}
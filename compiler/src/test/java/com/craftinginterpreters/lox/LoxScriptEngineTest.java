@@ -0,0 +1,103 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.script.Compilable;
+import javax.script.Invocable;
+import javax.script.ScriptEngine;
+import javax.script.ScriptEngineManager;
+import javax.script.ScriptException;
+import java.io.StringWriter;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LoxScriptEngineTest {
+
+    private static final String NEWLINE = System.lineSeparator();
+
+    private ScriptEngine engine;
+    private StringWriter output;
+    private StringWriter errors;
+
+    @BeforeEach
+    void createEngine() {
+        engine = new ScriptEngineManager().getEngineByName("lox");
+        assertNotNull(engine);
+        output = new StringWriter();
+        errors = new StringWriter();
+        engine.getContext().setWriter(output);
+        engine.getContext().setErrorWriter(errors);
+    }
+
+    @Test
+    void evalPrintsToTheContextWriter() throws ScriptException {
+        engine.eval("print 1 + 2; print \"lox\";");
+
+        assertEquals("3" + NEWLINE + "lox" + NEWLINE, output.toString());
+    }
+
+    @Test
+    void evalCopiesGlobalsToTheBindings() throws ScriptException {
+        engine.eval("var greeting = \"hello\"; var count = 2 * 21;");
+
+        assertEquals("hello", engine.get("greeting"));
+        assertEquals(42.0, engine.get("count"));
+    }
+
+    @Test
+    void eachEvalRunsTheScriptAgain() throws ScriptException {
+        var script = ((Compilable) engine).compile("print \"run\";");
+        script.eval();
+        script.eval();
+
+        assertEquals("run" + NEWLINE + "run" + NEWLINE, output.toString());
+    }
+
+    @Test
+    void invokeFunctionCallsTheLastScript() throws Exception {
+        engine.eval("fun add(a, b) { return a + b; } fun greet(name) { print \"hi \" + name; }");
+        var invocable = (Invocable) engine;
+
+        assertEquals(5.0, invocable.invokeFunction("add", 2, 3));
+        invocable.invokeFunction("greet", "lox");
+        assertEquals("hi lox" + NEWLINE, output.toString());
+        assertThrows(NoSuchMethodException.class, () -> invocable.invokeFunction("missing"));
+    }
+
+    public interface Adder {
+        Object add(Object a, Object b);
+    }
+
+    @Test
+    void getInterfaceCallsFunctions() throws ScriptException {
+        engine.eval("fun add(a, b) { return a + b; }");
+
+        assertEquals("ab", ((Invocable) engine).getInterface(Adder.class).add("a", "b"));
+    }
+
+    @Test
+    void invokeMethodCallsAMethod() throws Exception {
+        engine.eval("class Counter { init() { this.count = 0; } next() { this.count = this.count + 1; return this.count; } } var counter = Counter();");
+        var counter = engine.get("counter");
+
+        assertEquals(1.0, ((Invocable) engine).invokeMethod(counter, "next"));
+        assertEquals(2.0, ((Invocable) engine).invokeMethod(counter, "next"));
+    }
+
+    @Test
+    void errorsThrowScriptExceptions() throws ScriptException {
+        assertThrows(ScriptException.class, () -> engine.eval("print ;"));
+        engine.eval("fun increment(n) { return n + 1; }");
+        assertThrows(ScriptException.class, () -> ((Invocable) engine).invokeFunction("increment", "one"));
+    }
+
+    @Test
+    void outputBeforeAnErrorIsWritten() {
+        assertThrows(ScriptException.class, () -> engine.eval("fun increment(n) { return n + 1; } print \"before\"; increment(\"one\");"));
+
+        assertEquals("before" + NEWLINE, output.toString());
+    }
+}
@@ -0,0 +1,106 @@
+package com.craftinginterpreters.lox;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import proguard.classfile.ClassPool;
+import proguard.io.util.IOUtil;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static com.craftinginterpreters.lox.LoxConstants.LOX_MAIN_CLASS;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ShrinkerTest {
+
+    private static final String PROGRAM = """
+        class Shape {
+            init(name) { this.name = name; }
+            describe() { return "a " + this.name; }
+        }
+        class Square < Shape {
+            init(side) { super.init("square"); this.side = side; }
+            area() { return this.side * this.side; }
+        }
+        fun makeCounter() {
+            var count = 0;
+            fun next() { count = count + 1; return count; }
+            return next;
+        }
+        fun fib(n) { if (n < 2) return n; return fib(n - 1) + fib(n - 2); }
+        var counter = makeCounter();
+        counter();
+        print counter();
+        print Square(3).describe();
+        print Square(3).area();
+        print fib(20);
+        print clock() > 0;
+        print Square;
+        print Square(1).describe;
+        print counter;
+        print nil == false;
+        Square(2).missing();
+        """;
+
+    @TempDir
+    Path directory;
+
+    private record Output(int status, String output, String errors) { }
+
+    @Test
+    void shrunkJarsRunLikeTheFullJar() throws IOException, InterruptedException {
+        var classPool = compile(PROGRAM);
+        var full = run(write(classPool, "full.jar"));
+
+        assertEquals(70, full.status());
+        assertTrue(full.errors().startsWith("Undefined property 'missing'."), full.errors());
+        assertEquals("2\na square\n9\n6765\ntrue\nSquare\n<fn describe>\n<fn next>\nfalse\n", full.output().replace(System.lineSeparator(), "\n"));
+        assertEquals(full, run(write(Shrinker.shrink(classPool, false), "shrunk.jar")));
+        assertEquals(full, run(write(Shrinker.shrink(classPool, true), "stripped.jar")));
+    }
+
+    @Test
+    void shrunkJarsAreSmaller() throws IOException {
+        var classPool = compile("print \"Hello World\";");
+
+        var full = write(classPool, "full.jar");
+        var shrunk = write(Shrinker.shrink(classPool, false), "shrunk.jar");
+        var stripped = write(Shrinker.shrink(classPool, true), "stripped.jar");
+
+        assertTrue(Files.size(shrunk) < Files.size(full));
+        assertTrue(Files.size(stripped) < Files.size(shrunk));
+    }
+
+    @Test
+    void shrinkingLeavesTheProgramUnchanged() throws IOException, InterruptedException {
+        var classPool = compile("print \"unchanged\";");
+        Shrinker.shrink(classPool, true);
+
+        assertEquals(new Output(0, "unchanged" + System.lineSeparator(), ""), run(write(classPool, "full.jar")));
+    }
+
+    private static ClassPool compile(String source) {
+        var result = new LoxCompiler().compile(source);
+        assertTrue(result.isSuccess(), result.diagnostics().toString());
+        return result.classPool();
+    }
+
+    private Path write(ClassPool classPool, String name) throws IOException {
+        var jar = directory.resolve(name);
+        IOUtil.writeJar(classPool, jar.toString(), LOX_MAIN_CLASS);
+        return jar;
+    }
+
+    private static Output run(Path jar) throws IOException, InterruptedException {
+        var java = Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+        var process = new ProcessBuilder(java, "-jar", jar.toString()).start();
+        process.getOutputStream().close();
+        var output = new String(process.getInputStream().readAllBytes(), Charset.defaultCharset());
+        var errors = new String(process.getErrorStream().readAllBytes(), Charset.defaultCharset());
+        return new Output(process.waitFor(), output, errors);
+    }
+}
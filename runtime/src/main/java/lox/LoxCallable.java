@@ -11,5 +11,15 @@ public interface LoxCallable {
         return enclosing;
     }
 
+    /**
+     * Returns the outermost enclosing callable: the instance of the main function
+     * that is running this callable, which holds the program's captured globals.
+     */
+    default LoxCallable getMain() {
+        LoxCallable main = this;
+        while (main.getEnclosing() != null) main = main.getEnclosing();
+        return main;
+    }
+
     Object invoke(Object[] args);
 }
@@ -0,0 +1,158 @@
+package lox;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A bounded cache of function results that evicts the least recently used entry.
+ * <p>
+ * Results for a single number argument are stored in an open addressing table keyed by
+ * the bits of the primitive double, so that lookups don't allocate. Results for other
+ * argument lists, made up of numbers and strings, are keyed by their contents.
+ */
+public final class LoxMemo {
+    public static final Object MISSING = new Object();
+
+    private final int capacity;
+    private final int mask;
+    private final long[] keys;
+    private final Object[] values;
+    // Entries are linked from the least to the most recently used.
+    private final int[] previous;
+    private final int[] next;
+    // Entry index + 1, or 0 if the slot is empty.
+    private final int[] table;
+    private int size = 0;
+    private int eldest = -1;
+    private int youngest = -1;
+
+    private final Map<List<Object>, Object> entries;
+
+    public LoxMemo(final int capacity) {
+        this.capacity = capacity;
+        this.keys = new long[capacity];
+        this.values = new Object[capacity];
+        this.previous = new int[capacity];
+        this.next = new int[capacity];
+        this.table = new int[Integer.highestOneBit(Math.max(capacity, 1) * 2 - 1) << 1];
+        this.mask = table.length - 1;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns true if the arguments only contain numbers and strings.
+     */
+    public static boolean isKey(Object[] args) {
+        for (Object arg : args) {
+            if (!(arg instanceof Double) && !(arg instanceof String)) return false;
+        }
+        return true;
+    }
+
+    public Object get(Object[] args) {
+        List<Object> key = Arrays.asList(args);
+        Object result = entries.get(key);
+        return result != null || entries.containsKey(key) ? result : MISSING;
+    }
+
+    public void put(Object[] args, Object value) {
+        entries.put(Arrays.asList(args.clone()), value);
+        if (entries.size() > capacity) {
+            Iterator<List<Object>> iterator = entries.keySet().iterator();
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    public Object get(double number) {
+        long key = Double.doubleToLongBits(number);
+        for (int slot = hash(key); table[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (keys[entry] == key) {
+                touch(entry);
+                return values[entry];
+            }
+        }
+        return MISSING;
+    }
+
+    public void put(double number, Object value) {
+        long key = Double.doubleToLongBits(number);
+        int slot = hash(key);
+        for (; table[slot] != 0; slot = (slot + 1) & mask) {
+            int entry = table[slot] - 1;
+            if (keys[entry] == key) {
+                values[entry] = value;
+                touch(entry);
+                return;
+            }
+        }
+
+        int entry;
+        if (size == capacity) {
+            entry = eldest;
+            remove(entry);
+            // Removing may have shifted the free slot.
+            slot = hash(key);
+            while (table[slot] != 0) slot = (slot + 1) & mask;
+        } else {
+            entry = size++;
+        }
+
+        keys[entry] = key;
+        values[entry] = value;
+        table[slot] = entry + 1;
+        link(entry);
+    }
+
+    private int hash(long key) {
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+
+    private void touch(int entry) {
+        if (entry == youngest) return;
+        unlink(entry);
+        link(entry);
+    }
+
+    private void link(int entry) {
+        previous[entry] = youngest;
+        next[entry] = -1;
+        if (youngest != -1) next[youngest] = entry;
+        else eldest = entry;
+        youngest = entry;
+    }
+
+    private void unlink(int entry) {
+        if (previous[entry] != -1) next[previous[entry]] = next[entry];
+        else eldest = next[entry];
+        if (next[entry] != -1) previous[next[entry]] = previous[entry];
+        else youngest = previous[entry];
+    }
+
+    private void remove(int entry) {
+        unlink(entry);
+        values[entry] = null;
+
+        int slot = hash(keys[entry]);
+        while (table[slot] != entry + 1) slot = (slot + 1) & mask;
+        table[slot] = 0;
+
+        // Shift back later entries of the probe sequence, so that lookups don't stop at the hole.
+        for (int current = (slot + 1) & mask; table[current] != 0; current = (current + 1) & mask) {
+            int home = hash(keys[table[current] - 1]);
+            boolean isBetween = slot <= current ?
+                slot < home && home <= current :
+                slot < home || home <= current;
+            if (!isBetween) {
+                table[slot] = table[current];
+                table[current] = 0;
+                slot = current;
+            }
+        }
+    }
+}
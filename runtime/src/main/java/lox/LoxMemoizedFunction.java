@@ -0,0 +1,38 @@
+package lox;
+
+/**
+ * A pure function whose results are cached for arguments that are numbers or strings.
+ */
+public abstract class LoxMemoizedFunction extends LoxFunction {
+
+    private final LoxMemo $memo;
+
+    public LoxMemoizedFunction(LoxCallable enclosing, int capacity) {
+        super(enclosing);
+        $memo = new LoxMemo(capacity);
+    }
+
+    protected abstract Object invokeUnmemoized(Object[] args);
+
+    @Override
+    public final Object invoke(Object[] args) {
+        if (args.length == 1 && args[0] instanceof Double) {
+            double key = (Double) args[0];
+            Object result = $memo.get(key);
+            if (result == LoxMemo.MISSING) {
+                result = invokeUnmemoized(args);
+                $memo.put(key, result);
+            }
+            return result;
+        } else if (LoxMemo.isKey(args)) {
+            Object result = $memo.get(args);
+            if (result == LoxMemo.MISSING) {
+                result = invokeUnmemoized(args);
+                $memo.put(args, result);
+            }
+            return result;
+        } else {
+            return invokeUnmemoized(args);
+        }
+    }
+}
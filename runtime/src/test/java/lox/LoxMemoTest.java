@@ -0,0 +1,119 @@
+package lox;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LoxMemoTest {
+
+    @Test
+    void numberResults() {
+        LoxMemo memo = new LoxMemo(4);
+        memo.put(1, "one");
+        memo.put(2, null);
+
+        assertEquals("one", memo.get(1));
+        assertNull(memo.get(2));
+        assertSame(LoxMemo.MISSING, memo.get(3));
+    }
+
+    @Test
+    void zeroAndNegativeZeroAreDifferentNumbers() {
+        LoxMemo memo = new LoxMemo(4);
+        memo.put(0.0, "zero");
+
+        assertSame(LoxMemo.MISSING, memo.get(-0.0));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedNumber() {
+        LoxMemo memo = new LoxMemo(2);
+        memo.put(1, "one");
+        memo.put(2, "two");
+        memo.get(1);
+        memo.put(3, "three");
+
+        assertEquals("one", memo.get(1));
+        assertSame(LoxMemo.MISSING, memo.get(2));
+        assertEquals("three", memo.get(3));
+    }
+
+    @Test
+    void replacingANumberDoesNotEvict() {
+        LoxMemo memo = new LoxMemo(2);
+        memo.put(1, "one");
+        memo.put(2, "two");
+        memo.put(2, "TWO");
+
+        assertEquals("one", memo.get(1));
+        assertEquals("TWO", memo.get(2));
+    }
+
+    @Test
+    void numbersBehaveLikeALeastRecentlyUsedMap() {
+        int capacity = 16;
+        LoxMemo memo = new LoxMemo(capacity);
+        Map<Double, Object> expected = new LinkedHashMap<Double, Object>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Double, Object> eldest) {
+                return size() > capacity;
+            }
+        };
+
+        Random random = new Random(42);
+        for (int i = 0; i < 100_000; i++) {
+            // Few enough keys that there are hits, and many collisions in the table.
+            double key = random.nextInt(64);
+            if (random.nextBoolean()) {
+                memo.put(key, i);
+                expected.put(key, i);
+            } else {
+                Object value = expected.get(key);
+                assertEquals(value != null ? value : LoxMemo.MISSING, memo.get(key), "key " + key + " at " + i);
+            }
+        }
+    }
+
+    @Test
+    void argumentListResults() {
+        LoxMemo memo = new LoxMemo(4);
+        Object[] args = {"a", 1.0};
+        memo.put(args, "a1");
+        // The key is a copy of the arguments.
+        args[1] = 2.0;
+
+        assertEquals("a1", memo.get(new Object[] {"a", 1.0}));
+        assertSame(LoxMemo.MISSING, memo.get(new Object[] {"a", 2.0}));
+        assertSame(LoxMemo.MISSING, memo.get(new Object[] {1.0, "a"}));
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedArgumentList() {
+        LoxMemo memo = new LoxMemo(2);
+        memo.put(new Object[] {"a"}, 1);
+        memo.put(new Object[] {"b"}, 2);
+        memo.get(new Object[] {"a"});
+        memo.put(new Object[] {"c"}, 3);
+
+        assertEquals(1, memo.get(new Object[] {"a"}));
+        assertSame(LoxMemo.MISSING, memo.get(new Object[] {"b"}));
+        assertEquals(3, memo.get(new Object[] {"c"}));
+    }
+
+    @Test
+    void onlyNumbersAndStringsAreKeys() {
+        assertTrue(LoxMemo.isKey(new Object[] {1.0, "a"}));
+        assertTrue(LoxMemo.isKey(new Object[0]));
+        assertFalse(LoxMemo.isKey(new Object[] {1.0, null}));
+        assertFalse(LoxMemo.isKey(new Object[] {true}));
+        assertFalse(LoxMemo.isKey(new Object[] {new Object()}));
+    }
+}
@@ -0,0 +1,79 @@
+package lox;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class LoxMemoizedFunctionTest {
+
+    /**
+     * Returns the number of times that it has been invoked with
+     * different arguments, or that its results were evicted.
+     */
+    private static class Counter extends LoxMemoizedFunction {
+        int invocations = 0;
+
+        Counter(int capacity) {
+            super(null, capacity);
+        }
+
+        @Override
+        protected Object invokeUnmemoized(Object[] args) {
+            return (double) ++invocations;
+        }
+
+        @Override
+        public String getName() {
+            return "counter";
+        }
+
+        @Override
+        public int arity() {
+            return 1;
+        }
+    }
+
+    @Test
+    void numberArgumentsAreMemoized() {
+        Counter counter = new Counter(8);
+
+        assertEquals(1.0, counter.invoke(new Object[] {5.0}));
+        assertEquals(1.0, counter.invoke(new Object[] {5.0}));
+        assertEquals(2.0, counter.invoke(new Object[] {6.0}));
+        assertEquals(2, counter.invocations);
+    }
+
+    @Test
+    void stringAndMixedArgumentsAreMemoized() {
+        Counter counter = new Counter(8);
+
+        assertEquals(1.0, counter.invoke(new Object[] {"a"}));
+        assertEquals(2.0, counter.invoke(new Object[] {"a", 1.0}));
+        assertEquals(1.0, counter.invoke(new Object[] {"a"}));
+        assertEquals(2.0, counter.invoke(new Object[] {"a", 1.0}));
+        assertEquals(2, counter.invocations);
+    }
+
+    @Test
+    void otherArgumentsAreNotMemoized() {
+        Counter counter = new Counter(8);
+        Object instance = new Object();
+
+        assertEquals(1.0, counter.invoke(new Object[] {instance}));
+        assertEquals(2.0, counter.invoke(new Object[] {instance}));
+        assertEquals(3.0, counter.invoke(new Object[] {null}));
+        assertEquals(4.0, counter.invoke(new Object[] {null}));
+    }
+
+    @Test
+    void evictedResultsAreComputedAgain() {
+        Counter counter = new Counter(2);
+        counter.invoke(new Object[] {1.0});
+        counter.invoke(new Object[] {2.0});
+        counter.invoke(new Object[] {3.0});
+
+        assertEquals(4.0, counter.invoke(new Object[] {1.0}));
+        assertEquals(3.0, counter.invoke(new Object[] {3.0}));
+        assertEquals(4, counter.invocations);
+    }
+}